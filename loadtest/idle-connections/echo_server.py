@@ -0,0 +1,32 @@
+# Echo server on 127.0.0.1:9402, the remote host of the measured mapping
+import selectors
+import socket
+
+selector = selectors.DefaultSelector()
+listener = socket.socket()
+listener.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+listener.bind(('127.0.0.1', 9402))
+listener.listen(4096)
+listener.setblocking(False)
+selector.register(listener, selectors.EVENT_READ)
+
+while True:
+    for key, _ in selector.select():
+        if key.fileobj is listener:
+            connection, _ = listener.accept()
+            connection.setblocking(False)
+            selector.register(connection, selectors.EVENT_READ)
+            continue
+        connection = key.fileobj
+        try:
+            data = connection.recv(65536)
+        except OSError:
+            data = b''
+        if data:
+            try:
+                connection.sendall(data)
+            except OSError:
+                pass
+        else:
+            selector.unregister(connection)
+            connection.close()
@@ -0,0 +1,13 @@
+# hold_connections.py <port> <connections> <seconds>: opens connections, sends one byte on each, keeps them idle
+import socket
+import sys
+import time
+
+port, count, seconds = int(sys.argv[1]), int(sys.argv[2]), int(sys.argv[3])
+
+connections = [socket.create_connection(('127.0.0.1', port)) for _ in range(count)]
+for connection in connections:
+    connection.sendall(b'x')
+
+print('holding', count, flush=True)
+time.sleep(seconds)
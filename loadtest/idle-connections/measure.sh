@@ -0,0 +1,75 @@
+#!/bin/bash
+# Per-connection cost of idle plain-mode connections on Linux.
+#
+# measure.sh <classpath> <connections>
+#   classpath   - port mapper classes and dependencies, e.g. target/classes:$(cat cp.txt)
+#                 where cp.txt is written by: mvn dependency:build-classpath -Dmdep.outputFile=cp.txt
+#   connections - number of idle connections to open (1000 and 3000 were used for the README figures)
+#
+# Prints file descriptors, threads, process RSS, kernel slab memory and TCP memory pages per connection.
+# The slab figure is system-wide and includes both ends of the loopback connection, run it on a quiet machine.
+# The open file limit (ulimit -n) must allow 2 * connections descriptors for this script and the port mapper.
+
+set -e
+
+CLASSPATH_ARG=$1
+CONNECTIONS=$2
+DIR=$(cd "$(dirname "$0")" && pwd)
+LOG=$(mktemp)
+HOLD_OUT=$(mktemp)
+
+if [ -z "$CLASSPATH_ARG" ] || [ -z "$CONNECTIONS" ]; then
+    echo "usage: $0 <classpath> <connections>" >&2
+    exit 1
+fi
+
+python3 "$DIR/echo_server.py" > /dev/null 2>&1 &
+ECHO_PID=$!
+
+(cd "$DIR" && exec java -Dlogback.configurationFile=logback.xml -cp "$CLASSPATH_ARG" ru.pmapper.PortMapper) \
+    > "$LOG" 2>&1 &
+MAPPER_PID=$!
+
+HOLD_PID=
+cleanup() {
+    [ -n "$HOLD_PID" ] && kill "$HOLD_PID" 2> /dev/null
+    kill "$MAPPER_PID" "$ECHO_PID" 2> /dev/null
+    rm -f "$HOLD_OUT"
+    echo "port mapper log: $LOG"
+}
+trap cleanup EXIT
+
+sleep 4
+
+snapshot() {
+    echo "$(ls /proc/$MAPPER_PID/fd | wc -l)" \
+         "$(ls /proc/$MAPPER_PID/task | wc -l)" \
+         "$(awk '/^VmRSS/ {print $2}' /proc/$MAPPER_PID/status)" \
+         "$(awk '/^Slab:/ {print $2}' /proc/meminfo)" \
+         "$(awk '/^TCP:/ {print $NF}' /proc/net/sockstat)"
+}
+
+BEFORE=$(snapshot)
+
+python3 "$DIR/hold_connections.py" 9403 "$CONNECTIONS" 60 > "$HOLD_OUT" 2>&1 &
+HOLD_PID=$!
+
+for i in $(seq 1 150); do
+    grep -q holding "$HOLD_OUT" && break
+    sleep 1
+done
+
+# Let the handlers accept the connections and relay the first byte
+sleep 8
+
+AFTER=$(snapshot)
+
+echo "connections=$CONNECTIONS before(fd threads rssKB slabKB tcpPages)=$BEFORE after=$AFTER"
+python3 - "$CONNECTIONS" $BEFORE $AFTER <<'PY'
+import sys
+count = int(sys.argv[1])
+before = list(map(int, sys.argv[2:7]))
+after = list(map(int, sys.argv[7:12]))
+print("per connection: fds %.2f, threads %.2f, rss %.1f KB, slab (both ends) %.1f KB, tcp memory pages %.2f"
+      % tuple((after[i] - before[i]) / count for i in range(5)))
+PY
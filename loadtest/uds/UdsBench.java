@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Задержка и пропускная способность TCP и Unix domain сокетов, напрямую и через port mapper.
+ * Запускается без сборки: java UdsBench.java ...
+ * <pre>
+ * server &lt;port&gt; &lt;path&gt;        эхо-сервер на 127.0.0.1:port и на Unix domain сокете path
+ * latency &lt;target&gt; &lt;rounds&gt;   время обмена 64 байтами (ping-pong), p50 и p99
+ * throughput &lt;target&gt; &lt;secs&gt;  скорость эха одного соединения при записи по 64 КБ
+ * </pre>
+ * target - номер TCP порта на 127.0.0.1 или путь к Unix domain сокету (начинается с /)
+ */
+public class UdsBench {
+
+    private static final int MESSAGE_SIZE = 64;
+
+    private static final int BLOCK_SIZE = 65536;
+
+    //Обмены, не попадающие в результат, пока JIT компилирует код
+    private static final int WARMUP_ROUNDS = 2000;
+
+    private static final long WARMUP_NANOS = 1000000000L;
+
+    public static void main(final String[] args) throws Exception {
+
+        switch (args[0]) {
+            case "server":
+                serve(args[1], args[2]);
+                break;
+            case "latency":
+                measureLatency(args[1], Integer.parseInt(args[2]));
+                break;
+            case "throughput":
+                measureThroughput(args[1], Long.parseLong(args[2]));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + args[0]);
+        }
+    }
+
+    private static void serve(final String port, final String path) throws Exception {
+
+        final ServerSocketChannel tcp = ServerSocketChannel.open();
+        tcp.bind(new InetSocketAddress("127.0.0.1", Integer.parseInt(port)));
+        startAcceptor(tcp);
+
+        Files.deleteIfExists(Paths.get(path));
+        final ServerSocketChannel uds = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        uds.bind(UnixDomainSocketAddress.of(path));
+        startAcceptor(uds);
+
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    private static void measureLatency(final String target, final int rounds) throws IOException {
+
+        final long[] nanos = new long[rounds];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+
+        try (SocketChannel channel = open(target)) {
+            for (int i = 0; i < rounds + WARMUP_ROUNDS; i++) {
+
+                final long start = System.nanoTime();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Connection closed by " + target);
+                    }
+                }
+
+                if (i >= WARMUP_ROUNDS) {
+                    nanos[i - WARMUP_ROUNDS] = System.nanoTime() - start;
+                }
+            }
+        }
+
+        Arrays.sort(nanos);
+        System.out.printf("%s RTT p50=%.1f us p99=%.1f us%n", target, nanos[rounds / 2] / 1e3,
+                nanos[rounds * 99 / 100] / 1e3);
+    }
+
+    private static void measureThroughput(final String target, final long seconds) throws Exception {
+
+        final AtomicLong received = new AtomicLong();
+
+        try (SocketChannel channel = open(target)) {
+
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+                    try {
+                        int length;
+                        while ((length = channel.read(buffer)) > 0) {
+                            received.addAndGet(length);
+                            buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        //Соединение закрыто
+                    }
+                }
+            });
+            reader.start();
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            final long end = System.nanoTime() + seconds * 1000000000L;
+            final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+
+            long measuredFrom = -1L;
+            long receivedBefore = 0L;
+
+            while (System.nanoTime() < end) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (measuredFrom < 0L && System.nanoTime() > warmupEnd) {
+                    receivedBefore = received.get();
+                    measuredFrom = System.nanoTime();
+                }
+            }
+
+            final double elapsed = (System.nanoTime() - measuredFrom) / 1e9;
+            final long bytes = received.get() - receivedBefore;
+
+            channel.shutdownOutput();
+            reader.join(2000L);
+
+            System.out.printf("%s echo throughput %.0f MB/s%n", target, bytes / elapsed / 1e6);
+        }
+    }
+
+    private static SocketChannel open(final String target) throws IOException {
+
+        if (target.startsWith("/")) {
+            return SocketChannel.open(UnixDomainSocketAddress.of(target));
+        }
+
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", Integer.parseInt(target)));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    private static void startAcceptor(final ServerSocketChannel serverChannel) {
+
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SocketChannel channel = serverChannel.accept();
+                        startDaemon(new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(channel);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    //Сокет закрыт
+                }
+            }
+        });
+    }
+
+    private static void echo(final SocketChannel channel) {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        try (SocketChannel closing = channel) {
+            while (closing.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    closing.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            //Клиент закрыл соединение
+        }
+    }
+
+    private static void startDaemon(final Runnable task) {
+
+        final Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
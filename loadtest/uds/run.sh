@@ -0,0 +1,54 @@
+#!/bin/bash
+# TCP and Unix domain socket latency and throughput, directly and through the port mapper.
+#
+# run.sh <classpath> [rounds] [seconds]
+#   classpath - port mapper classes and dependencies, e.g. target/classes:$(cat cp.txt)
+#               where cp.txt is written by: mvn dependency:build-classpath -Dmdep.outputFile=cp.txt
+#   rounds    - 64-byte ping-pong exchanges per latency run, 50000 by default
+#   seconds   - duration of each throughput run with 64 KB writes, 5 by default
+#
+# The echo server listens on 127.0.0.1:9802 and /tmp/pmapper-bench-echo.sock, the mappings of
+# proxy.properties are measured alongside the direct connections. Results depend on the machine,
+# compare the rows of one run rather than absolute figures.
+
+set -e
+
+CLASSPATH_ARG=$1
+ROUNDS=${2:-50000}
+SECONDS_PER_RUN=${3:-5}
+DIR=$(cd "$(dirname "$0")" && pwd)
+
+if [ -z "$CLASSPATH_ARG" ]; then
+    echo "usage: $0 <classpath> [rounds] [seconds]" >&2
+    exit 1
+fi
+
+LOG=$(mktemp)
+BENCH="java $DIR/UdsBench.java"
+
+$BENCH server 9802 /tmp/pmapper-bench-echo.sock &
+ECHO_PID=$!
+
+(cd "$DIR" && exec java -Dlogback.configurationFile=logback.xml -cp "$CLASSPATH_ARG" ru.pmapper.PortMapper) \
+    > "$LOG" 2>&1 &
+MAPPER_PID=$!
+
+cleanup() {
+    kill "$MAPPER_PID" "$ECHO_PID" 2> /dev/null
+    echo "port mapper log: $LOG"
+}
+trap cleanup EXIT
+
+sleep 6
+
+run() {
+    echo "== $1"
+    $BENCH latency "$2" "$ROUNDS"
+    $BENCH throughput "$2" "$SECONDS_PER_RUN"
+}
+
+run "direct, TCP" 9802
+run "direct, UDS" /tmp/pmapper-bench-echo.sock
+run "through mapper, TCP -> TCP" 9801
+run "through mapper, TCP -> UDS" 9803
+run "through mapper, UDS -> UDS" /tmp/pmapper-bench-in.sock
@@ -0,0 +1,43 @@
+package ru.pmapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счетчики попыток соединения всех {@link HappyEyeballsConnector}. Большое число отмененных попыток значит,
+ * что у удаленного сервера несколько адресов и первый из них отвечает медленнее других
+ */
+public final class ConnectionAttemptStatistics implements ConnectionAttemptStatisticsMXBean {
+
+    private final AtomicLong startedAttempts = new AtomicLong();
+
+    private final AtomicLong cancelledAttempts = new AtomicLong();
+
+    private final AtomicLong failedAttempts = new AtomicLong();
+
+    void onStarted() {
+        this.startedAttempts.incrementAndGet();
+    }
+
+    void onCancelled(final int attempts) {
+        this.cancelledAttempts.addAndGet(attempts);
+    }
+
+    void onFailed() {
+        this.failedAttempts.incrementAndGet();
+    }
+
+    @Override
+    public long getStartedAttempts() {
+        return this.startedAttempts.get();
+    }
+
+    @Override
+    public long getCancelledAttempts() {
+        return this.cancelledAttempts.get();
+    }
+
+    @Override
+    public long getFailedAttempts() {
+        return this.failedAttempts.get();
+    }
+}
@@ -0,0 +1,14 @@
+package ru.pmapper;
+
+/**
+ * Метрики попыток соединения с удаленными серверами по алгоритму Happy Eyeballs, доступные через JMX
+ */
+public interface ConnectionAttemptStatisticsMXBean {
+
+    long getStartedAttempts();
+
+    //Попытки, закрытые из-за того, что другая попытка соединилась раньше
+    long getCancelledAttempts();
+
+    long getFailedAttempts();
+}
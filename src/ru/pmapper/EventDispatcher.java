@@ -2,16 +2,37 @@ package ru.pmapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.pmapper.admission.ClientAdmissionTable;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.health.HealthChecker;
+import ru.pmapper.http.HttpEventHandler;
+import ru.pmapper.http.HttpResponseCache;
+import ru.pmapper.http.UpstreamConnectionPool;
+import ru.pmapper.registry.ConnectionRegistry;
+import ru.pmapper.traffic.TrafficCounter;
+import ru.pmapper.traffic.TrafficMonitor;
+import ru.pmapper.tunnel.TunnelMultiplexer;
+import ru.pmapper.util.JmxSupport;
 import ru.pmapper.util.PlatformDependent;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyMode;
 import ru.pmapper.util.properties.ProxyProperty;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Класс, регистрирующий события принятия входящего подключения на каналы серверных сокетов и инициирующий
@@ -36,14 +57,56 @@ public class EventDispatcher implements Runnable {
     //Пул потоков, которые будут обрабаотывать входящие подключения
     private final ExecutorService eventHandlerPool;
 
-    public EventDispatcher(final List<NonBlockingServerSocketProxyChannel> proxyChannels) throws IOException,
-            IllegalArgumentException {
+    //Состояния здоровья удаленных серверов
+    private final HealthChecker healthChecker;
+
+    //Ограничения подключений по адресам клиентов, null - ограничений нет
+    private final ClientAdmissionTable clientAdmission;
+
+    //Учет самых активных клиентов и каналов
+    private final TrafficMonitor trafficMonitor;
+
+    //Реестр открытых клиентских соединений
+    private final ConnectionRegistry connectionRegistry;
+
+    //Пулы keep-alive соединений с удаленными серверами каналов в режиме HTTP -- настройка канала --> пул
+    private final Map<ProxyProperty, UpstreamConnectionPool> upstreamPools;
+
+    //Кэши ответов каналов в режиме HTTP с включенным кэшированием -- настройка канала --> кэш
+    private final Map<ProxyProperty, HttpResponseCache> responseCaches;
+
+    //Обработчик туннельных соединений каналов в режимах tunnel и tunnel-exit, null - таких каналов нет
+    private final TunnelMultiplexer tunnelMultiplexer;
+
+    //Сколько ждать завершения уже установленных соединений при остановке
+    private final long drainTimeoutMillis;
+
+    //Запрошено прекращение приема новых подключений
+    private volatile boolean stopAcceptingRequested;
+
+    //Срабатывает, когда серверные сокеты закрыты и новые подключения больше не принимаются
+    private final CountDownLatch acceptingStopped = new CountDownLatch(1);
+
+    public EventDispatcher(final List<NonBlockingServerSocketProxyChannel> proxyChannels,
+                           final HealthChecker healthChecker,
+                           final ClientAdmissionTable clientAdmission,
+                           final TrafficMonitor trafficMonitor,
+                           final ConnectionRegistry connectionRegistry,
+                           final long drainTimeoutMillis) throws IOException, IllegalArgumentException {
 
         if (proxyChannels.isEmpty()) {
             throw new IllegalArgumentException("There is no channels to listen to.");
         }
 
         this.proxyChannels = proxyChannels;
+        this.healthChecker = healthChecker;
+        this.clientAdmission = clientAdmission;
+        this.trafficMonitor = trafficMonitor;
+        this.connectionRegistry = connectionRegistry;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.upstreamPools = createUpstreamPools(proxyChannels);
+        this.responseCaches = createResponseCaches(proxyChannels);
+        this.tunnelMultiplexer = createTunnelMultiplexer(proxyChannels);
 
         this.eventHandlerPool = Executors.newFixedThreadPool(PlatformDependent.getSuitablePoolSizeForIOBoundTasks());
 
@@ -53,6 +116,78 @@ public class EventDispatcher implements Runnable {
     }
 
 
+    /**
+     * Создает пулы соединений с удаленными серверами для каналов в режиме HTTP
+     * @param proxyChannels список каналов серверных сокетов
+     * @return Map пулов -- настройка канала --> пул
+     */
+    private static Map<ProxyProperty, UpstreamConnectionPool> createUpstreamPools(
+            final List<NonBlockingServerSocketProxyChannel> proxyChannels) {
+
+        final Map<ProxyProperty, UpstreamConnectionPool> pools = new HashMap<ProxyProperty, UpstreamConnectionPool>();
+
+        for (final NonBlockingServerSocketProxyChannel channel : proxyChannels) {
+            final ProxyProperty proxyProperty = channel.getProxyProperty();
+
+            if (proxyProperty.getMode() == ProxyMode.HTTP) {
+                pools.put(proxyProperty, new UpstreamConnectionPool(
+                        proxyProperty.getRemoteEndpoint()));
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Создает кэши ответов для каналов в режиме HTTP, для которых задан размер кэша, и регистрирует их метрики в JMX
+     * @param proxyChannels список каналов серверных сокетов
+     * @return Map кэшей -- настройка канала --> кэш
+     */
+    private static Map<ProxyProperty, HttpResponseCache> createResponseCaches(
+            final List<NonBlockingServerSocketProxyChannel> proxyChannels) {
+
+        final Map<ProxyProperty, HttpResponseCache> caches = new HashMap<ProxyProperty, HttpResponseCache>();
+
+        for (final NonBlockingServerSocketProxyChannel channel : proxyChannels) {
+            final ProxyProperty proxyProperty = channel.getProxyProperty();
+
+            if (proxyProperty.getCacheSize() <= 0) {
+                continue;
+            }
+
+            if (proxyProperty.getMode() != ProxyMode.HTTP) {
+                LOGGER.warn("Response cache of " + proxyProperty.getName() + " is ignored: it requires http mode");
+                continue;
+            }
+
+            final HttpResponseCache cache = new HttpResponseCache(proxyProperty.getCacheSize());
+            JmxSupport.register(cache, "HttpResponseCache", proxyProperty.getName());
+            caches.put(proxyProperty, cache);
+        }
+        return caches;
+    }
+
+    /**
+     * Создает обработчик туннельных соединений, если есть каналы в режимах tunnel или tunnel-exit, и регистрирует
+     * его метрики в JMX
+     * @param proxyChannels список каналов серверных сокетов
+     * @return обработчик или null
+     * @throws IOException
+     */
+    private static TunnelMultiplexer createTunnelMultiplexer(final List<NonBlockingServerSocketProxyChannel> proxyChannels)
+            throws IOException {
+
+        for (final NonBlockingServerSocketProxyChannel channel : proxyChannels) {
+            final ProxyMode mode = channel.getProxyProperty().getMode();
+
+            if (mode == ProxyMode.TUNNEL || mode == ProxyMode.TUNNEL_EXIT) {
+                final TunnelMultiplexer tunnelMultiplexer = new TunnelMultiplexer();
+                JmxSupport.register(tunnelMultiplexer, "TunnelMultiplexer", "tunnels");
+                return tunnelMultiplexer;
+            }
+        }
+        return null;
+    }
+
     /**
      * Открываем NIO селектор и регистрируем в нем каналы серверных сокетов
      * @return Сконфигурированный NIO селектор
@@ -64,7 +199,7 @@ public class EventDispatcher implements Runnable {
 
         for (final NonBlockingServerSocketProxyChannel channel : this.proxyChannels) {
             final ProxyProperty proxyProperty = channel.getProxyProperty();
-            LOGGER.info("Registering event listener for " + proxyProperty.getLocalPort() + " port");
+            LOGGER.info("Registering event listener for " + proxyProperty.getLocalEndpoint());
 
             channel.register(eventSelector, SelectionKey.OP_ACCEPT, proxyProperty);
         }
@@ -75,7 +210,11 @@ public class EventDispatcher implements Runnable {
     @Override
     public void run() {
         try {
-            while (this.eventSelector.isOpen()) {
+            if (this.tunnelMultiplexer != null) {
+                this.tunnelMultiplexer.start();
+            }
+
+            while (this.eventSelector.isOpen() && !this.stopAcceptingRequested) {
 
                 this.eventSelector.select();
 
@@ -90,6 +229,10 @@ public class EventDispatcher implements Runnable {
                 }
             }
 
+            if (this.stopAcceptingRequested) {
+                acceptPendingConnections();
+            }
+
         } catch (Exception e) {
             LOGGER.error("Unexpected error during event processing", e);
         } finally {
@@ -108,7 +251,74 @@ public class EventDispatcher implements Runnable {
             this.eventSelector.close();
         } catch (Exception e) {
             LOGGER.error("Unexpected error during shutdown of the main event processing", e);
+        } finally {
+            this.acceptingStopped.countDown();
+        }
+
+        drainEventHandlers();
+    }
+
+    /**
+     * Ожидает завершения обработки уже установленных соединений. Если они не завершились за отведенное время,
+     * обработчики прерываются.
+     */
+    private void drainEventHandlers() {
+        try {
+            LOGGER.info("Waiting up to " + this.drainTimeoutMillis + " ms for active connections to finish");
+
+            final long drainDeadline = System.currentTimeMillis() + this.drainTimeoutMillis;
+
+            if (!this.eventHandlerPool.awaitTermination(this.drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Active connections have not finished in time. Closing them forcibly");
+                this.eventHandlerPool.shutdownNow();
+            }
+
+            if (this.tunnelMultiplexer != null) {
+                this.tunnelMultiplexer.shutdown(Math.max(0L, drainDeadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            this.eventHandlerPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            //Дорабатывающие HTTP обработчики возвращают соединения в пулы, поэтому пулы закрываются последними
+            for (final UpstreamConnectionPool upstreamPool : this.upstreamPools.values()) {
+                upstreamPool.close();
+            }
+        }
+    }
+
+    /**
+     * Прекратить прием новых подключений. Подключения, уже ожидающие в очереди серверных сокетов, будут приняты
+     * и обработаны, после чего серверные сокеты закрываются, а установленные соединения дорабатывают
+     * не дольше заданного времени. Метод возвращает управление, когда серверные сокеты закрыты.
+     * @throws InterruptedException
+     */
+    public void stopAccepting() throws InterruptedException {
+
+        this.stopAcceptingRequested = true;
+        this.eventSelector.wakeup();
+
+        this.acceptingStopped.await();
+    }
+
+    /**
+     * Принимает все подключения, оставшиеся в очередях серверных сокетов перед их закрытием, чтобы ни один
+     * клиент, уже получивший подтверждение соединения от ядра, не получил отказ
+     * @throws IOException
+     */
+    private void acceptPendingConnections() throws IOException {
+
+        for (final NonBlockingServerSocketProxyChannel channel : this.proxyChannels) {
+
+            SocketChannel socketChannel;
+            while ((socketChannel = channel.accept()) != null) {
+
+                socketChannel.configureBlocking(false);
+                handleAcceptedConnection(socketChannel, channel.getProxyProperty());
+            }
         }
+
+        LOGGER.info("Listening has been stopped. Pending connections have been accepted");
     }
 
     /**
@@ -124,17 +334,100 @@ public class EventDispatcher implements Runnable {
                 final SocketChannel socketChannel = this.acceptConnection(event);
                 final ProxyProperty proxyProperty = (ProxyProperty)event.attachment();
 
-                LOGGER.info("Connection request from " + socketChannel.socket() + " has been accepted");
-
-                this.dispatchEventHandling(socketChannel, proxyProperty);
+                if (socketChannel != null) {
+                    handleAcceptedConnection(socketChannel, proxyProperty);
+                }
             }
         }
     }
 
+    /**
+     * Обработка принятого подключения: проверка здоровья удаленного сервера и передача подключения обработчику
+     * @param socketChannel канал сокета ассоциированный с принятым соединением
+     * @param proxyProperty настройка канала маршрутизации
+     * @throws IOException
+     */
+    private void handleAcceptedConnection(final SocketChannel socketChannel, final ProxyProperty proxyProperty)
+            throws IOException {
+
+        final BackendHealth backendHealth = this.healthChecker.getHealth(proxyProperty);
+
+        final InetAddress clientAddress = getClientAddress(socketChannel);
+        this.trafficMonitor.recordConnection(clientAddress, proxyProperty.getName());
+
+        //Туннельное соединение несет потоки многих клиентов, поэтому здоровье сервера проверяется для каждого потока
+        if (proxyProperty.getMode() == ProxyMode.TUNNEL_EXIT) {
+            LOGGER.info("Tunnel connection request from " + SocketEndpoints.describe(socketChannel)
+                    + " has been accepted");
+            this.tunnelMultiplexer.acceptTunnel(socketChannel, proxyProperty, backendHealth);
+            return;
+        }
+
+        //Проверяем клиента до создания обработчика и выделения буферов
+        final int admissionSlot = admitClient(clientAddress);
+
+        if (admissionSlot == ClientAdmissionTable.REJECTED) {
+
+            LOGGER.debug("Connection request from " + SocketEndpoints.describe(socketChannel) + " has been refused: "
+                    + "client connection limit is exceeded");
+            //Сброс соединения не оставляет сокет в TIME_WAIT
+            socketChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            socketChannel.close();
+            return;
+        }
+
+        if (!backendHealth.tryAcquirePermission()) {
+
+            LOGGER.warn("Connection request from " + SocketEndpoints.describe(socketChannel) + " has been refused: "
+                    + backendHealth.getBackendName() + " is unhealthy");
+            releaseClient(admissionSlot);
+            socketChannel.close();
+            return;
+        }
+
+        LOGGER.info("Connection request from " + SocketEndpoints.describe(socketChannel) + " has been accepted");
+
+        this.dispatchEventHandling(socketChannel, proxyProperty, backendHealth, clientAddress, admissionSlot);
+    }
+
+    /**
+     * @param socketChannel канал сокета ассоциированный с принятым соединением
+     * @return IP адрес клиента или null, если соединение принято не по IP
+     * @throws IOException
+     */
+    private static InetAddress getClientAddress(final SocketChannel socketChannel) throws IOException {
+
+        final SocketAddress remoteAddress = socketChannel.getRemoteAddress();
+        if (!(remoteAddress instanceof InetSocketAddress)) {
+            return null;
+        }
+        return ((InetSocketAddress) remoteAddress).getAddress();
+    }
+
+    /**
+     * Проверка ограничений подключений клиента
+     * @param clientAddress IP адрес клиента или null, если адрес неизвестен
+     * @return номер записи клиента в таблице ограничений, {@link ClientAdmissionTable#NOT_TRACKED}
+     * или {@link ClientAdmissionTable#REJECTED}
+     */
+    private int admitClient(final InetAddress clientAddress) {
+
+        if (this.clientAdmission == null || clientAddress == null) {
+            return ClientAdmissionTable.NOT_TRACKED;
+        }
+        return this.clientAdmission.tryAdmit(clientAddress);
+    }
+
+    private void releaseClient(final int admissionSlot) {
+        if (this.clientAdmission != null) {
+            this.clientAdmission.release(admissionSlot);
+        }
+    }
+
     /**
      * Принять входящее подключение от клиента.
      * @param event событие, уведомляющее о готовности приянть входящее соединение
-     * @return канал сокета ассоциированный с принятым соединением.
+     * @return канал сокета ассоциированный с принятым соединением или null, если подключение уже было принято.
      * @throws IOException
      */
     private SocketChannel acceptConnection(final SelectionKey event) throws IOException {
@@ -142,7 +435,9 @@ public class EventDispatcher implements Runnable {
         final ServerSocketChannel serverSocketChannel =  (ServerSocketChannel) event.channel();
 
         final SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
+        if (socketChannel != null) {
+            socketChannel.configureBlocking(false);
+        }
 
         return socketChannel;
     }
@@ -153,15 +448,115 @@ public class EventDispatcher implements Runnable {
      * @param proxyProperty настройка для канала, в котором содержатся: порт, который будет слушать сокет
      *                      (в даном случае, нас не интересует), а также адрес (хост, порт) с которым будет
      *                      происходить обмен данными
+     * @param backendHealth состояние здоровья удаленного сервера
+     * @param clientAddress IP адрес клиента или null, если адрес неизвестен
+     * @param admissionSlot номер записи клиента в таблице ограничений, освобождается после закрытия соединения
      * @throws IOException
      */
-    private void dispatchEventHandling(final SocketChannel socketChannel, final ProxyProperty proxyProperty) {
+    private void dispatchEventHandling(final SocketChannel socketChannel, final ProxyProperty proxyProperty,
+                                       final BackendHealth backendHealth, final InetAddress clientAddress,
+                                       final int admissionSlot) {
+
+        final int connectionId = this.connectionRegistry.open(
+                this.connectionRegistry.getMappingIndex(proxyProperty.getName()));
+
+        final Runnable clientRelease = new Runnable() {
+            @Override
+            public void run() {
+                releaseClient(admissionSlot);
+                EventDispatcher.this.connectionRegistry.close(connectionId);
+            }
+        };
+
+        final TrafficCounter trafficCounter = this.trafficMonitor.newCounter(clientAddress, proxyProperty.getName(),
+                this.connectionRegistry, connectionId);
+
+        if (proxyProperty.getMode() == ProxyMode.TUNNEL) {
+            this.connectionRegistry.activate(connectionId);
+            this.tunnelMultiplexer.openStream(socketChannel, proxyProperty, backendHealth, trafficCounter,
+                    clientRelease);
+            return;
+        }
 
         try {
-            this.eventHandlerPool.execute(new EventHandler(socketChannel, proxyProperty));
+            this.eventHandlerPool.execute(new ReleasingTask(
+                    createEventHandler(socketChannel, proxyProperty, backendHealth, trafficCounter, connectionId),
+                    clientRelease, this.connectionRegistry, connectionId));
         } catch (IOException e) {
 
             LOGGER.error("Cannot execute the task now. Proceed to the next event", e);
+            backendHealth.onFailure();
+            clientRelease.run();
+            closeRejectedConnection(socketChannel);
+        } catch (RejectedExecutionException e) {
+
+            LOGGER.error("Event handler pool has been shut down. Proceed to the next event", e);
+            clientRelease.run();
+            closeRejectedConnection(socketChannel);
+        }
+    }
+
+    /**
+     * Создает обработчик принятого подключения в соответствии с режимом работы канала
+     * @param socketChannel канал сокета ассоциированный с принятым соединением
+     * @param proxyProperty настройка канала маршрутизации
+     * @param backendHealth состояние здоровья удаленного сервера
+     * @param trafficCounter счетчик байтов соединения
+     * @param connectionId номер соединения в реестре
+     * @return обработчик подключения
+     * @throws IOException
+     */
+    private Runnable createEventHandler(final SocketChannel socketChannel, final ProxyProperty proxyProperty,
+                                        final BackendHealth backendHealth, final TrafficCounter trafficCounter,
+                                        final int connectionId) throws IOException {
+
+        if (proxyProperty.getMode() == ProxyMode.HTTP) {
+            return new HttpEventHandler(socketChannel, proxyProperty, backendHealth,
+                    this.upstreamPools.get(proxyProperty), this.responseCaches.get(proxyProperty),
+                    trafficCounter, this.connectionRegistry, connectionId);
+        }
+        return new EventHandler(socketChannel, proxyProperty, backendHealth, trafficCounter,
+                this.connectionRegistry, connectionId);
+    }
+
+    private void closeRejectedConnection(final SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close rejected connection " + SocketEndpoints.describe(socketChannel), e);
+        }
+    }
+
+    /**
+     * Обработчик соединения, который отмечает в реестре начало обслуживания, а после завершения освобождает
+     * запись клиента в таблице ограничений и номер соединения в реестре
+     */
+    private static final class ReleasingTask implements Runnable {
+
+        private final Runnable eventHandler;
+
+        private final Runnable clientRelease;
+
+        private final ConnectionRegistry connectionRegistry;
+
+        private final int connectionId;
+
+        private ReleasingTask(final Runnable eventHandler, final Runnable clientRelease,
+                              final ConnectionRegistry connectionRegistry, final int connectionId) {
+            this.eventHandler = eventHandler;
+            this.clientRelease = clientRelease;
+            this.connectionRegistry = connectionRegistry;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.connectionRegistry.activate(this.connectionId);
+                this.eventHandler.run();
+            } finally {
+                this.clientRelease.run();
+            }
         }
     }
-}
+}
\ No newline at end of file
@@ -2,11 +2,14 @@ package ru.pmapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.registry.ConnectionRegistry;
+import ru.pmapper.traffic.TrafficCounter;
 import ru.pmapper.util.PlatformDependent;
+import ru.pmapper.util.SocketEndpoints;
 import ru.pmapper.util.properties.ProxyProperty;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -27,43 +30,66 @@ public class EventHandler implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EventHandler.class);
 
-    //Размер буфера передачи данных по-умолчанию
-    private static final int BYTE_BUFFER_DEFAULT_CAPACITY = 24588;
+    //Буферы передачи данных от клиента к серверу и от сервера к клиенту. Буфер берется из реестра соединений на время
+    //передачи и возвращается, когда данные полностью записаны, поэтому простаивающее соединение буферов не держит.
+    //Пока буфер не записан в канал-приемник полностью, канал-источник не читается
+    private ByteBuffer localToRemoteBuffer;
+    private ByteBuffer remoteToLocalBuffer;
 
-    //Буфер передачи данных
-    private ByteBuffer transferBuffer;
+    //В буфере остались данные, не записанные в канал-приемник
+    private boolean localToRemotePending;
+    private boolean remoteToLocalPending;
 
     //Канал сокета, который представляет собой соединение клиент <--> маршрутизатор портов
     private final SocketChannel localSocketChannel;
     //Канал сокета, который представляет собой соединение маршрутизатор портов <--> внешний сервер
     private SocketChannel remoteSocketChannel;
 
+    private SelectionKey localKey;
+    private SelectionKey remoteKey;
+
     //Настройка для канала маршрутизации
     private final ProxyProperty proxyProperty;
 
+    //Состояние здоровья удаленного сервера, обновляется по результатам соединения и обмена данными
+    private final BackendHealth backendHealth;
+
     private final Selector eventSelector;
 
+    //Устанавливает соединение с удаленным сервером, перебирая все его адреса
+    private final HappyEyeballsConnector remoteConnector;
+
+    //Счетчик байтов соединения для поиска самых активных клиентов
+    private final TrafficCounter trafficCounter;
+
+    //Реестр соединений, выдающий буферы передачи, и номер соединения в нем
+    private final ConnectionRegistry connectionRegistry;
+    private final int connectionId;
+
     /**
      * Инициализация обработчика событий, который будет обрабатывать события передачи данных через маршрутизатор портов
      * @param channel канал сокета, который представляет собой соединение клиент <--> маршрутизатор портов
      * @param property настройка для канала маршрутизации
+     * @param backendHealth состояние здоровья удаленного сервера
+     * @param trafficCounter счетчик байтов соединения
+     * @param connectionRegistry реестр соединений
+     * @param connectionId номер соединения в реестре
      * @throws IOException
      */
-    public EventHandler(final SocketChannel channel, final ProxyProperty property) throws IOException {
+    public EventHandler(final SocketChannel channel, final ProxyProperty property,
+                        final BackendHealth backendHealth, final TrafficCounter trafficCounter,
+                        final ConnectionRegistry connectionRegistry, final int connectionId) throws IOException {
 
         this.proxyProperty = property;
+        this.backendHealth = backendHealth;
+        this.trafficCounter = trafficCounter;
+        this.connectionRegistry = connectionRegistry;
+        this.connectionId = connectionId;
 
         this.localSocketChannel = channel;
-        this.remoteSocketChannel = configureAndGetOutputChannel();
 
         this.eventSelector = Selector.open();
-
-        //Воспользуемся возможностью использовать нативный ввод/вывод, используя direct буфер
-        this.transferBuffer = ByteBuffer.allocateDirect(getApplicationBufferSize());
-    }
-
-    private int getApplicationBufferSize() {
-        return BYTE_BUFFER_DEFAULT_CAPACITY;
+        this.remoteConnector = new HappyEyeballsConnector(this.proxyProperty, this.eventSelector);
     }
 
 
@@ -71,9 +97,16 @@ public class EventHandler implements Runnable {
     public void run() {
 
         try {
-            this.remoteSocketChannel.register(this.eventSelector, SelectionKey.OP_CONNECT);
+            startRemoteConnection();
+
+            while (this.eventSelector.isOpen()) {
 
-            while (this.eventSelector.isOpen() && this.eventSelector.select() > 0) {
+                final int readyEvents = this.eventSelector.select(getSelectTimeout());
+
+                //После установки соединения пустая выборка означает, что поток был прерван
+                if (readyEvents == 0 && isRemoteConnected()) {
+                    break;
+                }
 
                 final Iterator<SelectionKey> events = this.eventSelector.selectedKeys().iterator();
 
@@ -84,12 +117,22 @@ public class EventHandler implements Runnable {
 
                     processEvent(event);
                 }
+
+                if (!isRemoteConnected() && this.eventSelector.isOpen()) {
+                    this.remoteConnector.onTimer();
+                }
             }
 
-            LOGGER.debug("End serving port mapping for " + this.remoteSocketChannel.socket());
+            LOGGER.debug("End serving port mapping for " + SocketEndpoints.describe(this.localSocketChannel));
         } catch (IOException e) {
 
-            LOGGER.error("Unexpected error during event processing", e);
+            if (isRemoteConnected()) {
+                LOGGER.error("Unexpected error during event processing", e);
+            } else {
+                LOGGER.warn("Cannot connect to " + this.proxyProperty.getRemoteEndpoint()
+                        + " for " + SocketEndpoints.describe(this.localSocketChannel), e);
+                this.backendHealth.onFailure();
+            }
         } finally {
             shutdownProcessing();
         }
@@ -97,8 +140,12 @@ public class EventHandler implements Runnable {
 
     private void shutdownProcessing() {
         try {
+            this.trafficCounter.flush();
+            this.remoteConnector.abort();
             this.localSocketChannel.close();
-            this.remoteSocketChannel.close();
+            if (this.remoteSocketChannel != null) {
+                this.remoteSocketChannel.close();
+            }
             this.eventSelector.close();
         } catch (Exception e) {
             LOGGER.error("Unexpected error during shutdown of event processing", e);
@@ -107,20 +154,29 @@ public class EventHandler implements Runnable {
 
 
     /**
-     * Возврщает сконфигурированный канал сокета, который представляет собой соединение маршрутизатор портов <--> внешний сервер
-     * @return сконфигурированный канал сокета
+     * Запускает установку соединения маршрутизатор портов <--> внешний сервер
      * @throws IOException
      */
-    private SocketChannel configureAndGetOutputChannel() throws IOException {
+    private void startRemoteConnection() throws IOException {
 
-        final InetSocketAddress outputAddress
-                = new InetSocketAddress(this.proxyProperty.getRemoteHost(), this.proxyProperty.getRemotePort());
+        this.remoteConnector.start();
 
-        final SocketChannel outputChannel = SocketChannel.open();
-        outputChannel.configureBlocking(false);
-        outputChannel.connect(outputAddress);
+        if (this.remoteConnector.isConnected()) {
+            onRemoteConnected();
+        }
+    }
 
-        return outputChannel;
+    private boolean isRemoteConnected() {
+        return this.remoteSocketChannel != null;
+    }
+
+    /**
+     * Возвращает время ожидания событий селектора. Пока соединение с удаленным сервером не установлено,
+     * селектор должен просыпаться для запуска следующих попыток соединения и проверки таймаута
+     * @return время в миллисекундах, 0 - ждать без ограничения
+     */
+    private long getSelectTimeout() {
+        return isRemoteConnected() ? 0L : this.remoteConnector.getSelectTimeout();
     }
 
     /**
@@ -135,8 +191,19 @@ public class EventHandler implements Runnable {
 
             if (event.isConnectable()){
                 finishSocketChannelConnection(event, tmp);
-            } else if(event.isReadable()) {
-                LOGGER.debug("A valid readable event from " + tmp.socket() + " has been registered");
+                return;
+            }
+
+            if (event.isWritable() && !writePendingData(tmp)) {
+
+                tmp.close();
+                event.cancel();
+                event.selector().close();
+                return;
+            }
+
+            if (event.isValid() && event.isReadable()) {
+                LOGGER.debug("A valid readable event from " + SocketEndpoints.describe(tmp) + " has been registered");
 
                 final boolean exchangeResult = exchangeDataBetweenChannels(tmp);
 
@@ -157,13 +224,26 @@ public class EventHandler implements Runnable {
      * @throws IOException
      */
     private void finishSocketChannelConnection(final SelectionKey event, final SocketChannel tmp) throws IOException {
-        LOGGER.debug("A valid connectable event from " + tmp.socket() + " has been registered");
+        LOGGER.debug("A valid connectable event from " + SocketEndpoints.describe(tmp) + " has been registered");
+
+        if (this.remoteConnector.onConnectable(event)) {
+            onRemoteConnected();
+        }
+    }
+
+    /**
+     * Соединение с удаленным сервером установлено, начинаем обмен данными
+     * @throws IOException
+     */
+    private void onRemoteConnected() throws IOException {
 
-        tmp.finishConnect();
-        this.localSocketChannel.register(event.selector(), SelectionKey.OP_READ);
-        event.interestOps(SelectionKey.OP_READ);
+        this.remoteSocketChannel = this.remoteConnector.getConnectedChannel();
+        this.backendHealth.onConnected();
 
-        LOGGER.debug(tmp + " was connected to remote entity");
+        this.remoteKey = this.remoteSocketChannel.register(this.eventSelector, SelectionKey.OP_READ);
+        this.localKey = this.localSocketChannel.register(this.eventSelector, SelectionKey.OP_READ);
+
+        LOGGER.debug(this.remoteSocketChannel + " was connected to remote entity");
     }
 
 
@@ -192,40 +272,157 @@ public class EventHandler implements Runnable {
      */
     private boolean transferData(final SocketChannel inputChannel, final SocketChannel outputChannel) {
 
+        final boolean localToRemote = inputChannel == this.localSocketChannel;
+
+        //Событие чтения выбрано до того, как данные этого направления перестали успевать записываться
+        if (localToRemote ? this.localToRemotePending : this.remoteToLocalPending) {
+            return true;
+        }
+
+        final ByteBuffer transferBuffer = acquireTransferBuffer(localToRemote);
+
         int bytesRead;
 
-        try {
-            this.transferBuffer.clear();
+        //Канал, операция над которым выполняется в данный момент. Нужен, чтобы понять, кто сбросил соединение
+        SocketChannel activeChannel = inputChannel;
 
+        try {
             do {
 
-                bytesRead = inputChannel.read(this.transferBuffer);
+                activeChannel = inputChannel;
+                bytesRead = inputChannel.read(transferBuffer);
 
                 if (bytesRead == -1) {
                     logGracefulShutdown(inputChannel);
+                    this.backendHealth.onGracefulClose();
                     return false;
                 }
 
-                this.transferBuffer.flip();
-                outputChannel.write(this.transferBuffer);
-                this.transferBuffer.compact();
+                if (localToRemote) {
+                    this.trafficCounter.addReceived(bytesRead);
+                } else {
+                    this.trafficCounter.addSent(bytesRead);
+                }
+
+                transferBuffer.flip();
+                activeChannel = outputChannel;
+                outputChannel.write(transferBuffer);
+
+                //Приемник не успевает: ждем готовности к записи и не читаем источник, пока буфер не записан
+                if (transferBuffer.hasRemaining()) {
+                    setPending(localToRemote, true);
+                    return true;
+                }
+                transferBuffer.clear();
 
             } while (bytesRead > 0);
 
+            releaseTransferBuffer(localToRemote);
             return true;
 
         } catch (IOException e) {
-            logForceShutDown(inputChannel, e);
+            logForceShutDown(activeChannel, e);
+
+            if (activeChannel == this.remoteSocketChannel) {
+                this.backendHealth.onFailure();
+            }
             return false;
         }
     }
 
 
+    /**
+     * Дописывает в канал-приемник данные, которые не удалось записать сразу, и возобновляет чтение источника
+     * @param outputChannel канал, готовый к записи
+     * @return результат операции
+     */
+    private boolean writePendingData(final SocketChannel outputChannel) {
+
+        final ByteBuffer transferBuffer = outputChannel == this.remoteSocketChannel
+                ? this.localToRemoteBuffer
+                : this.remoteToLocalBuffer;
+
+        try {
+            outputChannel.write(transferBuffer);
+        } catch (IOException e) {
+            logForceShutDown(outputChannel, e);
+
+            if (outputChannel == this.remoteSocketChannel) {
+                this.backendHealth.onFailure();
+            }
+            return false;
+        }
+
+        if (!transferBuffer.hasRemaining()) {
+            transferBuffer.clear();
+            releaseTransferBuffer(outputChannel == this.remoteSocketChannel);
+            setPending(outputChannel == this.remoteSocketChannel, false);
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает буфер передачи направления, при необходимости получая его из реестра соединений
+     * @param localToRemote направление клиент --> сервер
+     * @return пустой буфер или буфер с данными, ожидающими записи
+     */
+    private ByteBuffer acquireTransferBuffer(final boolean localToRemote) {
+
+        if (localToRemote) {
+            if (this.localToRemoteBuffer == null) {
+                this.localToRemoteBuffer = this.connectionRegistry.acquireBuffer(this.connectionId,
+                        ConnectionRegistry.LOCAL_TO_REMOTE);
+            }
+            return this.localToRemoteBuffer;
+        }
+
+        if (this.remoteToLocalBuffer == null) {
+            this.remoteToLocalBuffer = this.connectionRegistry.acquireBuffer(this.connectionId,
+                    ConnectionRegistry.REMOTE_TO_LOCAL);
+        }
+        return this.remoteToLocalBuffer;
+    }
+
+    /**
+     * Возвращает записанный буфер передачи направления в реестр соединений
+     * @param localToRemote направление клиент --> сервер
+     */
+    private void releaseTransferBuffer(final boolean localToRemote) {
+
+        if (localToRemote) {
+            if (this.connectionRegistry.releaseBuffer(this.connectionId, ConnectionRegistry.LOCAL_TO_REMOTE)) {
+                this.localToRemoteBuffer = null;
+            }
+        } else if (this.connectionRegistry.releaseBuffer(this.connectionId, ConnectionRegistry.REMOTE_TO_LOCAL)) {
+            this.remoteToLocalBuffer = null;
+        }
+    }
+
+    /**
+     * Отмечает, остались ли незаписанные данные в одном из направлений, и пересчитывает интересующие события:
+     * канал читается, пока его данные не ждут записи, и ждет готовности к записи, пока не записаны данные для него
+     * @param localToRemote направление клиент --> сервер
+     * @param pending остались незаписанные данные
+     */
+    private void setPending(final boolean localToRemote, final boolean pending) {
+
+        if (localToRemote) {
+            this.localToRemotePending = pending;
+        } else {
+            this.remoteToLocalPending = pending;
+        }
+
+        this.localKey.interestOps((this.localToRemotePending ? 0 : SelectionKey.OP_READ)
+                | (this.remoteToLocalPending ? SelectionKey.OP_WRITE : 0));
+        this.remoteKey.interestOps((this.remoteToLocalPending ? 0 : SelectionKey.OP_READ)
+                | (this.localToRemotePending ? SelectionKey.OP_WRITE : 0));
+    }
+
     private void logForceShutDown(SocketChannel inputChannel, IOException e) {
-        LOGGER.warn(inputChannel.socket() + " has been closed forcibly", e);
+        LOGGER.warn(SocketEndpoints.describe(inputChannel) + " has been closed forcibly", e);
     }
 
     private void logGracefulShutdown(SocketChannel inputChannel) {
-        LOGGER.info(inputChannel.socket() + " has been closed gracefully");
+        LOGGER.info(SocketEndpoints.describe(inputChannel) + " has been closed gracefully");
     }
 }
@@ -0,0 +1,296 @@
+package ru.pmapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Устанавливает соединение с удаленным сервером по алгоритму Happy Eyeballs (RFC 8305). Попытки соединения
+ * со всеми адресами, в которые разрешается имя сервера, запускаются по очереди с небольшой задержкой, не дожидаясь
+ * неудачи предыдущей попытки. Побеждает первое установленное соединение, остальные попытки закрываются.
+ * Адреса IPv6 и IPv4 чередуются, поэтому недоступное семейство адресов не задерживает клиента.
+ * Если удаленный сервер доступен через Unix domain сокет, выполняется единственная попытка соединения.
+ *
+ * Все попытки регистрируются на селекторе обработчика событий, сам объект не потокобезопасен.
+ */
+public class HappyEyeballsConnector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HappyEyeballsConnector.class);
+
+    //Задержка перед запуском следующей попытки соединения (Connection Attempt Delay из RFC 8305)
+    private static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250L;
+
+    //Счетчики попыток всех соединений
+    private static final ConnectionAttemptStatistics STATISTICS = new ConnectionAttemptStatistics();
+
+    private final ProxyProperty proxyProperty;
+
+    private final Selector eventSelector;
+
+    //Момент, после которого соединение считается неудавшимся. Отсчитывается от вызова start()
+    private long deadline;
+
+    //Адреса, попытки соединения с которыми еще не запускались
+    private final LinkedList<SocketAddress> pendingAddresses = new LinkedList<SocketAddress>();
+
+    //Запущенные и еще не завершенные попытки соединения
+    private final List<SocketChannel> attempts = new ArrayList<SocketChannel>(2);
+
+    //Момент запуска следующей попытки
+    private long nextAttemptAt;
+
+    //Установленное соединение
+    private SocketChannel connectedChannel;
+
+    //Последняя ошибка соединения
+    private IOException lastError;
+
+    /**
+     * @param proxyProperty настройка канала маршрутизации с адресом удаленного сервера и таймаутом соединения
+     * @param eventSelector селектор, на котором будут регистрироваться попытки соединения
+     */
+    public HappyEyeballsConnector(final ProxyProperty proxyProperty, final Selector eventSelector) {
+
+        this.proxyProperty = proxyProperty;
+        this.eventSelector = eventSelector;
+    }
+
+    /**
+     * Разрешает имя сервера и запускает первую попытку соединения
+     * @throws IOException если имя не разрешается или ни одну попытку не удалось запустить
+     */
+    public void start() throws IOException {
+
+        this.deadline = System.currentTimeMillis() + this.proxyProperty.getConnectTimeout();
+
+        if (this.proxyProperty.isRemoteUnixSocket()) {
+            this.pendingAddresses.add(UnixDomainSocketAddress.of(this.proxyProperty.getRemotePath()));
+        } else {
+            final InetAddress[] addresses = InetAddress.getAllByName(this.proxyProperty.getRemoteHost());
+
+            for (final InetAddress address : interleaveAddressFamilies(addresses)) {
+                this.pendingAddresses.add(new InetSocketAddress(address, this.proxyProperty.getRemotePort()));
+            }
+        }
+
+        startNextAttempt();
+        checkFailure();
+    }
+
+    /**
+     * Обрабатывает событие готовности одной из попыток завершить соединение
+     * @param event событие завершения соединения
+     * @return true, если соединение установлено
+     * @throws IOException если все попытки исчерпаны
+     */
+    public boolean onConnectable(final SelectionKey event) throws IOException {
+
+        final SocketChannel attempt = (SocketChannel) event.channel();
+
+        try {
+            if (attempt.finishConnect()) {
+                win(attempt);
+                return true;
+            }
+        } catch (IOException e) {
+
+            LOGGER.debug("Connection attempt to " + attempt + " has failed", e);
+            STATISTICS.onFailed();
+            this.lastError = e;
+
+            this.attempts.remove(attempt);
+            closeAttempt(attempt);
+
+            //Неудавшаяся попытка не должна задерживать следующую
+            startNextAttempt();
+            checkFailure();
+        }
+        return false;
+    }
+
+    /**
+     * Обрабатывает истечение времени ожидания селектора: запускает очередную попытку или завершает
+     * соединение по таймауту
+     * @throws IOException если время на соединение истекло
+     */
+    public void onTimer() throws IOException {
+
+        final long now = System.currentTimeMillis();
+
+        if (now >= this.deadline) {
+            abort();
+            throw new SocketTimeoutException("Connection to " + this.proxyProperty.getRemoteEndpoint()
+                    + " has timed out");
+        }
+
+        if (now >= this.nextAttemptAt) {
+            startNextAttempt();
+            checkFailure();
+        }
+    }
+
+    /**
+     * Возвращает время, на которое можно заблокироваться в ожидании событий селектора
+     * @return время в миллисекундах, всегда больше нуля
+     */
+    public long getSelectTimeout() {
+
+        long wakeUpAt = this.deadline;
+        if (!this.pendingAddresses.isEmpty()) {
+            wakeUpAt = Math.min(wakeUpAt, this.nextAttemptAt);
+        }
+        return Math.max(1L, wakeUpAt - System.currentTimeMillis());
+    }
+
+    public boolean isConnected() {
+        return this.connectedChannel != null;
+    }
+
+    public SocketChannel getConnectedChannel() {
+        return connectedChannel;
+    }
+
+    /**
+     * Закрывает все незавершенные попытки соединения
+     */
+    public void abort() {
+        for (final SocketChannel attempt : this.attempts) {
+            closeAttempt(attempt);
+        }
+        this.attempts.clear();
+        this.pendingAddresses.clear();
+    }
+
+    /**
+     * @return счетчики попыток всех соединений, регистрируются в JMX
+     */
+    public static ConnectionAttemptStatistics getStatistics() {
+        return STATISTICS;
+    }
+
+    /**
+     * Запускает попытку соединения со следующим адресом из очереди
+     */
+    private void startNextAttempt() {
+
+        while (!this.pendingAddresses.isEmpty() && this.connectedChannel == null) {
+
+            final SocketAddress address = this.pendingAddresses.removeFirst();
+            SocketChannel attempt = null;
+
+            try {
+                attempt = SocketEndpoints.openChannel(address);
+                attempt.configureBlocking(false);
+
+                STATISTICS.onStarted();
+                this.nextAttemptAt = System.currentTimeMillis() + CONNECTION_ATTEMPT_DELAY_MILLIS;
+
+                if (attempt.connect(address)) {
+                    this.attempts.add(attempt);
+                    win(attempt);
+                } else {
+                    attempt.register(this.eventSelector, SelectionKey.OP_CONNECT);
+                    this.attempts.add(attempt);
+                }
+                return;
+
+            } catch (IOException e) {
+
+                LOGGER.debug("Connection attempt to " + address + " cannot be started", e);
+                STATISTICS.onFailed();
+                this.lastError = e;
+                closeAttempt(attempt);
+            }
+        }
+    }
+
+    /**
+     * Проверяет, остались ли незавершенные попытки или адреса для новых попыток
+     * @throws IOException если все попытки исчерпаны
+     */
+    private void checkFailure() throws IOException {
+
+        if (this.connectedChannel == null && this.attempts.isEmpty() && this.pendingAddresses.isEmpty()) {
+            throw this.lastError != null
+                    ? this.lastError
+                    : new IOException("No addresses to connect to " + this.proxyProperty.getRemoteEndpoint());
+        }
+    }
+
+    /**
+     * Фиксирует установленное соединение и закрывает остальные попытки
+     * @param winner попытка, которая соединилась первой
+     */
+    private void win(final SocketChannel winner) {
+
+        this.connectedChannel = winner;
+        this.attempts.remove(winner);
+
+        if (!this.attempts.isEmpty()) {
+            STATISTICS.onCancelled(this.attempts.size());
+            LOGGER.debug(this.attempts.size() + " slower connection attempts to "
+                    + this.proxyProperty.getRemoteEndpoint() + " have been cancelled");
+        }
+        abort();
+
+        LOGGER.debug("Connected to " + this.proxyProperty.getRemoteEndpoint() + " via " + winner);
+    }
+
+    private static void closeAttempt(final SocketChannel attempt) {
+        if (attempt != null) {
+            try {
+                attempt.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close connection attempt", e);
+            }
+        }
+    }
+
+    /**
+     * Упорядочивает адреса, чередуя семейства IPv6 и IPv4 и начиная с семейства первого адреса,
+     * как рекомендует RFC 8305. Порядок адресов внутри семейства сохраняется.
+     * @param addresses адреса в порядке, возвращенном системным резолвером
+     * @return упорядоченные адреса
+     */
+    private static List<InetAddress> interleaveAddressFamilies(final InetAddress[] addresses) {
+
+        final LinkedList<InetAddress> preferred = new LinkedList<InetAddress>();
+        final LinkedList<InetAddress> other = new LinkedList<InetAddress>();
+
+        final boolean preferIPv6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+
+        for (final InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == preferIPv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        final List<InetAddress> result = new ArrayList<InetAddress>(addresses.length);
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                result.add(preferred.removeFirst());
+            }
+            if (!other.isEmpty()) {
+                result.add(other.removeFirst());
+            }
+        }
+        return result;
+    }
+}
@@ -1,11 +1,26 @@
 package ru.pmapper;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.util.SocketEndpoints;
 import ru.pmapper.util.properties.ProxyProperty;
 
 import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 
 /**
  * Класс-обертка для неблокирующего серверного сокета
@@ -14,6 +29,12 @@ import java.nio.channels.spi.SelectorProvider;
  */
 public class NonBlockingServerSocketProxyChannel extends SelectableChannel {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(NonBlockingServerSocketProxyChannel.class);
+
+    //Маска типа файла и тип "сокет" в атрибуте unix:mode (S_IFMT, S_IFSOCK)
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int SOCKET_FILE_TYPE = 0140000;
+
     //Канал, через который будет происходить обмен данными
     private final ServerSocketChannel serverSocketChannel;
 
@@ -23,21 +44,142 @@ public class NonBlockingServerSocketProxyChannel extends SelectableChannel {
 
     /**
      * Создает неблокирующий канал серверного сокета
-     * @param proxyProperty - настройка для канала, в котором содержатся: порт, который будет слушать сокет, а
-     *                        также адрес (хост, порт) с которым будет происходить обмен данными
+     * @param proxyProperty - настройка для канала, в котором содержатся: порт или путь к Unix domain сокету,
+     *                        который будет слушать сокет, а также адрес с которым будет происходить обмен данными
+     * @param reusePort разрешить другому процессу слушать тот же порт (SO_REUSEPORT). Используется при передаче
+     *                  прослушивания новому процессу без перезапуска
      * @throws IOException
      */
-    public NonBlockingServerSocketProxyChannel(final ProxyProperty proxyProperty) throws IOException {
+    public NonBlockingServerSocketProxyChannel(final ProxyProperty proxyProperty, final boolean reusePort)
+            throws IOException {
 
-        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel = SocketEndpoints.openServerChannel(proxyProperty);
 
         this.proxyProperty = proxyProperty;
 
         this.serverSocketChannel.configureBlocking(false);
+
+        if (proxyProperty.isLocalUnixSocket()) {
+            bindUnixSocket(Paths.get(proxyProperty.getLocalPath()), reusePort);
+            return;
+        }
+
+        if (reusePort) {
+            if (!this.serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            this.serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+
         InetSocketAddress addressToBind = new InetSocketAddress(proxyProperty.getLocalPort());
         this.serverSocketChannel.socket().bind(addressToBind);
     }
 
+    /**
+     * Привязывает канал к Unix domain сокету. Файл сокета не удаляется при закрытии канала, так как к этому
+     * моменту его может уже занять новый процесс: оставшийся файл удаляется при следующем запуске
+     * @param path путь к файлу сокета
+     * @param replace занять файл сокета, даже если его слушает другой процесс
+     * @throws IOException
+     */
+    private void bindUnixSocket(final Path path, final boolean replace) throws IOException {
+
+        final boolean exists = Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+        if (exists && !isSocketFile(path)) {
+            throw new FileAlreadyExistsException(path.toString(), null, "file exists and is not a socket");
+        }
+
+        if (replace) {
+            //SO_REUSEPORT для Unix domain сокетов нет: слушаем временный файл и атомарно подменяем им файл старого
+            //процесса. Новые подключения приходят сюда, а старый процесс дорабатывает очередь своего сокета
+            final Path temporaryPath = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid());
+            Files.deleteIfExists(temporaryPath);
+            this.serverSocketChannel.bind(UnixDomainSocketAddress.of(temporaryPath));
+            Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        if (exists) {
+            if (isListening(path)) {
+                throw new BindException(path + " is already in use");
+            }
+            //Файл остался от завершившегося процесса
+            Files.delete(path);
+        }
+        this.serverSocketChannel.bind(UnixDomainSocketAddress.of(path));
+    }
+
+    /**
+     * Проверяет, что файл является Unix domain сокетом, а не обычным файлом, каталогом или ссылкой, которые
+     * нельзя удалять вместо оставшегося файла сокета
+     * @param path путь к файлу
+     * @return true, если файл - сокет
+     */
+    private static boolean isSocketFile(final Path path) throws IOException {
+
+        if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            final int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & FILE_TYPE_MASK) == SOCKET_FILE_TYPE;
+        }
+
+        //Без представления unix остается только отличить сокет от обычного файла, каталога и ссылки
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+
+    /**
+     * Проверяет, слушает ли какой-нибудь процесс Unix domain сокет. Если процесс жив, он увидит пробное
+     * подключение как обычное клиентское соединение, закрытое сразу после установки.
+     *
+     * Файл считается оставшимся от завершившегося процесса только при отказе в подключении (ECONNREFUSED). Любая
+     * другая ошибка (переполненная очередь слушающего сокета, нет прав на файл) не доказывает, что сокет никто не
+     * слушает, поэтому файл не удаляется
+     * @param path путь к файлу сокета
+     * @return false, если в подключении к сокету отказано
+     */
+    private static boolean isListening(final Path path) throws IOException {
+
+        LOGGER.info("Socket file " + path + " already exists. Probing it with a connection to check " +
+                "whether another process is listening");
+
+        try (SocketChannel probeChannel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probeChannel.configureBlocking(false);
+            probeChannel.connect(UnixDomainSocketAddress.of(path));
+            return true;
+        } catch (ConnectException e) {
+            //Для Unix domain сокета в неблокирующем режиме это только отказ в подключении
+            return false;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot probe socket file " + path + ". Assuming another process is listening", e);
+            return true;
+        }
+    }
+
+    /**
+     * Создает неблокирующий канал поверх уже слушающего серверного сокета, например полученного от процесса
+     * запуска через System.inheritedChannel()
+     * @param proxyProperty - настройка для канала
+     * @param serverSocketChannel - уже привязанный к порту канал серверного сокета
+     * @throws IOException
+     */
+    public NonBlockingServerSocketProxyChannel(final ProxyProperty proxyProperty,
+                                               final ServerSocketChannel serverSocketChannel) throws IOException {
+
+        this.serverSocketChannel = serverSocketChannel;
+
+        this.proxyProperty = proxyProperty;
+
+        this.serverSocketChannel.configureBlocking(false);
+    }
+
+    /**
+     * Принять входящее подключение, если оно есть в очереди
+     * @return канал сокета принятого соединения или null, если очередь пуста
+     * @throws IOException
+     */
+    public SocketChannel accept() throws IOException {
+        return this.serverSocketChannel.accept();
+    }
+
 
     @Override
     public SelectorProvider provider() {
@@ -2,11 +2,23 @@ package ru.pmapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.pmapper.admission.ClientAdmissionTable;
+import ru.pmapper.handoff.ListenerHandoff;
+import ru.pmapper.health.HealthChecker;
+import ru.pmapper.registry.ConnectionRegistry;
+import ru.pmapper.traffic.TrafficMonitor;
+import ru.pmapper.util.JmxSupport;
 import ru.pmapper.util.properties.ProxyConfigurer;
 import ru.pmapper.util.properties.ProxyProperty;
 
 import java.io.IOException;
 import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -20,62 +32,237 @@ public class PortMapper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PortMapper.class);
 
+    //Системное свойство с путем к управляющему сокету передачи прослушивания. Если задано, включает режим
+    //перезапуска без отказов клиентам
+    private static final String HANDOFF_SOCKET_PROPERTY = "pmapper.handoff.socket";
+
+    //Системное свойство со временем (в секундах) ожидания завершения установленных соединений при остановке
+    private static final String DRAIN_TIMEOUT_PROPERTY = "pmapper.drain.timeout";
+
+    private static final long DEFAULT_DRAIN_TIMEOUT_SECONDS = 30L;
+
+    //Системное свойство с наибольшим числом одновременных соединений одного IP адреса клиента, 0 - без ограничения
+    private static final String CLIENT_MAX_CONNECTIONS_PROPERTY = "pmapper.client.maxConnections";
+
+    //Системное свойство с наибольшим числом новых подключений одного IP адреса клиента в секунду, 0 - без ограничения
+    private static final String CLIENT_MAX_CONNECTION_RATE_PROPERTY = "pmapper.client.maxConnectionRate";
+
+    //Системное свойство с числом клиентов, ограничения которых учитываются одновременно
+    private static final String CLIENT_TABLE_SIZE_PROPERTY = "pmapper.client.tableSize";
+
+    private static final int DEFAULT_CLIENT_TABLE_SIZE = 65536;
+
+    //Системное свойство с периодом (в секундах) вывода самых активных клиентов и каналов в журнал, 0 - не выводить
+    private static final String TRAFFIC_DUMP_INTERVAL_PROPERTY = "pmapper.traffic.dumpInterval";
+
+    private static final long DEFAULT_TRAFFIC_DUMP_INTERVAL_SECONDS = 60L;
+
+    //Системное свойство с наибольшим числом соединений, учитываемых в реестре. Каждое занимает 64 байта вне кучи
+    private static final String REGISTRY_CAPACITY_PROPERTY = "pmapper.registry.capacity";
+
+    private static final int DEFAULT_REGISTRY_CAPACITY = 65536;
+
+    //Системное свойство с наибольшим числом буферов передачи данных в пуле
+    private static final String REGISTRY_MAX_BUFFERS_PROPERTY = "pmapper.registry.maxBuffers";
+
+    private static final int DEFAULT_REGISTRY_MAX_BUFFERS = 4096;
+
     public static void main(final String[] args) throws Exception {
 
         ProxyConfigurer proxyConfigurer = new ProxyConfigurer();
 
         final Map<String, ProxyProperty> proxyPropertyMap = proxyConfigurer.getProxyProperties("proxy.properties");
 
-        final List<NonBlockingServerSocketProxyChannel> channels = configureProxyChannels(proxyPropertyMap);
+        final String handoffSocket = System.getProperty(HANDOFF_SOCKET_PROPERTY);
+
+        final List<NonBlockingServerSocketProxyChannel> channels
+                = configureProxyChannels(proxyPropertyMap, handoffSocket != null);
+
+        final HealthChecker healthChecker = new HealthChecker(getChannelProperties(channels));
+
+        final TrafficMonitor trafficMonitor = new TrafficMonitor(
+                Long.getLong(TRAFFIC_DUMP_INTERVAL_PROPERTY, DEFAULT_TRAFFIC_DUMP_INTERVAL_SECONDS) * 1000L);
+        JmxSupport.register(trafficMonitor, "TrafficMonitor", "traffic");
+        JmxSupport.register(HappyEyeballsConnector.getStatistics(), "ConnectionAttemptStatistics", "remote");
 
         try {
 
-            final Thread eventDispatcherThread = new Thread(new EventDispatcher(channels));
+            final EventDispatcher eventDispatcher = new EventDispatcher(channels, healthChecker,
+                    createClientAdmissionTable(), trafficMonitor, createConnectionRegistry(channels),
+                    Long.getLong(DRAIN_TIMEOUT_PROPERTY, DEFAULT_DRAIN_TIMEOUT_SECONDS) * 1000L);
+
+            final Thread eventDispatcherThread = new Thread(eventDispatcher);
+            healthChecker.start();
+            trafficMonitor.start();
             eventDispatcherThread.start();
+
+            if (handoffSocket != null) {
+                final ListenerHandoff listenerHandoff = new ListenerHandoff(Paths.get(handoffSocket), eventDispatcher);
+                listenerHandoff.takeOverFromPredecessor();
+                listenerHandoff.start();
+            }
+
             eventDispatcherThread.join();
         } catch (Exception e) {
             LOGGER.error("An unrecoverable error occurred during listening. Shutdown all.", e);
+        } finally {
+            healthChecker.shutdown();
+            trafficMonitor.shutdown();
+        }
+    }
+
+    /**
+     * Создает таблицу ограничений подключений клиентов, если ограничения заданы системными свойствами,
+     * и регистрирует ее метрики в JMX
+     * @return таблица или null, если ограничений нет
+     */
+    private static ClientAdmissionTable createClientAdmissionTable() {
+
+        final int maxConnections = Integer.getInteger(CLIENT_MAX_CONNECTIONS_PROPERTY, 0);
+        final int maxConnectionRate = Integer.getInteger(CLIENT_MAX_CONNECTION_RATE_PROPERTY, 0);
+
+        if (maxConnections <= 0 && maxConnectionRate <= 0) {
+            return null;
         }
+
+        final ClientAdmissionTable clientAdmission = new ClientAdmissionTable(
+                Integer.getInteger(CLIENT_TABLE_SIZE_PROPERTY, DEFAULT_CLIENT_TABLE_SIZE),
+                Math.max(0, maxConnections), Math.max(0, maxConnectionRate));
+        JmxSupport.register(clientAdmission, "ClientAdmissionTable", "clients");
+
+        LOGGER.info("Client connections are limited to " + maxConnections + " concurrent and "
+                + maxConnectionRate + " new per second for every IP address (0 - unlimited)");
+        return clientAdmission;
+    }
+
+    /**
+     * Создает реестр соединений и регистрирует его метрики в JMX
+     * @param channels список сконфигурированных каналов серверных сокетов
+     * @return реестр
+     */
+    private static ConnectionRegistry createConnectionRegistry(final List<NonBlockingServerSocketProxyChannel> channels) {
+
+        final List<String> mappingNames = new ArrayList<String>(channels.size());
+        for (final NonBlockingServerSocketProxyChannel channel : channels) {
+            mappingNames.add(channel.getProxyProperty().getName());
+        }
+
+        final ConnectionRegistry connectionRegistry = new ConnectionRegistry(
+                Integer.getInteger(REGISTRY_CAPACITY_PROPERTY, DEFAULT_REGISTRY_CAPACITY),
+                Integer.getInteger(REGISTRY_MAX_BUFFERS_PROPERTY, DEFAULT_REGISTRY_MAX_BUFFERS), mappingNames);
+        JmxSupport.register(connectionRegistry, "ConnectionRegistry", "connections");
+
+        return connectionRegistry;
+    }
+
+    /**
+     * Возвращает настройки успешно сконфигурированных каналов
+     * @param channels список сконфигурированных каналов серверных сокетов
+     * @return список настроек каналов
+     */
+    private static List<ProxyProperty> getChannelProperties(final List<NonBlockingServerSocketProxyChannel> channels) {
+
+        final List<ProxyProperty> proxyProperties = new ArrayList<ProxyProperty>(channels.size());
+
+        for (final NonBlockingServerSocketProxyChannel channel : channels) {
+            proxyProperties.add(channel.getProxyProperty());
+        }
+        return proxyProperties;
     }
 
     /**
      * Конфигурирует каналы серверных сокетов, которые будут слушать входящие соединения на порты
      * @param proxyPropertyMap список настроек для сокетов, в которых содержатся: порт, который будет слушать сокет, а
      *                         также адрес (хост, порт) с которым будет происходить обмен данными
+     * @param reusePort открыть серверные сокеты с SO_REUSEPORT для последующей передачи прослушивания
      * @return список сконфигурировнных каналов серверных сокетов
      * @throws IOException
      */
-    private static List<NonBlockingServerSocketProxyChannel> configureProxyChannels(final Map<String, ProxyProperty> proxyPropertyMap)
+    private static List<NonBlockingServerSocketProxyChannel> configureProxyChannels(final Map<String, ProxyProperty> proxyPropertyMap,
+                                                                                    final boolean reusePort)
             throws IOException {
 
         final List<NonBlockingServerSocketProxyChannel> channels = new ArrayList<NonBlockingServerSocketProxyChannel>(2);
 
+        final ServerSocketChannel inheritedChannel = getInheritedServerSocketChannel();
+
         for (final String channelName: proxyPropertyMap.keySet()) {
 
-            addChannel(channels, proxyPropertyMap.get(channelName));
+            addChannel(channels, proxyPropertyMap.get(channelName), inheritedChannel, reusePort);
         }
         return channels;
     }
 
+    /**
+     * Возвращает серверный сокет, унаследованный от запустившего процесса (inetd, systemd и т.п.), если он есть
+     * @return унаследованный канал серверного сокета или null
+     */
+    private static ServerSocketChannel getInheritedServerSocketChannel() {
+
+        try {
+            final Channel inheritedChannel = System.inheritedChannel();
+
+            if (inheritedChannel instanceof ServerSocketChannel) {
+                LOGGER.info("Listening socket has been inherited from the parent process");
+                return (ServerSocketChannel) inheritedChannel;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot obtain inherited channel", e);
+        }
+        return null;
+    }
+
+    /**
+     * Проверяет, слушает ли унаследованный серверный сокет порт или Unix domain сокет из настройки канала
+     * @param inheritedChannel унаследованный канал серверного сокета или null
+     * @param proxyProperty настройка канала
+     * @return true - сокет можно использовать для канала
+     * @throws IOException
+     */
+    private static boolean isInheritedChannelFor(final ServerSocketChannel inheritedChannel,
+                                                 final ProxyProperty proxyProperty) throws IOException {
+
+        if (inheritedChannel == null) {
+            return false;
+        }
+
+        final SocketAddress localAddress = inheritedChannel.getLocalAddress();
+
+        if (proxyProperty.isLocalUnixSocket()) {
+            return localAddress instanceof UnixDomainSocketAddress && ((UnixDomainSocketAddress) localAddress)
+                    .getPath().equals(Paths.get(proxyProperty.getLocalPath()));
+        }
+        return localAddress instanceof InetSocketAddress
+                && ((InetSocketAddress) localAddress).getPort() == proxyProperty.getLocalPort();
+    }
+
     /**
      * Создает канал серверного сокета, который будет слушать входящие подключения и добавляет его в
      * список сконфигурированных каналов.
      * @param channels - список каналов, в который будет добавлен новый канал
      * @param proxyProperty - настройка для канала, в котором содержатся: порт, который будет слушать сокет, а
      *                        также адрес (хост, порт) с которым будет происходить обмен данными
+     * @param inheritedChannel - серверный сокет, унаследованный от запустившего процесса, или null
+     * @param reusePort - открыть серверный сокет с SO_REUSEPORT
      */
     private static void addChannel(final List<NonBlockingServerSocketProxyChannel> channels,
-                                   final ProxyProperty proxyProperty){
+                                   final ProxyProperty proxyProperty,
+                                   final ServerSocketChannel inheritedChannel,
+                                   final boolean reusePort){
 
         try {
-            channels.add(new NonBlockingServerSocketProxyChannel(proxyProperty));
+            if (isInheritedChannelFor(inheritedChannel, proxyProperty)) {
+                channels.add(new NonBlockingServerSocketProxyChannel(proxyProperty, inheritedChannel));
+            } else {
+                channels.add(new NonBlockingServerSocketProxyChannel(proxyProperty, reusePort));
+            }
         } catch (BindException e) {
 
-            LOGGER.warn(proxyProperty.getLocalPort() + " is already in use. Port mapper will not listen on this port");
+            LOGGER.warn(proxyProperty.getLocalEndpoint() + " is already in use. Port mapper will not listen on it");
         } catch (IOException e) {
 
             LOGGER.error("An IO error occurred during initialization of listening on port "
-                    + proxyProperty.getLocalPort() + " . Port mapper will not listen on this port", e);
+                    + proxyProperty.getLocalEndpoint() + " . Port mapper will not listen on it", e);
         }
     }
 }
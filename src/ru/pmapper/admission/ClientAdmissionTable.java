@@ -0,0 +1,298 @@
+package ru.pmapper.admission;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Таблица ограничений подключений по IP адресу клиента: число одновременных соединений и частота новых
+ * подключений (token bucket). Таблица фиксированного размера построена на массивах примитивов, поэтому объем
+ * памяти не зависит от числа клиентов: адрес IPv4 хранится как IPv4-mapped IPv6 адрес в двух long,
+ * IPv6 - как два long.
+ *
+ * Запись клиента ищется в окне из {@link #PROBE_WINDOW} соседних ячеек. Если в окне нет ни записи клиента,
+ * ни свободной ячейки, вытесняется дольше всех не подключавшийся клиент без открытых соединений (приближение LRU).
+ * Если у всех клиентов окна есть открытые соединения, новый клиент пропускается без учета и без проверки
+ * обоих ограничений, такие подключения считает {@link #getWindowFullBypasses}.
+ *
+ * Записи создает и проверяет только поток диспетчера событий ({@link #tryAdmit}), а счетчики открытых
+ * соединений уменьшают потоки обработчиков ({@link #release}) атомарными операциями без блокировок. Запись с
+ * открытыми соединениями не вытесняется, поэтому номер ячейки, выданный соединению, остается действительным
+ * до его закрытия.
+ */
+public class ClientAdmissionTable implements ClientAdmissionTableMXBean {
+
+    //Подключение пропущено, но не учитывается в таблице
+    public static final int NOT_TRACKED = -1;
+
+    //Подключение отклонено
+    public static final int REJECTED = -2;
+
+    //Число соседних ячеек, в которых ищется запись клиента
+    private static final int PROBE_WINDOW = 8;
+
+    //Стоимость одного подключения в тысячных долях токена
+    private static final long TOKEN = 1000L;
+
+    //Старшая половина IPv4-mapped IPv6 адреса и префикс младшей половины
+    private static final long IPV4_MAPPED_HIGH = 0L;
+    private static final long IPV4_MAPPED_LOW_PREFIX = 0x0000FFFF00000000L;
+
+    private final int mask;
+
+    //Наибольшее число одновременных соединений клиента, 0 - без ограничения
+    private final int maxConnections;
+
+    //Наибольшее число новых подключений клиента в секунду, 0 - без ограничения
+    private final int maxConnectionRate;
+
+    //Случайная затравка хэша, чтобы нельзя было заранее подобрать адреса, попадающие в одно окно
+    private final long hashSeed = ThreadLocalRandom.current().nextLong();
+
+    //Адреса клиентов: старшая и младшая половины
+    private final long[] addressHigh;
+    private final long[] addressLow;
+
+    //Время последнего подключения клиента, 0 - ячейка свободна
+    private final long[] lastSeenMillis;
+
+    //Запас токенов клиента в тысячных долях токена и время его последнего пополнения
+    private final long[] tokens;
+    private final long[] refilledAtMillis;
+
+    //Число открытых соединений клиента
+    private final AtomicIntegerArray connections;
+
+    private volatile int trackedClients;
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejectedByConnections = new AtomicLong();
+
+    private final AtomicLong rejectedByRate = new AtomicLong();
+
+    private final AtomicLong windowFullBypasses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity число ячеек таблицы, округляется вверх до степени двойки
+     * @param maxConnections наибольшее число одновременных соединений клиента, 0 - без ограничения
+     * @param maxConnectionRate наибольшее число новых подключений клиента в секунду, 0 - без ограничения
+     */
+    public ClientAdmissionTable(final int capacity, final int maxConnections, final int maxConnectionRate) {
+
+        final int tableSize = Integer.highestOneBit(Math.max(PROBE_WINDOW, capacity - 1) << 1);
+
+        this.mask = tableSize - 1;
+        this.maxConnections = maxConnections;
+        this.maxConnectionRate = maxConnectionRate;
+
+        this.addressHigh = new long[tableSize];
+        this.addressLow = new long[tableSize];
+        this.lastSeenMillis = new long[tableSize];
+        this.tokens = new long[tableSize];
+        this.refilledAtMillis = new long[tableSize];
+        this.connections = new AtomicIntegerArray(tableSize);
+    }
+
+    /**
+     * Проверяет, можно ли принять подключение клиента, и учитывает его. Вызывается только потоком диспетчера
+     * @param address адрес клиента
+     * @return номер ячейки клиента, который нужно передать в {@link #release} при закрытии соединения,
+     * {@link #NOT_TRACKED} или {@link #REJECTED}
+     */
+    public int tryAdmit(final InetAddress address) {
+
+        final byte[] bytes = address.getAddress();
+        final long high;
+        final long low;
+
+        if (address instanceof Inet4Address) {
+            high = IPV4_MAPPED_HIGH;
+            low = IPV4_MAPPED_LOW_PREFIX | (readInt(bytes, 0) & 0xFFFFFFFFL);
+        } else {
+            high = ((long) readInt(bytes, 0) << 32) | (readInt(bytes, 4) & 0xFFFFFFFFL);
+            low = ((long) readInt(bytes, 8) << 32) | (readInt(bytes, 12) & 0xFFFFFFFFL);
+        }
+
+        return tryAdmit(high, low, System.currentTimeMillis());
+    }
+
+    /**
+     * Соединение клиента закрыто. Может вызываться из любого потока
+     * @param slot номер ячейки, полученный от {@link #tryAdmit}
+     */
+    public void release(final int slot) {
+        if (slot >= 0) {
+            this.connections.decrementAndGet(slot);
+        }
+    }
+
+    /**
+     * Проверяет подключение клиента, адрес которого уже разложен на две половины
+     * @param high старшая половина адреса клиента
+     * @param low младшая половина адреса клиента
+     * @param now текущее время
+     * @return номер ячейки клиента, {@link #NOT_TRACKED} или {@link #REJECTED}
+     */
+    int tryAdmit(final long high, final long low, final long now) {
+
+        final int slot = findOrInsert(high, low, now);
+
+        if (slot < 0) {
+            this.windowFullBypasses.incrementAndGet();
+            this.admitted.incrementAndGet();
+            return NOT_TRACKED;
+        }
+
+        this.lastSeenMillis[slot] = now;
+
+        if (this.maxConnections > 0 && this.connections.get(slot) >= this.maxConnections) {
+            this.rejectedByConnections.incrementAndGet();
+            return REJECTED;
+        }
+
+        if (this.maxConnectionRate > 0 && !tryTakeToken(slot, now)) {
+            this.rejectedByRate.incrementAndGet();
+            return REJECTED;
+        }
+
+        this.connections.incrementAndGet(slot);
+        this.admitted.incrementAndGet();
+        return slot;
+    }
+
+    /**
+     * Ищет запись клиента в окне ячеек, при необходимости создавая ее
+     * @return номер ячейки или -1, если все ячейки окна заняты клиентами с открытыми соединениями
+     */
+    private int findOrInsert(final long high, final long low, final long now) {
+
+        final int start = hash(high, low);
+
+        int free = -1;
+        int victim = -1;
+
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+
+            final int slot = (start + i) & this.mask;
+
+            if (this.lastSeenMillis[slot] == 0L) {
+                if (free < 0) {
+                    free = slot;
+                }
+                continue;
+            }
+
+            if (this.addressHigh[slot] == high && this.addressLow[slot] == low) {
+                return slot;
+            }
+
+            if (this.connections.get(slot) == 0
+                    && (victim < 0 || this.lastSeenMillis[slot] < this.lastSeenMillis[victim])) {
+                victim = slot;
+            }
+        }
+
+        final int slot;
+        if (free >= 0) {
+            slot = free;
+            this.trackedClients++;
+        } else if (victim >= 0) {
+            slot = victim;
+            this.evictions.incrementAndGet();
+        } else {
+            return -1;
+        }
+
+        this.addressHigh[slot] = high;
+        this.addressLow[slot] = low;
+        this.lastSeenMillis[slot] = now;
+        this.tokens[slot] = (long) this.maxConnectionRate * TOKEN;
+        this.refilledAtMillis[slot] = now;
+        return slot;
+    }
+
+    /**
+     * Пополняет запас токенов клиента за прошедшее время (не больше, чем на секунду подключений) и берет один токен
+     */
+    private boolean tryTakeToken(final int slot, final long now) {
+
+        final long capacity = (long) this.maxConnectionRate * TOKEN;
+        final long elapsed = Math.max(0L, now - this.refilledAtMillis[slot]);
+
+        final long available = Math.min(capacity, this.tokens[slot] + elapsed * this.maxConnectionRate);
+        this.refilledAtMillis[slot] = now;
+
+        if (available < TOKEN) {
+            this.tokens[slot] = available;
+            return false;
+        }
+
+        this.tokens[slot] = available - TOKEN;
+        return true;
+    }
+
+    private int hash(final long high, final long low) {
+
+        long h = (high * 0x9E3779B97F4A7C15L) ^ low ^ this.hashSeed;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 31;
+        h *= 0x94D049BB133111EBL;
+        h ^= h >>> 29;
+        return (int) h & this.mask;
+    }
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    @Override
+    public int getTrackedClients() {
+        return this.trackedClients;
+    }
+
+    @Override
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+
+    @Override
+    public int getMaxConnectionsPerClient() {
+        return this.maxConnections;
+    }
+
+    @Override
+    public int getMaxConnectionRatePerClient() {
+        return this.maxConnectionRate;
+    }
+
+    @Override
+    public long getAdmitted() {
+        return this.admitted.get();
+    }
+
+    @Override
+    public long getRejectedByConnections() {
+        return this.rejectedByConnections.get();
+    }
+
+    @Override
+    public long getRejectedByRate() {
+        return this.rejectedByRate.get();
+    }
+
+    @Override
+    public long getWindowFullBypasses() {
+        return this.windowFullBypasses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+}
@@ -0,0 +1,29 @@
+package ru.pmapper.admission;
+
+/**
+ * Метрики ограничения подключений по адресам клиентов, доступные через JMX
+ */
+public interface ClientAdmissionTableMXBean {
+
+    int getTrackedClients();
+
+    int getCapacity();
+
+    int getMaxConnectionsPerClient();
+
+    int getMaxConnectionRatePerClient();
+
+    long getAdmitted();
+
+    //Число подключений, отклоненных из-за превышения числа одновременных соединений клиента
+    long getRejectedByConnections();
+
+    //Число подключений, отклоненных из-за превышения частоты подключений клиента
+    long getRejectedByRate();
+
+    //Число подключений новых клиентов, пропущенных без проверки ограничений: все ячейки окна клиента заняты
+    //клиентами с открытыми соединениями. Рост счетчика означает, что таблица мала для числа клиентов
+    long getWindowFullBypasses();
+
+    long getEvictions();
+}
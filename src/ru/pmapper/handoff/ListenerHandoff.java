@@ -0,0 +1,168 @@
+package ru.pmapper.handoff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.EventDispatcher;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Передача прослушивания портов новому процессу маршрутизатора без отказов клиентам.
+ *
+ * Все процессы, запущенные в этом режиме, открывают серверные сокеты с опцией SO_REUSEPORT, поэтому новый
+ * процесс может слушать те же порты, пока старый еще работает. Запустившись, новый процесс подключается
+ * к управляющему Unix domain сокету старого процесса и просит его прекратить прием подключений. Старый процесс
+ * принимает все подключения из очередей своих серверных сокетов, закрывает их, отвечает новому процессу
+ * и дорабатывает уже установленные соединения. После ответа новый процесс сам начинает слушать управляющий сокет,
+ * чтобы передать прослушивание следующему.
+ */
+public class ListenerHandoff {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerHandoff.class);
+
+    //Команда, которую новый процесс отправляет старому
+    private static final String HANDOFF_COMMAND = "HANDOFF\n";
+
+    //Ответ старого процесса, означающий, что его серверные сокеты закрыты
+    private static final String STOPPED_RESPONSE = "STOPPED\n";
+
+    private static final Charset CONTROL_CHARSET = Charset.forName("US-ASCII");
+
+    //Путь к управляющему сокету
+    private final Path controlSocketPath;
+
+    //Диспетчер событий этого процесса
+    private final EventDispatcher eventDispatcher;
+
+    public ListenerHandoff(final Path controlSocketPath, final EventDispatcher eventDispatcher) {
+        this.controlSocketPath = controlSocketPath;
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * Просит предыдущий процесс, если он есть, прекратить прием подключений и ждет, пока он закроет серверные
+     * сокеты. Вызывается, когда серверные сокеты этого процесса уже принимают подключения.
+     * @throws IOException
+     */
+    public void takeOverFromPredecessor() throws IOException {
+
+        if (!Files.exists(this.controlSocketPath)) {
+            LOGGER.info("No running port mapper found at " + this.controlSocketPath);
+            return;
+        }
+
+        try (SocketChannel controlChannel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+
+            controlChannel.connect(UnixDomainSocketAddress.of(this.controlSocketPath));
+
+            LOGGER.info("Asking running port mapper to hand off listening");
+            writeLine(controlChannel, HANDOFF_COMMAND);
+
+            if (STOPPED_RESPONSE.equals(readLine(controlChannel))) {
+                LOGGER.info("Previous port mapper has stopped listening and is draining its connections");
+            } else {
+                LOGGER.warn("Unexpected response from previous port mapper. Both may be accepting connections");
+            }
+        } catch (IOException e) {
+            //Управляющий сокет остался от аварийно завершившегося процесса
+            LOGGER.info("No running port mapper found at " + this.controlSocketPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Начинает слушать управляющий сокет в отдельном потоке и ждать запроса от следующего процесса
+     * @throws IOException
+     */
+    public void start() throws IOException {
+
+        Files.deleteIfExists(this.controlSocketPath);
+
+        final ServerSocketChannel controlServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        controlServer.bind(UnixDomainSocketAddress.of(this.controlSocketPath));
+
+        final Thread controlThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveHandoffRequest(controlServer);
+            }
+        }, "listener-handoff");
+
+        controlThread.setDaemon(true);
+        controlThread.start();
+
+        LOGGER.info("Waiting for listener handoff requests on " + this.controlSocketPath);
+    }
+
+    /**
+     * Ждет запрос на передачу прослушивания от нового процесса и выполняет его
+     * @param controlServer управляющий серверный сокет
+     */
+    private void serveHandoffRequest(final ServerSocketChannel controlServer) {
+
+        try {
+            while (controlServer.isOpen()) {
+
+                try (SocketChannel controlChannel = controlServer.accept()) {
+
+                    if (!HANDOFF_COMMAND.equals(readLine(controlChannel))) {
+                        LOGGER.warn("Unknown command on listener handoff socket has been ignored");
+                        continue;
+                    }
+
+                    LOGGER.info("Listener handoff has been requested by a new port mapper");
+
+                    //Управляющий сокет теперь принадлежит новому процессу, он удалит и создаст файл заново
+                    controlServer.close();
+
+                    this.eventDispatcher.stopAccepting();
+
+                    writeLine(controlChannel, STOPPED_RESPONSE);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.error("Listener handoff socket failed. Handoff to a new port mapper is not possible", e);
+        }
+    }
+
+    private static void writeLine(final SocketChannel channel, final String line) throws IOException {
+
+        final ByteBuffer buffer = CONTROL_CHARSET.encode(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Читает одну строку управляющего протокола вместе с символом конца строки
+     * @param channel канал управляющего сокета
+     * @return прочитанная строка
+     * @throws IOException
+     */
+    private static String readLine(final SocketChannel channel) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        while (buffer.hasRemaining()) {
+
+            if (channel.read(buffer) == -1) {
+                break;
+            }
+            if (buffer.position() > 0 && buffer.get(buffer.position() - 1) == '\n') {
+                break;
+            }
+        }
+
+        buffer.flip();
+        return CONTROL_CHARSET.decode(buffer).toString();
+    }
+}
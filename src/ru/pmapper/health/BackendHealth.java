@@ -0,0 +1,222 @@
+package ru.pmapper.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Состояние здоровья удаленного сервера одного канала маршрутизации. Реализует автоматический выключатель
+ * (circuit breaker): после нескольких неудачных соединений или сбросов соединения без штатно завершенного обмена
+ * данными между ними сервер считается нездоровым и новые клиенты сразу получают отказ, не дожидаясь таймаута
+ * соединения. По истечении времени разомкнутого состояния (или после успешной активной проверки) пропускается
+ * одно пробное соединение, успех которого возвращает сервер в работу.
+ *
+ * Все поля читаются без блокировок, поэтому проверку можно выполнять прямо в потоке принятия соединений.
+ * Состояние, время его смены и время выдачи пробного соединения меняются вместе одной заменой {@link Circuit},
+ * поэтому за одно полуоткрытое состояние выдается не больше одного пробного соединения.
+ */
+public class BackendHealth {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackendHealth.class);
+
+    //Число неудач без успешного обмена данными, после которого выключатель размыкается
+    private static final int FAILURE_THRESHOLD = 5;
+
+    //Время, в течение которого разомкнутый выключатель отклоняет все соединения
+    private static final long OPEN_STATE_DURATION_MILLIS = 10000L;
+
+    /**
+     * Состояние выключателя
+     */
+    public enum State {
+        //Сервер здоров, соединения пропускаются
+        CLOSED,
+        //Сервер нездоров, соединения отклоняются
+        OPEN,
+        //Пропущено одно пробное соединение, ожидаем его результат
+        HALF_OPEN
+    }
+
+    //Имя сервера для журналирования (хост:порт)
+    private final String backendName;
+
+    //Время, в течение которого разомкнутый выключатель отклоняет все соединения
+    private final long openStateDurationMillis;
+
+    private final AtomicReference<Circuit> circuit
+            = new AtomicReference<Circuit>(new Circuit(State.CLOSED, System.currentTimeMillis(), Circuit.NO_TRIAL));
+
+    //Число неудач после последнего штатно завершенного обмена данными или возврата сервера в работу.
+    //Успешные соединения и активные проверки его не сбрасывают
+    private final AtomicInteger failuresSinceSuccess = new AtomicInteger();
+
+    public BackendHealth(final String backendName) {
+        this(backendName, OPEN_STATE_DURATION_MILLIS);
+    }
+
+    /**
+     * @param backendName имя сервера для журналирования
+     * @param openStateDurationMillis время, в течение которого разомкнутый выключатель отклоняет все соединения
+     */
+    BackendHealth(final String backendName, final long openStateDurationMillis) {
+        this.backendName = backendName;
+        this.openStateDurationMillis = openStateDurationMillis;
+    }
+
+    /**
+     * Проверяет, можно ли направить новое соединение на сервер. В полуоткрытом состоянии разрешение выдается
+     * только одному пробному соединению.
+     * @return true - соединение можно устанавливать, false - клиенту нужно отказать сразу
+     */
+    public boolean tryAcquirePermission() {
+
+        while (true) {
+            final Circuit current = this.circuit.get();
+
+            if (current.state == State.CLOSED) {
+                return true;
+            }
+
+            final long now = System.currentTimeMillis();
+            final Circuit next;
+
+            if (current.state == State.OPEN) {
+                if (now - current.changedAt < this.openStateDurationMillis) {
+                    return false;
+                }
+                //Первое соединение после времени размыкания становится пробным
+                next = new Circuit(State.HALF_OPEN, now, now);
+            } else if (current.trialIssuedAt == Circuit.NO_TRIAL
+                    || now - current.trialIssuedAt >= this.openStateDurationMillis) {
+                //Пробное соединение еще не выдано или так и не сообщило о результате
+                next = new Circuit(State.HALF_OPEN, current.changedAt, now);
+            } else {
+                return false;
+            }
+
+            if (this.circuit.compareAndSet(current, next)) {
+                if (current.state != next.state) {
+                    logTransition(current.state, next.state);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Соединение с сервером успешно установлено
+     */
+    public void onConnected() {
+        if (transition(State.HALF_OPEN, State.CLOSED)) {
+            this.failuresSinceSuccess.set(0);
+        }
+    }
+
+    /**
+     * Обмен данными с сервером завершился штатно
+     */
+    public void onGracefulClose() {
+        this.failuresSinceSuccess.set(0);
+    }
+
+    /**
+     * Соединение с сервером не удалось или было сброшено сервером
+     */
+    public void onFailure() {
+
+        final State current = this.circuit.get().state;
+
+        if (current == State.HALF_OPEN) {
+            transition(State.HALF_OPEN, State.OPEN);
+        } else if (current == State.CLOSED && this.failuresSinceSuccess.incrementAndGet() >= FAILURE_THRESHOLD) {
+            transition(State.CLOSED, State.OPEN);
+        }
+    }
+
+    /**
+     * Активная проверка сервера прошла успешно. Разомкнутый выключатель сразу переводится в полуоткрытое
+     * состояние, и следующее соединение пропускается как пробное, не дожидаясь окончания времени размыкания.
+     * Для замкнутого выключателя счетчик неудач не сбрасывается: сервер может принимать соединения, но
+     * сбрасывать реальный трафик.
+     */
+    public void onProbeSuccess() {
+        transition(State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * Активная проверка сервера не удалась
+     */
+    public void onProbeFailure() {
+        onFailure();
+    }
+
+    public State getState() {
+        return this.circuit.get().state;
+    }
+
+    public boolean isHealthy() {
+        return this.circuit.get().state == State.CLOSED;
+    }
+
+    public String getBackendName() {
+        return backendName;
+    }
+
+    private boolean transition(final State from, final State to) {
+
+        while (true) {
+            final Circuit current = this.circuit.get();
+
+            if (current.state != from) {
+                return false;
+            }
+            if (this.circuit.compareAndSet(current, new Circuit(to, System.currentTimeMillis(), Circuit.NO_TRIAL))) {
+                logTransition(from, to);
+                return true;
+            }
+        }
+    }
+
+    private void logTransition(final State from, final State to) {
+
+        if (to == State.OPEN) {
+            LOGGER.warn(this.backendName + " is unhealthy. New connections will be refused");
+        } else {
+            LOGGER.info(this.backendName + " health state changed: " + from + " -> " + to);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BackendHealth{" +
+                "backend='" + backendName + '\'' +
+                ", state=" + getState() +
+                ", failuresSinceSuccess=" + failuresSinceSuccess.get() +
+                '}';
+    }
+
+    /**
+     * Неизменяемый снимок состояния выключателя
+     */
+    private static final class Circuit {
+
+        //Пробное соединение полуоткрытого состояния еще не выдано
+        private static final long NO_TRIAL = 0L;
+
+        private final State state;
+
+        //Время смены состояния
+        private final long changedAt;
+
+        //Время выдачи пробного соединения или NO_TRIAL
+        private final long trialIssuedAt;
+
+        private Circuit(final State state, final long changedAt, final long trialIssuedAt) {
+            this.state = state;
+            this.changedAt = changedAt;
+            this.trialIssuedAt = trialIssuedAt;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.pmapper.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Класс, периодически проверяющий доступность удаленных серверов всех каналов маршрутизации попыткой
+ * установить TCP соединение или соединение с Unix domain сокетом. Проверки всех серверов выполняются общим
+ * планировщиком с небольшим пулом потоков.
+ */
+public class HealthChecker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HealthChecker.class);
+
+    //Интервал между проверками одного сервера
+    private static final long PROBE_INTERVAL_MILLIS = 5000L;
+
+    //Наибольший таймаут соединения при проверке, не больше таймаута соединения самого канала
+    private static final int PROBE_CONNECT_TIMEOUT_MILLIS = 2000;
+
+    //Наибольшее число потоков планировщика проверок
+    private static final int MAX_PROBE_THREADS = 4;
+
+    //Map состояний серверов -- настройка канала --> состояние. После создания не изменяется
+    private final Map<ProxyProperty, BackendHealth> backends;
+
+    private final ScheduledExecutorService probeScheduler;
+
+    public HealthChecker(final Collection<ProxyProperty> proxyProperties) {
+
+        final Map<ProxyProperty, BackendHealth> healthMap = new HashMap<ProxyProperty, BackendHealth>();
+
+        for (final ProxyProperty proxyProperty : proxyProperties) {
+            healthMap.put(proxyProperty,
+                    new BackendHealth(proxyProperty.getRemoteEndpoint()));
+        }
+
+        this.backends = Collections.unmodifiableMap(healthMap);
+
+        final int poolSize = Math.max(1, Math.min(healthMap.size(), MAX_PROBE_THREADS));
+        this.probeScheduler = Executors.newScheduledThreadPool(poolSize, new ProbeThreadFactory());
+    }
+
+    /**
+     * Запускает периодические проверки всех серверов
+     */
+    public void start() {
+
+        for (final Map.Entry<ProxyProperty, BackendHealth> backend : this.backends.entrySet()) {
+
+            final ProxyProperty proxyProperty = backend.getKey();
+            final BackendHealth health = backend.getValue();
+
+            this.probeScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probe(proxyProperty, health);
+                }
+            }, 0, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        LOGGER.info("Health checking of " + this.backends.size() + " backends has been started");
+    }
+
+    public void shutdown() {
+        this.probeScheduler.shutdownNow();
+    }
+
+    /**
+     * Возвращает состояние сервера канала маршрутизации
+     * @param proxyProperty настройка канала маршрутизации
+     * @return состояние сервера
+     */
+    public BackendHealth getHealth(final ProxyProperty proxyProperty) {
+        return this.backends.get(proxyProperty);
+    }
+
+    /**
+     * Проверка доступности сервера. Соединение сразу же закрывается
+     * @param proxyProperty настройка канала маршрутизации
+     * @param health состояние сервера, которое будет обновлено по результату проверки
+     */
+    private void probe(final ProxyProperty proxyProperty, final BackendHealth health) {
+
+        SocketChannel probeChannel = null;
+
+        try {
+            final SocketAddress address = SocketEndpoints.getRemoteAddress(proxyProperty);
+
+            probeChannel = SocketEndpoints.openChannel(address);
+            if (address instanceof InetSocketAddress) {
+                probeChannel.socket().connect(address,
+                        Math.min(PROBE_CONNECT_TIMEOUT_MILLIS, proxyProperty.getConnectTimeout()));
+            } else {
+                //Соединение с Unix domain сокетом устанавливается или отклоняется сразу. В неблокирующем режиме
+                //поток проверки не ждет, если очередь подключений сервера переполнена
+                probeChannel.configureBlocking(false);
+                if (!probeChannel.connect(address)) {
+                    throw new IOException("Connection to " + health.getBackendName() + " is still pending");
+                }
+            }
+
+            health.onProbeSuccess();
+        } catch (Exception e) {
+
+            LOGGER.debug("Health probe of " + health.getBackendName() + " has failed", e);
+            health.onProbeFailure();
+        } finally {
+            closeQuietly(probeChannel);
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close health probe channel", e);
+            }
+        }
+    }
+
+    /**
+     * Фабрика служебных потоков проверок. Потоки-демоны не мешают завершению приложения
+     */
+    private static class ProbeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "health-probe-" + this.threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.pmapper.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Буфер обращений к кэшу, который заполняется без блокировок. Обращения копятся в нескольких кольцевых буферах,
+ * поток выбирает буфер по своему номеру, поэтому потоки, одновременно читающие кэш, почти не мешают друг другу.
+ * Обращения разбираются пачками под блокировкой политики вытеснения кэша.
+ *
+ * Буфер допускает потери: если кольцевой буфер полон или за место в нем одновременно боролся другой поток,
+ * обращение отбрасывается. Для скетча частот и порядка LRU это лишь немного снижает точность.
+ */
+final class AccessBuffer {
+
+    //Число обращений в одном кольцевом буфере, степень двойки
+    private static final int STRIPE_SIZE = 16;
+
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    private final Stripe[] stripes;
+
+    private final int stripeMask;
+
+    AccessBuffer() {
+
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int stripeCount = Integer.highestOneBit(Math.max(1, processors * 2 - 1));
+
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * Запоминает обращение к ключу
+     * @param key ключ запроса
+     * @return true - кольцевой буфер потока заполнен и его пора разобрать
+     */
+    boolean offer(final String key) {
+
+        final Stripe stripe = stripeOfCurrentThread();
+
+        final long head = stripe.readCounter;
+        final long tail = stripe.writeCounter.get();
+        final long size = tail - head;
+
+        if (size >= STRIPE_SIZE) {
+            return true;
+        }
+        if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+            stripe.keys.lazySet((int) (tail & STRIPE_MASK), key);
+            return size + 1 >= STRIPE_SIZE;
+        }
+        return false;
+    }
+
+    /**
+     * Передает накопленные обращения в порядке поступления. Вызывается только под блокировкой политики кэша
+     * @param consumer обработчик обращения
+     */
+    void drain(final Consumer<String> consumer) {
+
+        for (final Stripe stripe : this.stripes) {
+
+            long head = stripe.readCounter;
+            final long tail = stripe.writeCounter.get();
+
+            while (head < tail) {
+                final int index = (int) (head & STRIPE_MASK);
+                final String key = stripe.keys.get(index);
+
+                //Место занято, но ключ еще не записан: дочитаем при следующем разборе
+                if (key == null) {
+                    break;
+                }
+                stripe.keys.lazySet(index, null);
+                consumer.accept(key);
+                head++;
+            }
+            stripe.readCounter = head;
+        }
+    }
+
+    private Stripe stripeOfCurrentThread() {
+
+        int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        return this.stripes[hash & this.stripeMask];
+    }
+
+    /**
+     * Кольцевой буфер: места занимают читающие кэш потоки, а освобождает только поток, разбирающий обращения
+     */
+    private static final class Stripe {
+
+        private final AtomicReferenceArray<String> keys = new AtomicReferenceArray<String>(STRIPE_SIZE);
+
+        //Сколько мест занято за все время
+        private final AtomicLong writeCounter = new AtomicLong();
+
+        //Сколько обращений разобрано за все время
+        private volatile long readCounter;
+    }
+}
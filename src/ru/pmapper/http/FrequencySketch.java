@@ -0,0 +1,106 @@
+package ru.pmapper.http;
+
+/**
+ * Приближенный счетчик частоты обращений к ключам (count-min sketch) с 4-битными счетчиками для политики
+ * допуска TinyLFU. Чтобы частоты отражали недавнюю популярность, после заданного числа обращений все
+ * счетчики делятся пополам. Не потокобезопасен, используется под блокировкой политики кэша.
+ */
+class FrequencySketch {
+
+    //Число строк (хеш-функций) скетча
+    private static final int DEPTH = 4;
+
+    //Наибольшее значение 4-битного счетчика
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb7c5a395, 0x4c2d8b35, 0x2d3a9f61};
+
+    //Счетчики всех строк, по два счетчика в байте
+    private final byte[] counters;
+
+    //Маска индекса счетчика в строке
+    private final int rowMask;
+
+    //Число обращений, после которого счетчики делятся пополам
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedEntries ожидаемое число записей кэша
+     */
+    FrequencySketch(final int expectedEntries) {
+
+        final int width = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) * 2 - 1);
+
+        this.rowMask = width - 1;
+        this.counters = new byte[DEPTH * width / 2];
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Учитывает обращение к ключу
+     * @param keyHash хеш ключа
+     */
+    void increment(final int keyHash) {
+
+        boolean incremented = false;
+
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = counterIndex(keyHash, row);
+            if (getCounter(index) < MAX_COUNT) {
+                setCounter(index, getCounter(index) + 1);
+                incremented = true;
+            }
+        }
+
+        if (incremented && ++this.additions >= this.sampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * Оценка частоты обращений к ключу
+     * @param keyHash хеш ключа
+     * @return оценка частоты сверху
+     */
+    int frequency(final int keyHash) {
+
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, getCounter(counterIndex(keyHash, row)));
+        }
+        return frequency;
+    }
+
+    private int counterIndex(final int keyHash, final int row) {
+
+        int hash = (keyHash ^ SEEDS[row]) * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        return row * (this.rowMask + 1) + (hash & this.rowMask);
+    }
+
+    private int getCounter(final int index) {
+        final int value = this.counters[index >>> 1];
+        return (index & 1) == 0 ? value & 0x0F : (value >>> 4) & 0x0F;
+    }
+
+    private void setCounter(final int index, final int count) {
+        final int slot = index >>> 1;
+        if ((index & 1) == 0) {
+            this.counters[slot] = (byte) ((this.counters[slot] & 0xF0) | count);
+        } else {
+            this.counters[slot] = (byte) ((this.counters[slot] & 0x0F) | (count << 4));
+        }
+    }
+
+    /**
+     * Делит все счетчики пополам, чтобы старая популярность постепенно забывалась
+     */
+    private void halve() {
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] = (byte) ((this.counters[i] >>> 1) & 0x77);
+        }
+        this.additions /= 2;
+    }
+}
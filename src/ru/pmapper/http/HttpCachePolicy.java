@@ -0,0 +1,128 @@
+package ru.pmapper.http;
+
+/**
+ * Правила кэширования HTTP ответов (RFC 7234) в упрощенном виде: кэшируются только успешные ответы на GET запросы
+ * без авторизации, у которых явно задан срок свежести через Cache-Control: max-age или s-maxage. Ответы
+ * с Set-Cookie или Vary не кэшируются, так как зависят от конкретного клиента.
+ */
+final class HttpCachePolicy {
+
+    private HttpCachePolicy() {}
+
+    /**
+     * Возвращает ключ кэша для разобранного запроса
+     * @param request разборщик запросов, в котором закончился разбор запроса
+     * @return ключ или null, если ответ на запрос нельзя брать из кэша и сохранять в кэш
+     */
+    static String getCacheKey(final HttpMessageFramer request) {
+
+        if (!"GET".equals(request.getMethod()) || request.isHttp10()
+                || request.getHeader("authorization") != null || request.getHeader("range") != null) {
+            return null;
+        }
+
+        //max-age=0 означает, что клиент не примет ответ без проверки сервером, как и no-cache
+        final String cacheControl = request.getHeader("cache-control");
+        if (cacheControl != null && (containsDirective(cacheControl, "no-cache", "no-store")
+                || getDirectiveSeconds(cacheControl, "max-age") == 0)) {
+            return null;
+        }
+
+        final String pragma = request.getHeader("pragma");
+        if (pragma != null && containsDirective(pragma, "no-cache")) {
+            return null;
+        }
+
+        final String host = request.getHeader("host");
+        return (host == null ? "" : host.toLowerCase()) + " " + request.getRequestTarget();
+    }
+
+    /**
+     * Возвращает срок свежести ответа
+     * @param response разборщик ответов, в котором разобраны заголовки ответа
+     * @return срок в миллисекундах или 0, если ответ нельзя кэшировать
+     */
+    static long getFreshnessLifetimeMillis(final HttpMessageFramer response) {
+
+        if (response.getStatusCode() != 200 || !response.isKeepAlive()
+                || response.getHeader("set-cookie") != null || response.getHeader("vary") != null) {
+            return 0L;
+        }
+
+        final String cacheControl = response.getHeader("cache-control");
+        if (cacheControl == null || containsDirective(cacheControl, "no-store", "no-cache", "private")) {
+            return 0L;
+        }
+
+        long maxAge = getDirectiveSeconds(cacheControl, "s-maxage");
+        if (maxAge < 0) {
+            maxAge = getDirectiveSeconds(cacheControl, "max-age");
+        }
+
+        final String age = response.getHeader("age");
+        if (age != null) {
+            try {
+                maxAge -= Long.parseLong(age.trim());
+            } catch (NumberFormatException e) {
+                return 0L;
+            }
+        }
+
+        return maxAge > 0 ? maxAge * 1000L : 0L;
+    }
+
+    /**
+     * Проверяет, совпадает ли один из ETag из заголовка If-None-Match с ETag закэшированного ответа
+     * @param ifNoneMatch значение заголовка If-None-Match
+     * @param etag ETag закэшированного ответа
+     * @return true - у клиента уже есть актуальная версия ответа
+     */
+    static boolean matchesEtag(final String ifNoneMatch, final String etag) {
+
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+
+        final String strongEtag = stripWeakPrefix(etag);
+        for (final String candidate : ifNoneMatch.split(",")) {
+            if (stripWeakPrefix(candidate.trim()).equals(strongEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakPrefix(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static boolean containsDirective(final String headerValue, final String... directives) {
+
+        for (final String token : headerValue.toLowerCase().split(",")) {
+            final String directive = token.trim();
+
+            for (final String expected : directives) {
+                if (directive.equals(expected) || directive.startsWith(expected + "=")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long getDirectiveSeconds(final String headerValue, final String directive) {
+
+        for (final String token : headerValue.toLowerCase().split(",")) {
+            final String trimmed = token.trim();
+
+            if (trimmed.startsWith(directive + "=")) {
+                try {
+                    return Long.parseLong(trimmed.substring(directive.length() + 1).replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    return -1L;
+                }
+            }
+        }
+        return -1L;
+    }
+}
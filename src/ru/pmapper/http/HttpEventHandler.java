@@ -0,0 +1,949 @@
+package ru.pmapper.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.HappyEyeballsConnector;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.registry.ConnectionRegistry;
+import ru.pmapper.traffic.TrafficCounter;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Обработчик принятого соединения в режиме HTTP/1.1. Передает данные между клиентом и удаленным сервером без
+ * изменений, но отслеживает границы запросов и ответов. Как только ответ на последний запрос клиента прочитан,
+ * соединение с сервером возвращается в пул и может использоваться другими клиентами, а следующий запрос этого
+ * клиента уйдет через любое свободное соединение из пула.
+ *
+ * Если для канала включен кэш, свежие ответы на GET запросы передаются клиенту из кэша прямо в этом потоке,
+ * без обращения к удаленному серверу, а подходящие ответы сервера сохраняются в кэш.
+ *
+ * После Upgrade, CONNECT или ответа, длина которого определяется закрытием соединения, обработчик работает
+ * как обычный TCP маршрутизатор, а соединение с сервером повторно не используется.
+ *
+ * Сервер может закрыть простаивающее соединение в тот момент, когда оно берется из пула. Поэтому байты,
+ * отправленные в соединение из пула, копируются, пока от сервера не пришел первый байт ответа. Если сервер закрыл
+ * или сбросил соединение раньше, а все запросы в нем идемпотентны, они один раз повторяются в новом соединении.
+ *
+ * Буферы передачи, как и в {@link ru.pmapper.EventHandler}, берутся из реестра соединений только на время, пока
+ * в них есть данные, поэтому простаивающее keep-alive соединение клиента буферов не занимает.
+ */
+public class HttpEventHandler implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpEventHandler.class);
+
+    //Сколько байтов запросов, отправленных в соединение из пула, можно сохранить для повтора
+    private static final int REPLAY_BUFFER_CAPACITY = 8192;
+
+    //Методы, запросы которых можно повторить в новом соединении (RFC 7231)
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList(
+            "GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    //Начальный размер буфера, в который копируется ответ для сохранения в кэш
+    private static final int CAPTURE_BUFFER_INITIAL_CAPACITY = 4096;
+
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+    //Ответ клиенту, запрос которого нельзя однозначно разобрать
+    private static final byte[] BAD_REQUEST_RESPONSE
+            = "HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(HEADER_CHARSET);
+
+    //Канал сокета, который представляет собой соединение клиент <--> маршрутизатор портов
+    private final SocketChannel clientChannel;
+
+    //Канал сокета соединения с удаленным сервером, null - если соединение не занято этим клиентом
+    private SocketChannel upstreamChannel;
+
+    //Настройка для канала маршрутизации
+    private final ProxyProperty proxyProperty;
+
+    //Состояние здоровья удаленного сервера
+    private final BackendHealth backendHealth;
+
+    //Пул keep-alive соединений с удаленным сервером
+    private final UpstreamConnectionPool upstreamPool;
+
+    //Кэш ответов канала, null - кэширование выключено
+    private final HttpResponseCache responseCache;
+
+    //Счетчик байтов, переданных клиенту и полученных от него
+    private final TrafficCounter trafficCounter;
+
+    private final Selector eventSelector;
+
+    //Устанавливает новое соединение с удаленным сервером, null - если соединение не устанавливается
+    private HappyEyeballsConnector upstreamConnector;
+
+    //Реестр соединений, выдающий буферы передачи, и номер соединения в нем
+    private final ConnectionRegistry connectionRegistry;
+    private final int connectionId;
+
+    //Буфер данных клиент --> сервер, null - буфер возвращен в реестр соединений
+    private ByteBuffer requestBuffer;
+
+    //Буфер данных сервер --> клиент, null - буфер возвращен в реестр соединений
+    private ByteBuffer responseBuffer;
+
+    private final HttpMessageFramer requestFramer;
+
+    private final HttpMessageFramer responseFramer;
+
+    //Запросы, ответы на которые еще не получены
+    private final Deque<PendingRequest> pendingRequests = new ArrayDeque<PendingRequest>();
+
+    //Ответ из кэша, который еще передается клиенту
+    private ByteBuffer[] cachedResponse;
+
+    //Ключ кэша ответа, который сейчас читается от сервера, null - ответ не сохраняется в кэш
+    private String captureKey;
+
+    //Копия читаемого от сервера ответа для сохранения в кэш
+    private ByteBuffer captureBuffer;
+
+    //Срок свежести ответа, который сейчас читается от сервера
+    private long captureLifetimeMillis = -1L;
+
+    //Текущее соединение с сервером можно вернуть в пул после ответа
+    private boolean upstreamReusable = true;
+
+    //Копия байтов, отправленных в соединение из пула, до первого байта ответа. null - повтор невозможен
+    private ByteBuffer replayBuffer;
+
+    //Границы сообщений больше не отслеживаются, данные передаются как есть
+    private boolean tunnel;
+
+    //Сервер закрыл соединение, клиентское соединение нужно закрыть после передачи оставшихся данных
+    private boolean closeAfterResponseFlush;
+
+    //Обработка соединения завершена
+    private boolean finished;
+
+    /**
+     * Инициализация обработчика событий HTTP соединения
+     * @param channel канал сокета, который представляет собой соединение клиент <--> маршрутизатор портов
+     * @param property настройка для канала маршрутизации
+     * @param backendHealth состояние здоровья удаленного сервера
+     * @param upstreamPool пул keep-alive соединений с удаленным сервером
+     * @param responseCache кэш ответов канала или null, если кэширование выключено
+     * @param trafficCounter счетчик байтов соединения
+     * @param connectionRegistry реестр соединений
+     * @param connectionId номер соединения в реестре
+     * @throws IOException
+     */
+    public HttpEventHandler(final SocketChannel channel, final ProxyProperty property,
+                            final BackendHealth backendHealth, final UpstreamConnectionPool upstreamPool,
+                            final HttpResponseCache responseCache, final TrafficCounter trafficCounter,
+                            final ConnectionRegistry connectionRegistry, final int connectionId)
+            throws IOException {
+
+        this.clientChannel = channel;
+        this.proxyProperty = property;
+        this.backendHealth = backendHealth;
+        this.upstreamPool = upstreamPool;
+        this.responseCache = responseCache;
+        this.trafficCounter = trafficCounter;
+        this.connectionRegistry = connectionRegistry;
+        this.connectionId = connectionId;
+
+        this.requestFramer = new HttpMessageFramer(true, responseCache != null);
+        this.responseFramer = new HttpMessageFramer(false, responseCache != null);
+
+        this.eventSelector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            updateInterestOps();
+
+            while (!this.finished && this.eventSelector.isOpen()) {
+
+                final int readyEvents = this.eventSelector.select(getSelectTimeout());
+
+                //Без ожидания соединения пустая выборка означает, что поток был прерван
+                if (readyEvents == 0 && this.upstreamConnector == null) {
+                    break;
+                }
+
+                //Обрабатываем копию выборки: повторная регистрация соединения может потребовать selectNow()
+                final SelectionKey[] events = this.eventSelector.selectedKeys().toArray(new SelectionKey[0]);
+                this.eventSelector.selectedKeys().clear();
+
+                for (final SelectionKey event : events) {
+                    if (!this.finished && event.isValid()) {
+                        processEvent(event);
+                    }
+                }
+
+                if (this.upstreamConnector != null && !this.finished) {
+                    this.upstreamConnector.onTimer();
+                }
+
+                if (!this.finished) {
+                    releaseIdleBuffers();
+                    updateInterestOps();
+                }
+            }
+
+            LOGGER.debug("End serving HTTP connection for " + SocketEndpoints.describe(this.clientChannel));
+        } catch (IOException e) {
+
+            if (this.upstreamConnector != null) {
+                LOGGER.warn("Cannot connect to " + this.proxyProperty.getRemoteEndpoint()
+                        + " for " + SocketEndpoints.describe(this.clientChannel), e);
+                this.backendHealth.onFailure();
+            } else {
+                LOGGER.warn(SocketEndpoints.describe(this.clientChannel) + " has been closed forcibly", e);
+            }
+        } finally {
+            shutdownProcessing();
+        }
+    }
+
+    private void shutdownProcessing() {
+        try {
+            this.trafficCounter.flush();
+
+            if (this.upstreamConnector != null) {
+                this.upstreamConnector.abort();
+            }
+
+            releaseUpstreamIfIdle();
+            if (this.upstreamChannel != null) {
+                closeUpstream();
+            }
+
+            this.clientChannel.close();
+            this.eventSelector.close();
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error during shutdown of HTTP event processing", e);
+        }
+    }
+
+    private long getSelectTimeout() {
+        return this.upstreamConnector == null ? 0L : this.upstreamConnector.getSelectTimeout();
+    }
+
+    /**
+     * Обработка события одного из каналов
+     * @param event событие
+     * @throws IOException
+     */
+    private void processEvent(final SelectionKey event) throws IOException {
+
+        final SelectableChannel channel = event.channel();
+
+        if (channel == this.clientChannel) {
+
+            if (event.isWritable()) {
+                flushResponses();
+            }
+            if (event.isValid() && event.isReadable()) {
+                readRequests();
+            }
+        } else if (channel == this.upstreamChannel) {
+
+            if (event.isWritable()) {
+                flushRequests();
+            }
+            if (event.isValid() && event.isReadable()) {
+                readResponses();
+            }
+        } else if (this.upstreamConnector != null && event.isConnectable()) {
+
+            if (this.upstreamConnector.onConnectable(event)) {
+                onUpstreamConnected();
+            }
+        }
+    }
+
+    /**
+     * Читает данные клиента, отмечает границы запросов и передает данные серверу
+     * @throws IOException
+     */
+    private void readRequests() throws IOException {
+
+        acquireRequestBuffer();
+        final int from = this.requestBuffer.position();
+
+        final int bytesRead = this.clientChannel.read(this.requestBuffer);
+
+        if (bytesRead == -1) {
+            LOGGER.info(SocketEndpoints.describe(this.clientChannel) + " has been closed gracefully");
+            this.finished = true;
+            return;
+        }
+        this.trafficCounter.addReceived(bytesRead);
+
+        if (this.requestBuffer.position() == from) {
+            return;
+        }
+
+        if (!this.tunnel) {
+            try {
+                parseRequests(from, this.requestBuffer.position());
+            } catch (HttpFramingException e) {
+                rejectRequest(e);
+                return;
+            }
+        }
+
+        if (this.cachedResponse != null) {
+            flushResponses();
+        }
+
+        if (this.requestBuffer.position() > 0 && this.upstreamChannel == null && this.upstreamConnector == null) {
+            acquireUpstream();
+        }
+
+        flushRequests();
+    }
+
+    /**
+     * Отмечает границы запросов среди только что прочитанных и еще не переданных серверу байтов
+     * @param from индекс первого прочитанного байта в буфере запросов
+     * @param to индекс после последнего прочитанного байта
+     * @throws HttpFramingException
+     */
+    private void parseRequests(final int from, int to) throws HttpFramingException {
+
+        int index = from;
+
+        while (index < to && !this.tunnel) {
+
+            //Начало запроса известно, только если весь запрос находится среди непереданных байтов
+            final int messageStart = this.requestFramer.isAtMessageStart() ? index : -1;
+
+            index = this.requestFramer.advance(this.requestBuffer, index, to);
+
+            if (this.requestFramer.isMessageComplete()) {
+
+                LOGGER.debug(this.requestFramer.getMethod() + " " + this.requestFramer.getRequestTarget()
+                        + " from " + SocketEndpoints.describe(this.clientChannel));
+
+                final String cacheKey = this.responseCache == null
+                        ? null
+                        : HttpCachePolicy.getCacheKey(this.requestFramer);
+
+                if (cacheKey != null && messageStart >= 0 && serveFromCache(cacheKey)) {
+
+                    //Запрос обслужен из кэша, удаляем его из буфера, чтобы он не ушел серверу
+                    to = discardRequestBytes(messageStart, index, to);
+                    index = messageStart;
+                } else {
+
+                    this.pendingRequests.add(new PendingRequest(this.requestFramer.getMethod(), cacheKey));
+                    if (!this.requestFramer.isKeepAlive()) {
+                        this.upstreamReusable = false;
+                    }
+                }
+
+                this.requestFramer.reset();
+            } else if (this.requestFramer.isReadUntilClose()) {
+
+                this.pendingRequests.add(new PendingRequest(this.requestFramer.getMethod(), null));
+                switchToTunnel();
+            }
+        }
+    }
+
+    /**
+     * Запрос клиента нельзя однозначно разобрать. Начало запроса могло уже уйти серверу, поэтому соединение
+     * с сервером закрывается и в пул не возвращается. Клиенту отвечаем 400, если все предыдущие ответы уже получены,
+     * и закрываем соединение
+     * @param e ошибка разбора запроса
+     * @throws IOException
+     */
+    private void rejectRequest(final HttpFramingException e) throws IOException {
+
+        LOGGER.warn("Malformed HTTP request from " + SocketEndpoints.describe(this.clientChannel) + ": "
+                + e.getMessage() + ". Connection will be closed");
+
+        this.upstreamReusable = false;
+        this.tunnel = true;
+        if (this.requestBuffer != null) {
+            this.requestBuffer.clear();
+        }
+
+        if (this.upstreamConnector != null) {
+            this.upstreamConnector.abort();
+            this.upstreamConnector = null;
+        }
+        if (this.upstreamChannel != null) {
+            closeUpstream();
+        }
+
+        if (this.pendingRequests.isEmpty() && this.responseFramer.isAtMessageStart()
+                && acquireResponseBuffer().remaining() >= BAD_REQUEST_RESPONSE.length) {
+            this.responseBuffer.put(BAD_REQUEST_RESPONSE);
+        }
+        this.pendingRequests.clear();
+
+        this.closeAfterResponseFlush = true;
+        flushResponses();
+    }
+
+    /**
+     * Передает клиенту ответ из кэша. Это возможно, только если все предыдущие ответы уже переданы клиенту,
+     * иначе нарушится порядок ответов
+     * @param cacheKey ключ кэша запроса
+     * @return true - ответ взят из кэша
+     */
+    private boolean serveFromCache(final String cacheKey) {
+
+        if (!this.pendingRequests.isEmpty() || bufferedBytes(this.responseBuffer) != 0 || this.cachedResponse != null) {
+            return false;
+        }
+
+        final HttpResponseCache.CachedResponse cached = this.responseCache.get(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+
+        final String ifNoneMatch = this.requestFramer.getHeader("if-none-match");
+
+        if (ifNoneMatch != null && cached.getEtag() != null && HttpCachePolicy.matchesEtag(ifNoneMatch, cached.getEtag())) {
+            //Content-Length в 304 должен совпадать с длиной закэшированного ответа, поэтому заголовок не передается
+            this.cachedResponse = new ByteBuffer[] {HEADER_CHARSET.encode("HTTP/1.1 304 Not Modified\r\nETag: "
+                    + cached.getEtag() + "\r\n\r\n")};
+        } else {
+            this.cachedResponse = cached.newReader(System.currentTimeMillis());
+        }
+
+        this.responseCache.recordBytesSaved(remaining(this.cachedResponse));
+
+        LOGGER.debug("Serving " + cacheKey + " from cache to " + SocketEndpoints.describe(this.clientChannel));
+        return true;
+    }
+
+    /**
+     * Удаляет из буфера запросов байты запроса, обслуженного из кэша, сдвигая следующие за ним байты
+     * @param start индекс начала запроса
+     * @param end индекс после конца запроса
+     * @param to индекс после последнего байта в буфере
+     * @return новый индекс после последнего байта в буфере
+     */
+    private int discardRequestBytes(final int start, final int end, final int to) {
+
+        for (int i = end; i < to; i++) {
+            this.requestBuffer.put(start + i - end, this.requestBuffer.get(i));
+        }
+
+        final int newTo = start + (to - end);
+        this.requestBuffer.position(newTo);
+        return newTo;
+    }
+
+    /**
+     * Читает данные сервера, отмечает границы ответов и передает данные клиенту
+     * @throws IOException
+     */
+    private void readResponses() throws IOException {
+
+        acquireResponseBuffer();
+        final int from = this.responseBuffer.position();
+        final int bytesRead;
+
+        try {
+            bytesRead = this.upstreamChannel.read(this.responseBuffer);
+        } catch (IOException e) {
+            if (retryOnNewConnection()) {
+                return;
+            }
+            this.backendHealth.onFailure();
+            throw e;
+        }
+
+        if (bytesRead == -1) {
+            if (!retryOnNewConnection()) {
+                onUpstreamClosed();
+            }
+            return;
+        }
+
+        if (bytesRead > 0) {
+            //Сервер начал отвечать, соединение живое
+            this.replayBuffer = null;
+        }
+
+        if (!this.tunnel) {
+            try {
+                parseResponses(from, this.responseBuffer.position());
+            } catch (HttpFramingException e) {
+                //Соединение с таким ответом нельзя отдавать другим клиентам
+                this.upstreamReusable = false;
+                throw e;
+            }
+        }
+
+        flushResponses();
+        releaseUpstreamIfIdle();
+    }
+
+    private void parseResponses(final int from, final int to) throws HttpFramingException {
+
+        int index = from;
+
+        while (index < to && !this.tunnel) {
+
+            if (this.responseFramer.isAtMessageStart()) {
+
+                if (this.pendingRequests.isEmpty()) {
+                    LOGGER.warn("Unsolicited data from " + this.upstreamChannel + ". Connection will not be reused");
+                    switchToTunnel();
+                    return;
+                }
+                this.responseFramer.setRequestMethod(this.pendingRequests.peek().method);
+                startCapture(this.pendingRequests.peek().cacheKey);
+            }
+
+            final int segmentStart = index;
+            index = this.responseFramer.advance(this.responseBuffer, index, to);
+
+            if (this.captureKey != null) {
+                capture(segmentStart, index);
+            }
+
+            if (this.responseFramer.isMessageComplete()) {
+                onResponseComplete();
+            } else if (this.responseFramer.isReadUntilClose()) {
+                switchToTunnel();
+            }
+        }
+    }
+
+    private void onResponseComplete() {
+
+        if (this.responseFramer.isInterimResponse()) {
+            this.responseFramer.reset();
+            //Промежуточный ответ в кэш не попадает, копируем окончательный ответ заново
+            startCapture(this.captureKey);
+            return;
+        }
+
+        this.pendingRequests.poll();
+        if (!this.responseFramer.isKeepAlive()) {
+            this.upstreamReusable = false;
+        }
+        this.backendHealth.onGracefulClose();
+
+        if (this.captureKey != null && this.captureLifetimeMillis > 0) {
+            this.captureBuffer.flip();
+            this.responseCache.put(this.captureKey, this.captureBuffer,
+                    System.currentTimeMillis() + this.captureLifetimeMillis, this.responseFramer.getHeader("etag"));
+        }
+        startCapture(null);
+
+        this.responseFramer.reset();
+    }
+
+    /**
+     * Начинает копирование ответа для сохранения в кэш
+     * @param cacheKey ключ кэша запроса или null, если ответ не нужно сохранять
+     */
+    private void startCapture(final String cacheKey) {
+
+        this.captureKey = cacheKey;
+        this.captureLifetimeMillis = -1L;
+
+        if (cacheKey == null) {
+            this.captureBuffer = null;
+        } else if (this.captureBuffer == null) {
+            this.captureBuffer = ByteBuffer.allocate(CAPTURE_BUFFER_INITIAL_CAPACITY);
+        } else {
+            this.captureBuffer.clear();
+        }
+    }
+
+    /**
+     * Копирует часть ответа для сохранения в кэш. Как только заголовки ответа разобраны и ясно, что ответ
+     * кэшировать нельзя, или ответ оказывается больше допустимого размера записи кэша, копирование прекращается
+     * @param from индекс начала части ответа в буфере ответов
+     * @param to индекс после конца части ответа
+     */
+    private void capture(final int from, final int to) {
+
+        if (this.captureLifetimeMillis < 0 && this.responseFramer.isHeadersComplete()
+                && !this.responseFramer.isInterimResponse()) {
+
+            this.captureLifetimeMillis = HttpCachePolicy.getFreshnessLifetimeMillis(this.responseFramer);
+            if (this.captureLifetimeMillis <= 0) {
+                startCapture(null);
+                return;
+            }
+        }
+
+        final int length = to - from;
+
+        if (this.captureBuffer.position() + length > this.responseCache.getMaxEntryBytes()) {
+            startCapture(null);
+            return;
+        }
+
+        if (this.captureBuffer.remaining() < length) {
+            final int capacity = Math.max(this.captureBuffer.position() + length, this.captureBuffer.capacity() * 2);
+            final ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, this.responseCache.getMaxEntryBytes()));
+            this.captureBuffer.flip();
+            grown.put(this.captureBuffer);
+            this.captureBuffer = grown;
+        }
+
+        final ByteBuffer segment = this.responseBuffer.duplicate();
+        segment.limit(to).position(from);
+        this.captureBuffer.put(segment);
+    }
+
+    /**
+     * Дальше данные передаются без разбора до закрытия соединения
+     */
+    private void switchToTunnel() {
+        this.tunnel = true;
+        this.upstreamReusable = false;
+        startCapture(null);
+    }
+
+    /**
+     * Сервер закрыл соединение. Если ответ еще не передан полностью, клиентское соединение закрывается после
+     * передачи оставшихся данных. Закрытие простаивающего соединения на клиента не влияет.
+     */
+    private void onUpstreamClosed() throws IOException {
+
+        LOGGER.debug(this.upstreamChannel + " has been closed by remote entity");
+
+        closeUpstream();
+        this.backendHealth.onGracefulClose();
+
+        if (this.tunnel || !this.pendingRequests.isEmpty()
+                || !this.requestFramer.isAtMessageStart() || !this.responseFramer.isAtMessageStart()) {
+
+            this.closeAfterResponseFlush = true;
+            this.finished = bufferedBytes(this.responseBuffer) == 0;
+        }
+    }
+
+    /**
+     * Берет соединение с сервером из пула или начинает устанавливать новое
+     * @throws IOException
+     */
+    private void acquireUpstream() throws IOException {
+
+        final SocketChannel pooledChannel = this.upstreamPool.acquire();
+
+        if (pooledChannel != null) {
+            LOGGER.debug("Reusing keep-alive connection " + pooledChannel
+                    + " for " + SocketEndpoints.describe(this.clientChannel));
+            this.upstreamChannel = pooledChannel;
+            this.replayBuffer = ByteBuffer.allocate(REPLAY_BUFFER_CAPACITY);
+            return;
+        }
+
+        connectUpstream();
+    }
+
+    /**
+     * Начинает устанавливать новое соединение с сервером
+     * @throws IOException
+     */
+    private void connectUpstream() throws IOException {
+
+        this.upstreamConnector = new HappyEyeballsConnector(this.proxyProperty, this.eventSelector);
+        this.upstreamConnector.start();
+
+        if (this.upstreamConnector.isConnected()) {
+            onUpstreamConnected();
+        }
+    }
+
+    private void onUpstreamConnected() throws IOException {
+
+        this.upstreamChannel = this.upstreamConnector.getConnectedChannel();
+        this.upstreamConnector = null;
+        this.backendHealth.onConnected();
+
+        LOGGER.debug(this.upstreamChannel + " was connected to remote entity");
+
+        flushRequests();
+    }
+
+    /**
+     * Повторяет запросы в новом соединении, если соединение из пула закрыто сервером до первого байта ответа,
+     * все отправленные в него байты сохранены, а все запросы идемпотентны
+     * @return true - запросы будут повторены, false - повтор невозможен
+     * @throws IOException
+     */
+    private boolean retryOnNewConnection() throws IOException {
+
+        final ByteBuffer replay = this.replayBuffer;
+        this.replayBuffer = null;
+
+        if (replay == null || this.tunnel || this.pendingRequests.isEmpty() || !this.requestFramer.isAtMessageStart()
+                || replay.position() + bufferedBytes(this.requestBuffer) > ConnectionRegistry.TRANSFER_BUFFER_SIZE) {
+            return false;
+        }
+        for (final PendingRequest pendingRequest : this.pendingRequests) {
+            if (!IDEMPOTENT_METHODS.contains(pendingRequest.method)) {
+                return false;
+            }
+        }
+
+        LOGGER.debug("Keep-alive connection " + this.upstreamChannel + " has been closed before the response. "
+                + "Retrying " + this.pendingRequests.size() + " request(s) on a new connection");
+
+        closeUpstream();
+
+        //Сохраненные байты ставим перед еще не отправленными
+        acquireRequestBuffer();
+        this.requestBuffer.flip();
+        final ByteBuffer unsent = ByteBuffer.allocate(this.requestBuffer.remaining());
+        unsent.put(this.requestBuffer).flip();
+
+        this.requestBuffer.clear();
+        replay.flip();
+        this.requestBuffer.put(replay);
+        this.requestBuffer.put(unsent);
+
+        connectUpstream();
+        return true;
+    }
+
+    /**
+     * Возвращает соединение с сервером в пул, если все ответы получены и новых запросов нет
+     */
+    private void releaseUpstreamIfIdle() throws IOException {
+
+        if (this.upstreamChannel == null || !this.pendingRequests.isEmpty()
+                || !this.requestFramer.isAtMessageStart() || !this.responseFramer.isAtMessageStart()
+                || bufferedBytes(this.requestBuffer) != 0) {
+            return;
+        }
+
+        if (!this.upstreamReusable) {
+            closeUpstream();
+            return;
+        }
+
+        final SelectionKey upstreamKey = this.upstreamChannel.keyFor(this.eventSelector);
+        if (upstreamKey != null) {
+            upstreamKey.cancel();
+        }
+
+        LOGGER.debug("Returning keep-alive connection " + this.upstreamChannel + " to the pool");
+
+        this.upstreamPool.release(this.upstreamChannel);
+        this.upstreamChannel = null;
+        this.replayBuffer = null;
+        this.upstreamReusable = true;
+    }
+
+    private void closeUpstream() throws IOException {
+        this.upstreamChannel.close();
+        this.upstreamChannel = null;
+        this.upstreamReusable = !this.tunnel;
+        startCapture(null);
+    }
+
+    private void flushRequests() throws IOException {
+
+        if (this.upstreamChannel == null || bufferedBytes(this.requestBuffer) == 0) {
+            return;
+        }
+
+        this.requestBuffer.flip();
+        final int written;
+        try {
+            written = this.upstreamChannel.write(this.requestBuffer);
+        } catch (IOException e) {
+            this.requestBuffer.compact();
+            if (retryOnNewConnection()) {
+                return;
+            }
+            throw e;
+        }
+
+        if (this.replayBuffer != null) {
+            if (this.replayBuffer.remaining() < written) {
+                this.replayBuffer = null;
+            } else {
+                final ByteBuffer sent = this.requestBuffer.duplicate();
+                sent.limit(sent.position()).position(sent.position() - written);
+                this.replayBuffer.put(sent);
+            }
+        }
+        this.requestBuffer.compact();
+    }
+
+    private void flushResponses() throws IOException {
+
+        if (this.cachedResponse != null) {
+
+            this.trafficCounter.addSent(this.clientChannel.write(this.cachedResponse));
+            if (remaining(this.cachedResponse) > 0) {
+                return;
+            }
+            this.cachedResponse = null;
+        }
+
+        if (bufferedBytes(this.responseBuffer) == 0) {
+            if (this.closeAfterResponseFlush) {
+                this.finished = true;
+            }
+            return;
+        }
+
+        this.responseBuffer.flip();
+        try {
+            this.trafficCounter.addSent(this.clientChannel.write(this.responseBuffer));
+        } finally {
+            this.responseBuffer.compact();
+        }
+
+        if (this.closeAfterResponseFlush && this.responseBuffer.position() == 0) {
+            this.finished = true;
+        }
+    }
+
+    /**
+     * Обновляет интересующие события каналов: читаем, пока в буфере есть место, и ждем готовности к записи,
+     * пока в буфере есть непереданные данные
+     * @throws IOException
+     */
+    private void updateInterestOps() throws IOException {
+
+        int clientOps = bufferedBytes(this.responseBuffer) > 0 || this.cachedResponse != null
+                ? SelectionKey.OP_WRITE : 0;
+        if (hasFreeSpace(this.requestBuffer) && !this.closeAfterResponseFlush) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        setInterestOps(this.clientChannel, clientOps);
+
+        if (this.upstreamChannel != null) {
+
+            int upstreamOps = bufferedBytes(this.requestBuffer) > 0 ? SelectionKey.OP_WRITE : 0;
+            //Пока клиенту передается ответ из кэша, следующие ответы сервера не читаем, чтобы сохранить порядок
+            if (hasFreeSpace(this.responseBuffer) && this.cachedResponse == null) {
+                upstreamOps |= SelectionKey.OP_READ;
+            }
+            setInterestOps(this.upstreamChannel, upstreamOps);
+        }
+    }
+
+    /**
+     * Возвращает буфер запросов, при необходимости получая его из реестра соединений
+     * @return пустой буфер или буфер с данными, ожидающими записи
+     */
+    private ByteBuffer acquireRequestBuffer() {
+
+        if (this.requestBuffer == null) {
+            this.requestBuffer = this.connectionRegistry.acquireBuffer(this.connectionId,
+                    ConnectionRegistry.LOCAL_TO_REMOTE);
+        }
+        return this.requestBuffer;
+    }
+
+    /**
+     * Возвращает буфер ответов, при необходимости получая его из реестра соединений
+     * @return пустой буфер или буфер с данными, ожидающими записи
+     */
+    private ByteBuffer acquireResponseBuffer() {
+
+        if (this.responseBuffer == null) {
+            this.responseBuffer = this.connectionRegistry.acquireBuffer(this.connectionId,
+                    ConnectionRegistry.REMOTE_TO_LOCAL);
+        }
+        return this.responseBuffer;
+    }
+
+    /**
+     * Возвращает в реестр соединений буферы, все данные которых уже переданы. Границы сообщений отслеживаются
+     * по счетчикам байтов, поэтому пустой буфер между событиями ничего не хранит
+     */
+    private void releaseIdleBuffers() {
+
+        if (this.requestBuffer != null && this.requestBuffer.position() == 0
+                && this.connectionRegistry.releaseBuffer(this.connectionId, ConnectionRegistry.LOCAL_TO_REMOTE)) {
+            this.requestBuffer = null;
+        }
+        if (this.responseBuffer != null && this.responseBuffer.position() == 0
+                && this.connectionRegistry.releaseBuffer(this.connectionId, ConnectionRegistry.REMOTE_TO_LOCAL)) {
+            this.responseBuffer = null;
+        }
+    }
+
+    /**
+     * @param buffers буферы ответа из кэша
+     * @return число еще не переданных байтов
+     */
+    private static long remaining(final ByteBuffer[] buffers) {
+
+        long remaining = 0L;
+        for (final ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * @param buffer буфер передачи или null, если он возвращен в реестр
+     * @return число байтов, ожидающих записи
+     */
+    private static int bufferedBytes(final ByteBuffer buffer) {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * @param buffer буфер передачи или null, если он возвращен в реестр
+     * @return true - в буфер можно читать
+     */
+    private static boolean hasFreeSpace(final ByteBuffer buffer) {
+        return buffer == null || buffer.hasRemaining();
+    }
+
+    private void setInterestOps(final SocketChannel channel, final int ops) throws IOException {
+
+        final SelectionKey key = channel.keyFor(this.eventSelector);
+
+        if (key != null && key.isValid()) {
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+            return;
+        }
+
+        if (key != null) {
+            //Соединение вернулось из пула, а ключ прошлой регистрации еще не снят с селектора
+            this.eventSelector.selectNow();
+            this.eventSelector.selectedKeys().clear();
+        }
+        channel.register(this.eventSelector, ops);
+    }
+
+    /**
+     * Запрос, ответ на который еще не получен
+     */
+    private static class PendingRequest {
+
+        private final String method;
+
+        //Ключ кэша, под которым нужно сохранить ответ, null - ответ не кэшируется
+        private final String cacheKey;
+
+        private PendingRequest(final String method, final String cacheKey) {
+            this.method = method;
+            this.cacheKey = cacheKey;
+        }
+    }
+}
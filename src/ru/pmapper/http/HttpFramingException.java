@@ -0,0 +1,15 @@
+package ru.pmapper.http;
+
+import java.io.IOException;
+
+/**
+ * Ошибка разбора границ HTTP сообщения. Соединение с такими данными не может обрабатываться в режиме HTTP
+ */
+public class HttpFramingException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public HttpFramingException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,561 @@
+package ru.pmapper.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Пошаговый разбор границ HTTP/1.1 сообщений одного направления (запросов или ответов). Разбор выполняется прямо
+ * на буфере передачи данных абсолютными чтениями и не меняет его позицию: байты тела сообщения не копируются,
+ * во вспомогательный буфер попадает только текущая строка заголовков. Длина тела определяется по заголовкам
+ * Content-Length и Transfer-Encoding: chunked.
+ *
+ * Соединения с удаленным сервером используются запросами разных клиентов, поэтому разбор строгий: сообщение,
+ * длину которого сервер мог бы определить иначе, чем маршрутизатор (несколько разных Content-Length,
+ * Transfer-Encoding вместе с Content-Length, кодирование запроса, которое не заканчивается chunked, пробел
+ * перед двоеточием в заголовке, CR или LF не в составе CRLF), отвергается, чтобы через общее соединение нельзя
+ * было передать лишний запрос.
+ *
+ * После Upgrade, CONNECT или ответа без длины тела разбор прекращается, и все последующие байты считаются
+ * телом, которое заканчивается только закрытием соединения.
+ */
+public class HttpMessageFramer {
+
+    //Наибольшая длина строки заголовков
+    private static final int MAX_LINE_LENGTH = 16384;
+
+    //Наибольшее число заголовков в сообщении
+    private static final int MAX_HEADER_COUNT = 256;
+
+    //Наибольшее число цифр длины тела и размера блока, при котором значение помещается в long
+    private static final int MAX_LENGTH_DIGITS = 18;
+    private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+
+    private enum State {
+        START_LINE,
+        HEADERS,
+        FIXED_BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILERS,
+        UNTIL_CLOSE,
+        COMPLETE
+    }
+
+    //true - разбираются запросы, false - ответы
+    private final boolean request;
+
+    //Заголовки текущего сообщения: имя в нижнем регистре, значение. null - заголовки не сохраняются
+    private final List<String> headers;
+
+    //Текущая строка стартовой строки, заголовков или размера блока
+    private final StringBuilder line = new StringBuilder(128);
+
+    //Последним разобран CR, следующим байтом должен быть LF
+    private boolean carriageReturn;
+
+    private State state = State.START_LINE;
+
+    //Сколько байтов тела или блока осталось
+    private long remaining;
+
+    //Число заголовков текущего сообщения
+    private int headerCount;
+
+    //Метод запроса. Для ответа - метод запроса, на который он отвечает
+    private String method;
+
+    //Цель запроса (URI)
+    private String requestTarget;
+
+    //Код статуса ответа
+    private int statusCode;
+
+    private boolean http10;
+
+    private long contentLength = -1L;
+
+    private boolean chunked;
+
+    //Последнее кодирование из заголовков Transfer-Encoding, null - заголовков нет
+    private String lastTransferCoding;
+
+    //Кодирование chunked встретилось не последним
+    private boolean chunkedNotLast;
+
+    private boolean connectionClose;
+
+    private boolean connectionKeepAlive;
+
+    private boolean upgrade;
+
+    /**
+     * @param request true - разбирать запросы, false - ответы
+     */
+    public HttpMessageFramer(final boolean request) {
+        this(request, false);
+    }
+
+    /**
+     * @param request true - разбирать запросы, false - ответы
+     * @param captureHeaders сохранять заголовки сообщения, чтобы их можно было получить через {@link #getHeader}
+     */
+    public HttpMessageFramer(final boolean request, final boolean captureHeaders) {
+        this.request = request;
+        this.headers = captureHeaders ? new ArrayList<String>() : null;
+    }
+
+    /**
+     * Разбирает байты буфера в диапазоне [from, to). Разбор останавливается сразу после окончания сообщения,
+     * чтобы вызывающий код мог обработать его границу и вызвать {@link #reset()}
+     * @param buffer буфер передачи данных, его позиция и предел не изменяются
+     * @param from индекс первого неразобранного байта
+     * @param to индекс после последнего байта данных
+     * @return индекс первого байта, который не был разобран
+     * @throws HttpFramingException если данные не являются корректным HTTP/1.1 сообщением
+     */
+    public int advance(final ByteBuffer buffer, final int from, final int to) throws HttpFramingException {
+
+        int index = from;
+
+        while (index < to && this.state != State.COMPLETE) {
+
+            switch (this.state) {
+                case FIXED_BODY:
+                case CHUNK_DATA:
+                    final int bodyBytes = (int) Math.min(this.remaining, to - index);
+                    index += bodyBytes;
+                    this.remaining -= bodyBytes;
+
+                    if (this.remaining == 0) {
+                        this.state = this.state == State.FIXED_BODY ? State.COMPLETE : State.CHUNK_DATA_END;
+                    }
+                    break;
+
+                case UNTIL_CLOSE:
+                    index = to;
+                    break;
+
+                default:
+                    final byte b = buffer.get(index++);
+
+                    if (b == '\n') {
+                        if (!this.carriageReturn) {
+                            throw new HttpFramingException("Bare LF in HTTP message");
+                        }
+                        this.carriageReturn = false;
+                        processLine();
+                        this.line.setLength(0);
+                    } else if (this.carriageReturn) {
+                        //Сервер может считать одиночный CR концом строки и разобрать заголовки иначе
+                        throw new HttpFramingException("Bare CR in HTTP message");
+                    } else if (b == '\r') {
+                        this.carriageReturn = true;
+                    } else {
+                        if (this.line.length() >= MAX_LINE_LENGTH) {
+                            throw new HttpFramingException("HTTP header line is too long");
+                        }
+                        this.line.append((char) (b & 0xFF));
+                    }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Подготовка к разбору следующего сообщения
+     */
+    public void reset() {
+        this.state = State.START_LINE;
+        this.line.setLength(0);
+        this.carriageReturn = false;
+        this.remaining = 0;
+        this.headerCount = 0;
+        this.requestTarget = null;
+        this.statusCode = 0;
+        this.http10 = false;
+        this.contentLength = -1L;
+        this.chunked = false;
+        this.lastTransferCoding = null;
+        this.chunkedNotLast = false;
+        this.connectionClose = false;
+        this.connectionKeepAlive = false;
+        this.upgrade = false;
+        if (this.headers != null) {
+            this.headers.clear();
+        }
+        if (this.request) {
+            this.method = null;
+        }
+    }
+
+    /**
+     * Задает метод запроса, на который отвечает следующий ответ. От него зависит наличие тела ответа
+     * @param requestMethod метод запроса
+     */
+    public void setRequestMethod(final String requestMethod) {
+        this.method = requestMethod;
+    }
+
+    public boolean isMessageComplete() {
+        return this.state == State.COMPLETE;
+    }
+
+    /**
+     * @return true, если ни один байт следующего сообщения еще не разобран
+     */
+    public boolean isAtMessageStart() {
+        return this.state == State.START_LINE && this.line.length() == 0 && !this.carriageReturn;
+    }
+
+    /**
+     * @return true, если стартовая строка и заголовки сообщения уже разобраны
+     */
+    public boolean isHeadersComplete() {
+        return this.state != State.START_LINE && this.state != State.HEADERS;
+    }
+
+    /**
+     * @return true, если тело сообщения заканчивается только закрытием соединения
+     */
+    public boolean isReadUntilClose() {
+        return this.state == State.UNTIL_CLOSE;
+    }
+
+    /**
+     * @return true, если ответ промежуточный (1xx, кроме 101) и за ним последует окончательный ответ
+     */
+    public boolean isInterimResponse() {
+        return !this.request && this.statusCode >= 100 && this.statusCode < 200 && this.statusCode != 101;
+    }
+
+    /**
+     * @return true, если после сообщения соединение может использоваться для следующего сообщения
+     */
+    public boolean isKeepAlive() {
+        return !this.upgrade && (this.http10 ? this.connectionKeepAlive : !this.connectionClose);
+    }
+
+    /**
+     * @return true, если после сообщения соединение переключается на другой протокол (Upgrade или CONNECT)
+     */
+    public boolean isProtocolSwitch() {
+        return this.upgrade || (this.request && "CONNECT".equals(this.method));
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getRequestTarget() {
+        return requestTarget;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isHttp10() {
+        return http10;
+    }
+
+    /**
+     * Возвращает значение заголовка текущего сообщения. Значения повторяющихся заголовков объединяются через запятую
+     * @param lowerCaseName имя заголовка в нижнем регистре
+     * @return значение или null, если заголовка нет или заголовки не сохраняются
+     */
+    public String getHeader(final String lowerCaseName) {
+
+        if (this.headers == null) {
+            return null;
+        }
+
+        String value = null;
+        for (int i = 0; i < this.headers.size(); i += 2) {
+            if (this.headers.get(i).equals(lowerCaseName)) {
+                value = value == null ? this.headers.get(i + 1) : value + ", " + this.headers.get(i + 1);
+            }
+        }
+        return value;
+    }
+
+    private void processLine() throws HttpFramingException {
+
+        switch (this.state) {
+            case START_LINE:
+                //Пустые строки перед стартовой строкой допускаются RFC 7230
+                if (this.line.length() > 0) {
+                    processStartLine();
+                    this.state = State.HEADERS;
+                }
+                break;
+
+            case HEADERS:
+                if (this.line.length() == 0) {
+                    startBody();
+                } else {
+                    processHeader();
+                }
+                break;
+
+            case CHUNK_SIZE:
+                this.remaining = parseChunkSize();
+                this.state = this.remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+
+            case CHUNK_DATA_END:
+                if (this.line.length() != 0) {
+                    throw new HttpFramingException("Chunk data is not followed by CRLF");
+                }
+                this.state = State.CHUNK_SIZE;
+                break;
+
+            case TRAILERS:
+                if (this.line.length() == 0) {
+                    this.state = State.COMPLETE;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unexpected framer state " + this.state);
+        }
+    }
+
+    private void processStartLine() throws HttpFramingException {
+
+        final String startLine = this.line.toString();
+        final int firstSpace = startLine.indexOf(' ');
+
+        if (firstSpace <= 0) {
+            throw new HttpFramingException("Malformed HTTP start line");
+        }
+
+        if (this.request) {
+            final int secondSpace = startLine.indexOf(' ', firstSpace + 1);
+            if (secondSpace < 0) {
+                throw new HttpFramingException("Malformed HTTP request line");
+            }
+            this.method = startLine.substring(0, firstSpace);
+            this.requestTarget = startLine.substring(firstSpace + 1, secondSpace);
+            this.http10 = startLine.endsWith("HTTP/1.0");
+        } else {
+            this.http10 = startLine.startsWith("HTTP/1.0");
+            this.statusCode = parseStatusCode(startLine, firstSpace + 1);
+        }
+    }
+
+    private void processHeader() throws HttpFramingException {
+
+        if (++this.headerCount > MAX_HEADER_COUNT) {
+            throw new HttpFramingException("Too many HTTP headers");
+        }
+
+        final int colon = this.line.indexOf(":");
+        if (colon <= 0) {
+            throw new HttpFramingException("Malformed HTTP header");
+        }
+
+        final String name = this.line.substring(0, colon);
+        final String value = this.line.substring(colon + 1).trim();
+
+        //Пробел перед двоеточием или в начале строки (obs-fold) RFC 7230 требует отвергать
+        for (int i = 0; i < colon; i++) {
+            final char c = name.charAt(i);
+            if (c == ' ' || c == '\t') {
+                throw new HttpFramingException("Whitespace in HTTP header name");
+            }
+        }
+
+        if (this.headers != null) {
+            this.headers.add(name.toLowerCase());
+            this.headers.add(value);
+        }
+
+        if (name.equalsIgnoreCase("Content-Length")) {
+            processContentLength(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            processTransferEncoding(value);
+        } else if (name.equalsIgnoreCase("Connection")) {
+            processConnection(value);
+        }
+    }
+
+    /**
+     * Запоминает параметры соединения из значения Connection. Сравниваются целые элементы списка, а не подстроки
+     * @param value значение заголовка
+     */
+    private void processConnection(final String value) {
+
+        for (final String element : value.split(",")) {
+
+            final String option = element.trim();
+            if (option.equalsIgnoreCase("close")) {
+                this.connectionClose = true;
+            } else if (option.equalsIgnoreCase("keep-alive")) {
+                this.connectionKeepAlive = true;
+            } else if (option.equalsIgnoreCase("upgrade")) {
+                this.upgrade = true;
+            }
+        }
+    }
+
+    /**
+     * Разбирает значение Content-Length. Допускается список одинаковых значений, в том числе из повторяющихся
+     * заголовков. Значение - только десятичные цифры
+     * @param value значение заголовка
+     * @throws HttpFramingException если значение некорректно или отличается от уже полученного
+     */
+    private void processContentLength(final String value) throws HttpFramingException {
+
+        for (final String element : value.split(",", -1)) {
+
+            final String digits = element.trim();
+            if (digits.isEmpty() || digits.length() > MAX_LENGTH_DIGITS || !isDigits(digits, 10)) {
+                throw new HttpFramingException("Malformed Content-Length");
+            }
+
+            final long length = Long.parseLong(digits);
+            if (this.contentLength >= 0 && this.contentLength != length) {
+                throw new HttpFramingException("Conflicting Content-Length values");
+            }
+            this.contentLength = length;
+        }
+    }
+
+    /**
+     * Запоминает кодирования из значения Transfer-Encoding. Повторяющиеся заголовки образуют один список
+     * @param value значение заголовка
+     */
+    private void processTransferEncoding(final String value) {
+
+        for (final String element : value.split(",")) {
+
+            final String coding = element.trim().toLowerCase();
+            if (coding.isEmpty()) {
+                continue;
+            }
+            if ("chunked".equals(this.lastTransferCoding)) {
+                this.chunkedNotLast = true;
+            }
+            this.lastTransferCoding = coding;
+        }
+    }
+
+    /**
+     * Проверяет, что длина тела определяется однозначно, и запоминает, передается ли тело блоками
+     * @throws HttpFramingException если сообщение могло бы быть разобрано сервером иначе
+     */
+    private void checkBodyFraming() throws HttpFramingException {
+
+        if (this.lastTransferCoding == null) {
+            return;
+        }
+
+        if (this.contentLength >= 0) {
+            throw new HttpFramingException("Both Transfer-Encoding and Content-Length are present");
+        }
+        if (this.chunkedNotLast) {
+            throw new HttpFramingException("Transfer-Encoding chunked is not the final coding");
+        }
+
+        this.chunked = "chunked".equals(this.lastTransferCoding);
+
+        //Длину тела ответа с другим кодированием определяет закрытие соединения, для запроса ее определить нельзя
+        if (!this.chunked && this.request) {
+            throw new HttpFramingException("Unsupported Transfer-Encoding " + this.lastTransferCoding);
+        }
+    }
+
+    /**
+     * Заголовки закончились, определяем, как закончится тело сообщения
+     * @throws HttpFramingException если длину тела нельзя определить однозначно
+     */
+    private void startBody() throws HttpFramingException {
+
+        checkBodyFraming();
+
+        if (this.request) {
+            if (isProtocolSwitch()) {
+                this.state = State.UNTIL_CLOSE;
+            } else {
+                startSizedBody();
+            }
+            return;
+        }
+
+        if (this.statusCode == 101) {
+            this.upgrade = true;
+            this.state = State.UNTIL_CLOSE;
+        } else if ("CONNECT".equals(this.method) && this.statusCode >= 200 && this.statusCode < 300) {
+            this.upgrade = true;
+            this.state = State.UNTIL_CLOSE;
+        } else if ("HEAD".equals(this.method) || this.statusCode < 200
+                || this.statusCode == 204 || this.statusCode == 304) {
+            this.state = State.COMPLETE;
+        } else if (this.chunked || this.contentLength >= 0) {
+            startSizedBody();
+        } else {
+            //Тело без длины или с кодированием, отличным от chunked, заканчивается закрытием соединения
+            this.connectionClose = true;
+            this.state = State.UNTIL_CLOSE;
+        }
+    }
+
+    private void startSizedBody() {
+
+        if (this.chunked) {
+            this.state = State.CHUNK_SIZE;
+        } else if (this.contentLength > 0) {
+            this.remaining = this.contentLength;
+            this.state = State.FIXED_BODY;
+        } else {
+            this.state = State.COMPLETE;
+        }
+    }
+
+    private long parseChunkSize() throws HttpFramingException {
+
+        int end = this.line.indexOf(";");
+        if (end < 0) {
+            end = this.line.length();
+        }
+
+        //Перед расширением блока допускаются пробелы (BWS)
+        final String digits = this.line.substring(0, end).replaceFirst("[ \t]+$", "");
+
+        if (digits.isEmpty() || digits.length() > MAX_CHUNK_SIZE_DIGITS || !isDigits(digits, 16)) {
+            throw new HttpFramingException("Malformed chunk size");
+        }
+        return Long.parseLong(digits, 16);
+    }
+
+    /**
+     * @return true, если строка состоит только из цифр системы счисления, без знака и пробелов
+     */
+    private static boolean isDigits(final String value, final int radix) {
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final boolean digit = (c >= '0' && c <= '9')
+                    || (radix == 16 && ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+            if (!digit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseStatusCode(final String statusLine, final int from) throws HttpFramingException {
+
+        if (statusLine.length() < from + 3) {
+            throw new HttpFramingException("Malformed HTTP status line");
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(from, from + 3));
+        } catch (NumberFormatException e) {
+            throw new HttpFramingException("Malformed HTTP status code");
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package ru.pmapper.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Кэш HTTP ответов одного канала маршрутизации, ограниченный суммарным размером ответов. Ответы хранятся
+ * вне кучи в direct буферах в том виде, в котором их прислал удаленный сервер, и передаются клиентам без
+ * копирования. Только заголовок Age хранится отдельно: при выдаче ответа он заменяется возрастом ответа
+ * с учетом времени, проведенного в кэше.
+ *
+ * Вытеснение устроено по схеме W-TinyLFU: новые ответы попадают в небольшое LRU окно, а вытесненный из окна ответ
+ * попадает в основную область, только если по оценке скетча частот к нему обращаются чаще, чем к ответу, который
+ * пришлось бы вытеснить. Основная область делится на испытательный и защищенный LRU сегменты, повторное
+ * обращение переводит ответ в защищенный сегмент. Так разовые обращения не вымывают популярные ответы.
+ *
+ * Ответ ищется в {@link ConcurrentHashMap} без блокировок. Сегменты LRU и скетч частот меняются только под
+ * блокировкой политики: обращения сначала копятся в {@link AccessBuffer}, а разбираются пачками тем потоком,
+ * которому удалось захватить блокировку без ожидания, или при следующей записи в кэш.
+ */
+public class HttpResponseCache implements HttpResponseCacheMXBean {
+
+    //Доля окна от размера кэша, в процентах
+    private static final int WINDOW_PERCENT = 1;
+
+    //Доля защищенного сегмента от основной области, в процентах
+    private static final int PROTECTED_PERCENT = 80;
+
+    //Предполагаемый средний размер ответа, нужен для выбора размера скетча частот
+    private static final int AVERAGE_ENTRY_BYTES = 4096;
+
+    //Наибольший размер одного ответа
+    private static final int MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final byte[] AGE_HEADER_NAME = "age:".getBytes(HEADER_CHARSET);
+
+    private final long maximumBytes;
+
+    private final long windowMaximum;
+
+    private final long mainMaximum;
+
+    private final long protectedMaximum;
+
+    private final int maxEntryBytes;
+
+    //Все ответы кэша, поиск без блокировок. Изменяется только под блокировкой политики
+    private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<String, CachedResponse>();
+
+    //Блокировка политики вытеснения: LRU сегменты, их размеры и скетч частот
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    //Обращения к кэшу, еще не учтенные политикой вытеснения
+    private final AccessBuffer accessBuffer = new AccessBuffer();
+
+    private final Consumer<String> accessRecorder = new Consumer<String>() {
+        @Override
+        public void accept(final String key) {
+            onAccess(key);
+        }
+    };
+
+    //LRU сегменты: порядок обхода - от давно использованных к недавно использованным
+    private final LinkedHashMap<String, CachedResponse> window = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> probation = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> protectedSegment = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+    private long windowBytes;
+
+    private long probationBytes;
+
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong rejectedAdmissions = new AtomicLong();
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * @param maximumBytes наибольший суммарный размер ответов в кэше
+     */
+    public HttpResponseCache(final long maximumBytes) {
+
+        this.maximumBytes = maximumBytes;
+        this.windowMaximum = Math.max(1L, maximumBytes * WINDOW_PERCENT / 100);
+        this.mainMaximum = maximumBytes - this.windowMaximum;
+        this.protectedMaximum = this.mainMaximum * PROTECTED_PERCENT / 100;
+        this.maxEntryBytes = (int) Math.min(MAX_ENTRY_BYTES, this.mainMaximum);
+
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maximumBytes / AVERAGE_ENTRY_BYTES));
+    }
+
+    /**
+     * Возвращает свежий ответ из кэша
+     * @param key ключ запроса
+     * @return ответ или null, если его нет в кэше или он устарел
+     */
+    public CachedResponse get(final String key) {
+
+        final CachedResponse response = this.entries.get(key);
+
+        if (this.accessBuffer.offer(key)) {
+            tryDrainAccesses();
+        }
+
+        if (response == null) {
+            this.misses.increment();
+            return null;
+        }
+
+        if (response.isExpired()) {
+            removeExpired(key, response);
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+        return response;
+    }
+
+    /**
+     * Помещает ответ в кэш
+     * @param key ключ запроса
+     * @param response байты ответа от позиции до предела буфера
+     * @param expiresAt момент, после которого ответ устаревает
+     * @param etag значение заголовка ETag ответа или null
+     */
+    public void put(final String key, final ByteBuffer response, final long expiresAt, final String etag) {
+
+        if (response.remaining() > this.maxEntryBytes) {
+            return;
+        }
+
+        final CachedResponse cached = copyWithoutAge(response, expiresAt, etag);
+
+        this.evictionLock.lock();
+        try {
+            this.accessBuffer.drain(this.accessRecorder);
+
+            remove(key);
+
+            this.entries.put(key, cached);
+            this.window.put(key, cached);
+            this.windowBytes += cached.size;
+            this.storedBytes.addAndGet(cached.size);
+
+            evictFromWindow();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return наибольший размер ответа, который может попасть в кэш
+     */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Учитывает байты, переданные клиенту из кэша
+     * @param bytes число байтов
+     */
+    public void recordBytesSaved(final long bytes) {
+        this.bytesSaved.add(bytes);
+    }
+
+    /**
+     * Копирует ответ в direct буфер без заголовков Age и запоминает возраст ответа в момент сохранения
+     * @param response байты ответа от позиции до предела буфера, заголовки заканчиваются CRLF
+     * @param expiresAt момент, после которого ответ устаревает
+     * @param etag значение заголовка ETag ответа или null
+     * @return ответ для сохранения в кэш
+     */
+    private static CachedResponse copyWithoutAge(final ByteBuffer response, final long expiresAt, final String etag) {
+
+        final int start = response.position();
+        final int end = response.limit();
+
+        //Начала и концы (вместе с CRLF) строк Age
+        final int[] ageLines = new int[16];
+        int ageLineCount = 0;
+        int ageBytes = 0;
+        long initialAgeSeconds = 0L;
+        int headerEnd = -1;
+
+        int lineStart = start;
+        for (int i = start; i + 1 < end; i++) {
+
+            if (response.get(i) != '\r' || response.get(i + 1) != '\n') {
+                continue;
+            }
+            if (i == lineStart && lineStart != start) {
+                //Пустая строка - конец заголовков
+                headerEnd = i;
+                break;
+            }
+            if (lineStart != start && startsWithIgnoreCase(response, lineStart, i, AGE_HEADER_NAME)
+                    && ageLineCount < ageLines.length) {
+                initialAgeSeconds = Math.max(initialAgeSeconds, parseSeconds(response, lineStart + 4, i));
+                ageLines[ageLineCount++] = lineStart;
+                ageLines[ageLineCount++] = i + 2;
+                ageBytes += i + 2 - lineStart;
+            }
+            lineStart = i + 2;
+            i++;
+        }
+
+        final ByteBuffer data = ByteBuffer.allocateDirect(end - start - ageBytes);
+        int from = start;
+        for (int line = 0; line < ageLineCount; line += 2) {
+            data.put(slice(response, from, ageLines[line]));
+            from = ageLines[line + 1];
+        }
+        data.put(slice(response, from, end));
+        data.flip();
+
+        return new CachedResponse(data.asReadOnlyBuffer(), headerEnd < 0 ? -1 : headerEnd - start - ageBytes,
+                System.currentTimeMillis(), initialAgeSeconds, expiresAt, etag);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int from, final int to) {
+
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(to).position(from);
+        return slice;
+    }
+
+    private static boolean startsWithIgnoreCase(final ByteBuffer buffer, final int from, final int to,
+                                                final byte[] prefix) {
+
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toLowerCase(buffer.get(from + i)) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return значение заголовка в секундах или 0, если значение некорректно
+     */
+    private static long parseSeconds(final ByteBuffer buffer, final int from, final int to) {
+
+        long seconds = 0L;
+        boolean digits = false;
+
+        for (int i = from; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b >= '0' && b <= '9' && seconds < Integer.MAX_VALUE) {
+                seconds = seconds * 10 + (b - '0');
+                digits = true;
+            } else if (b != ' ' && b != '\t') {
+                return 0L;
+            }
+        }
+        return digits ? seconds : 0L;
+    }
+
+    /**
+     * Разбирает накопленные обращения, если блокировка политики свободна. Иначе их разберет ее владелец
+     * или следующий поток
+     */
+    private void tryDrainAccesses() {
+
+        if (this.evictionLock.tryLock()) {
+            try {
+                this.accessBuffer.drain(this.accessRecorder);
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Учитывает обращение к ключу в скетче частот и порядке LRU. Повторное обращение к ответу из испытательного
+     * сегмента переводит его в защищенный. Вызывается под блокировкой политики
+     * @param key ключ запроса
+     */
+    private void onAccess(final String key) {
+
+        this.sketch.increment(key.hashCode());
+
+        if (this.window.get(key) != null) {
+            return;
+        }
+
+        final CachedResponse response = this.probation.remove(key);
+
+        if (response != null) {
+            this.probationBytes -= response.size;
+            this.protectedSegment.put(key, response);
+            this.protectedBytes += response.size;
+            demoteProtectedOverflow();
+        } else {
+            this.protectedSegment.get(key);
+        }
+    }
+
+    /**
+     * Удаляет устаревший ответ, если его еще не заменили новым
+     * @param key ключ запроса
+     * @param expired устаревший ответ
+     */
+    private void removeExpired(final String key, final CachedResponse expired) {
+
+        this.evictionLock.lock();
+        try {
+            if (this.entries.get(key) == expired) {
+                remove(key);
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Переносит давно использованные ответы из переполненного окна в основную область, если политика допуска
+     * считает их популярнее вытесняемых оттуда ответов
+     */
+    private void evictFromWindow() {
+
+        while (this.windowBytes > this.windowMaximum && !this.window.isEmpty()) {
+
+            final Iterator<Map.Entry<String, CachedResponse>> eldest = this.window.entrySet().iterator();
+            final Map.Entry<String, CachedResponse> candidate = eldest.next();
+            eldest.remove();
+            this.windowBytes -= candidate.getValue().size;
+
+            admitToMain(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    private void admitToMain(final String candidateKey, final CachedResponse candidate) {
+
+        final int candidateFrequency = this.sketch.frequency(candidateKey.hashCode());
+
+        while (this.probationBytes + this.protectedBytes + candidate.size > this.mainMaximum) {
+
+            final LinkedHashMap<String, CachedResponse> victimSegment
+                    = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+            final Iterator<Map.Entry<String, CachedResponse>> eldest = victimSegment.entrySet().iterator();
+
+            if (!eldest.hasNext()) {
+                break;
+            }
+
+            final Map.Entry<String, CachedResponse> victim = eldest.next();
+
+            if (candidateFrequency <= this.sketch.frequency(victim.getKey().hashCode())) {
+                this.entries.remove(candidateKey);
+                this.rejectedAdmissions.incrementAndGet();
+                this.storedBytes.addAndGet(-candidate.size);
+                return;
+            }
+
+            eldest.remove();
+            this.entries.remove(victim.getKey());
+            if (victimSegment == this.probation) {
+                this.probationBytes -= victim.getValue().size;
+            } else {
+                this.protectedBytes -= victim.getValue().size;
+            }
+            this.storedBytes.addAndGet(-victim.getValue().size);
+            this.evictions.incrementAndGet();
+        }
+
+        this.probation.put(candidateKey, candidate);
+        this.probationBytes += candidate.size;
+    }
+
+    /**
+     * Переносит давно использованные ответы из переполненного защищенного сегмента в испытательный
+     */
+    private void demoteProtectedOverflow() {
+
+        while (this.protectedBytes > this.protectedMaximum) {
+
+            final Iterator<Map.Entry<String, CachedResponse>> eldest = this.protectedSegment.entrySet().iterator();
+            final Map.Entry<String, CachedResponse> demoted = eldest.next();
+            eldest.remove();
+
+            this.protectedBytes -= demoted.getValue().size;
+            this.probation.put(demoted.getKey(), demoted.getValue());
+            this.probationBytes += demoted.getValue().size;
+        }
+    }
+
+    private void remove(final String key) {
+
+        CachedResponse removed;
+
+        if ((removed = this.window.remove(key)) != null) {
+            this.windowBytes -= removed.size;
+        } else if ((removed = this.probation.remove(key)) != null) {
+            this.probationBytes -= removed.size;
+        } else if ((removed = this.protectedSegment.remove(key)) != null) {
+            this.protectedBytes -= removed.size;
+        }
+
+        if (removed != null) {
+            this.entries.remove(key);
+            this.storedBytes.addAndGet(-removed.size);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hitCount = this.hits.sum();
+        final long requestCount = hitCount + this.misses.sum();
+        return requestCount == 0 ? 0.0 : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return this.bytesSaved.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    @Override
+    public long getRejectedAdmissions() {
+        return this.rejectedAdmissions.get();
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return this.storedBytes.get();
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return this.maximumBytes;
+    }
+
+    @Override
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResponseCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", bytesSaved=" + getBytesSaved() +
+                ", evictions=" + getEvictions() +
+                ", storedBytes=" + getStoredBytes() +
+                ", entries=" + getEntryCount() +
+                '}';
+    }
+
+    /**
+     * Закэшированный ответ. Данные доступны только для чтения, каждый клиент получает собственную копию позиции
+     */
+    public static final class CachedResponse {
+
+        //Ответ без заголовков Age
+        private final ByteBuffer data;
+
+        //Индекс пустой строки после заголовков, -1 - заголовки не найдены и ответ передается как есть
+        private final int headerEnd;
+
+        //Момент сохранения в кэш
+        private final long storedAt;
+
+        //Возраст ответа в момент сохранения (заголовок Age от сервера)
+        private final long initialAgeSeconds;
+
+        private final long expiresAt;
+
+        private final String etag;
+
+        private final int size;
+
+        private CachedResponse(final ByteBuffer data, final int headerEnd, final long storedAt,
+                               final long initialAgeSeconds, final long expiresAt, final String etag) {
+            this.data = data;
+            this.headerEnd = headerEnd;
+            this.storedAt = storedAt;
+            this.initialAgeSeconds = initialAgeSeconds;
+            this.expiresAt = expiresAt;
+            this.etag = etag;
+            this.size = data.remaining();
+        }
+
+        /**
+         * Возвращает ответ для передачи клиенту: заголовки, актуальный заголовок Age, пустую строку и тело.
+         * Байты ответа не копируются
+         * @param now текущее время
+         * @return независимые буферы, которые нужно передать по порядку
+         */
+        public ByteBuffer[] newReader(final long now) {
+
+            if (this.headerEnd < 0) {
+                return new ByteBuffer[] {this.data.duplicate()};
+            }
+
+            final ByteBuffer headers = this.data.duplicate();
+            headers.limit(this.headerEnd);
+
+            final ByteBuffer age = ByteBuffer.wrap(("Age: " + getAgeSeconds(now) + "\r\n").getBytes(HEADER_CHARSET));
+
+            final ByteBuffer body = this.data.duplicate();
+            body.position(this.headerEnd);
+
+            return new ByteBuffer[] {headers, age, body};
+        }
+
+        /**
+         * @param now текущее время
+         * @return возраст ответа: возраст при сохранении и время, проведенное в кэше
+         */
+        public long getAgeSeconds(final long now) {
+            return this.initialAgeSeconds + Math.max(0L, now - this.storedAt) / 1000L;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= this.expiresAt;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.pmapper.http;
+
+/**
+ * Метрики кэша HTTP ответов одного канала маршрутизации, доступные через JMX
+ */
+public interface HttpResponseCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    //Число байтов, переданных клиентам из кэша без обращения к удаленному серверу
+    long getBytesSaved();
+
+    long getEvictions();
+
+    //Число ответов, которым политика допуска отказала в месте в кэше
+    long getRejectedAdmissions();
+
+    long getStoredBytes();
+
+    long getMaximumBytes();
+
+    int getEntryCount();
+}
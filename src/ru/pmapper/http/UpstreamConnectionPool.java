@@ -0,0 +1,178 @@
+package ru.pmapper.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул простаивающих keep-alive соединений с удаленным HTTP сервером одного канала маршрутизации. Соединение
+ * возвращается в пул после окончания ответа и может быть взято обработчиком любого другого клиента. Последним
+ * выдается соединение, вернувшееся в пул последним: оно с наибольшей вероятностью еще не закрыто сервером.
+ */
+public class UpstreamConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamConnectionPool.class);
+
+    //Наибольшее число простаивающих соединений
+    private static final int MAX_IDLE_CONNECTIONS = 32;
+
+    //Время простоя, после которого соединение закрывается. Меньше таймаутов keep-alive популярных серверов
+    private static final long MAX_IDLE_MILLIS = 4000L;
+
+    //Имя сервера для журналирования (хост:порт)
+    private final String backendName;
+
+    private final ConcurrentLinkedDeque<IdleConnection> idleConnections = new ConcurrentLinkedDeque<IdleConnection>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    //Число соединений, выданных из пула повторно
+    private final AtomicLong reusedConnections = new AtomicLong();
+
+    //Пул закрыт: возвращаемые соединения закрываются
+    private volatile boolean closed;
+
+    public UpstreamConnectionPool(final String backendName) {
+        this.backendName = backendName;
+    }
+
+    /**
+     * Возвращает живое простаивающее соединение
+     * @return соединение с сервером или null, если в пуле нет пригодных соединений
+     */
+    public SocketChannel acquire() {
+
+        IdleConnection idleConnection;
+        while ((idleConnection = this.idleConnections.pollFirst()) != null) {
+
+            this.idleCount.decrementAndGet();
+
+            if (!idleConnection.isExpired() && isAlive(idleConnection.channel)) {
+                this.reusedConnections.incrementAndGet();
+                return idleConnection.channel;
+            }
+            closeQuietly(idleConnection.channel);
+        }
+        return null;
+    }
+
+    /**
+     * Возвращает соединение в пул. Если пул заполнен или закрыт, соединение закрывается
+     * @param channel соединение с сервером, ответ на последний запрос в котором полностью прочитан
+     */
+    public void release(final SocketChannel channel) {
+
+        if (this.closed) {
+            closeQuietly(channel);
+            return;
+        }
+
+        if (this.idleCount.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+            this.idleCount.decrementAndGet();
+            closeQuietly(channel);
+        } else {
+            this.idleConnections.offerFirst(new IdleConnection(channel));
+        }
+
+        //Пул могли закрыть, пока соединение возвращалось
+        if (this.closed) {
+            close();
+            return;
+        }
+
+        evictExpired();
+    }
+
+    public int getIdleCount() {
+        return this.idleCount.get();
+    }
+
+    public long getReusedConnections() {
+        return this.reusedConnections.get();
+    }
+
+    public String getBackendName() {
+        return backendName;
+    }
+
+    /**
+     * Закрывает все простаивающие соединения. Соединения, возвращаемые после закрытия пула, тоже закрываются
+     */
+    public void close() {
+        this.closed = true;
+
+        IdleConnection idleConnection;
+        while ((idleConnection = this.idleConnections.pollFirst()) != null) {
+            this.idleCount.decrementAndGet();
+            closeQuietly(idleConnection.channel);
+        }
+    }
+
+    /**
+     * Закрывает соединения, простаивающие слишком долго. Самые старые соединения находятся в конце очереди
+     */
+    private void evictExpired() {
+
+        final Iterator<IdleConnection> oldest = this.idleConnections.descendingIterator();
+
+        while (oldest.hasNext()) {
+
+            final IdleConnection idleConnection = oldest.next();
+            if (!idleConnection.isExpired()) {
+                break;
+            }
+            if (this.idleConnections.removeLastOccurrence(idleConnection)) {
+                this.idleCount.decrementAndGet();
+                closeQuietly(idleConnection.channel);
+            }
+        }
+    }
+
+    /**
+     * Проверяет, что сервер не закрыл соединение во время простоя. Канал неблокирующий, поэтому чтение
+     * живого соединения без данных сразу возвращает 0
+     * @param channel соединение с сервером
+     * @return true - соединение можно использовать
+     */
+    private boolean isAlive(final SocketChannel channel) {
+        try {
+            return channel.isOpen() && channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            LOGGER.debug("Idle connection to " + this.backendName + " has been reset", e);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close idle upstream connection", e);
+        }
+    }
+
+    /**
+     * Простаивающее соединение и время его возврата в пул
+     */
+    private static class IdleConnection {
+
+        private final SocketChannel channel;
+
+        private final long idleSince = System.currentTimeMillis();
+
+        private IdleConnection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - this.idleSince > MAX_IDLE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.pmapper.registry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Пул direct буферов передачи данных одного размера. Буферы нарезаются из больших блоков (slab), которые
+ * выделяются по мере надобности и не освобождаются, поэтому память пула растет до наибольшего числа одновременно
+ * передающих данные соединений, а не до числа открытых соединений.
+ *
+ * Буфер обозначается номером: номер блока * {@link #BUFFERS_PER_SLAB} + номер буфера в блоке. Выдача и возврат
+ * номеров не блокируют потоки, блокировка берется только при выделении нового блока.
+ */
+final class BufferSlabPool {
+
+    //Нет свободного буфера
+    static final int EXHAUSTED = -1;
+
+    //Число буферов в одном блоке
+    static final int BUFFERS_PER_SLAB = 64;
+
+    private final int bufferSize;
+
+    //Буферы всех выделенных блоков по номеру. Элемент записывается до того, как номер попадает в список свободных,
+    //а читается после того, как номер снят с него, поэтому синхронизацию обеспечивает сам список
+    private final ByteBuffer[] buffers;
+
+    private final IntFreeList freeBuffers;
+
+    //Число выделенных блоков, изменяется под блокировкой пула
+    private volatile int slabCount;
+
+    /**
+     * @param bufferSize размер буфера в байтах
+     * @param maxBuffers наибольшее число буферов, округляется вверх до целого числа блоков
+     */
+    BufferSlabPool(final int bufferSize, final int maxBuffers) {
+
+        final int maxSlabs = Math.max(1, (maxBuffers + BUFFERS_PER_SLAB - 1) / BUFFERS_PER_SLAB);
+
+        this.bufferSize = bufferSize;
+        this.buffers = new ByteBuffer[maxSlabs * BUFFERS_PER_SLAB];
+        this.freeBuffers = new IntFreeList(this.buffers.length, false);
+    }
+
+    /**
+     * Выдает свободный буфер, при необходимости выделяя новый блок
+     * @return номер буфера или {@link #EXHAUSTED}, если все блоки выделены и все буферы заняты
+     */
+    int acquire() {
+
+        final int handle = this.freeBuffers.pop();
+        if (handle != EXHAUSTED) {
+            return handle;
+        }
+        return allocateSlab();
+    }
+
+    /**
+     * Возвращает буфер в пул
+     * @param handle номер буфера
+     */
+    void release(final int handle) {
+
+        this.buffers[handle].clear();
+        this.freeBuffers.push(handle);
+    }
+
+    /**
+     * @param handle номер выданного буфера
+     * @return буфер
+     */
+    ByteBuffer get(final int handle) {
+        return this.buffers[handle];
+    }
+
+    int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    int getCapacity() {
+        return this.buffers.length;
+    }
+
+    /**
+     * @return число выделенных буферов, включая свободные
+     */
+    int getAllocatedBuffers() {
+        return this.slabCount * BUFFERS_PER_SLAB;
+    }
+
+    /**
+     * Выделяет новый блок, кладет его буферы, кроме одного, в список свободных и возвращает оставшийся.
+     * Пока поток ждал блокировки, буферы мог вернуть или выделить другой поток, поэтому список проверяется снова
+     * @return номер буфера или {@link #EXHAUSTED}
+     */
+    private synchronized int allocateSlab() {
+
+        final int handle = this.freeBuffers.pop();
+        if (handle != EXHAUSTED || this.slabCount * BUFFERS_PER_SLAB == this.buffers.length) {
+            return handle;
+        }
+
+        final int first = this.slabCount * BUFFERS_PER_SLAB;
+        final ByteBuffer slab = ByteBuffer.allocateDirect(this.bufferSize * BUFFERS_PER_SLAB);
+
+        for (int i = 0; i < BUFFERS_PER_SLAB; i++) {
+            this.buffers[first + i] = slab.slice(i * this.bufferSize, this.bufferSize);
+        }
+        this.slabCount++;
+
+        for (int i = BUFFERS_PER_SLAB - 1; i > 0; i--) {
+            this.freeBuffers.push(first + i);
+        }
+        return first;
+    }
+}
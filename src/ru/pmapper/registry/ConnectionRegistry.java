@@ -0,0 +1,431 @@
+package ru.pmapper.registry;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Реестр открытых клиентских соединений. Соединение получает номер при принятии и освобождает его при закрытии.
+ * Состояние соединения хранится вне кучи в записи фиксированного размера {@link #SLOT_SIZE} байтов:
+ * <pre>
+ *  0 int  состояние ({@link ConnectionState})     24 long байты от клиента
+ *  4 int  номер канала маршрутизации              32 long байты клиенту
+ *  8 long время принятия                          40 int  буфер клиент --> сервер
+ * 16 long время последней передачи данных         44 int  буфер сервер --> клиент
+ *                                                 48 int  поколение записи
+ * </pre>
+ * поэтому сам реестр на миллион соединений занимает 64 МБ вне кучи и не создает работы сборщику мусора. Это только
+ * доля реестра: селектор обработчика (epoll и eventfd), сокеты ядра и объекты обработчика в куче в нее не входят.
+ * Буферы передачи выдаются соединению из {@link BufferSlabPool} только на время передачи данных, простаивающее
+ * соединение буферов не занимает.
+ *
+ * Запись изменяет только поток, владеющий соединением в данный момент: диспетчер при открытии, затем поток
+ * обработчика. Поля записываются с release семантикой, поэтому метрики и средства администрирования обходят
+ * реестр без блокировок ({@link #forEach}). Поколение записи увеличивается при каждом открытии: если оно
+ * изменилось за время чтения записи, номер успели освободить и выдать другому соединению, и запись пропускается.
+ *
+ * Если свободных номеров нет, соединение обслуживается без учета в реестре с номером {@link #UNTRACKED}, все
+ * методы принимают такой номер.
+ */
+public class ConnectionRegistry implements ConnectionRegistryMXBean {
+
+    //Соединение не учитывается в реестре
+    public static final int UNTRACKED = -1;
+
+    //Направления передачи данных для буферов
+    public static final int LOCAL_TO_REMOTE = 0;
+    public static final int REMOTE_TO_LOCAL = 1;
+
+    //Размер буфера передачи данных
+    public static final int TRANSFER_BUFFER_SIZE = 24588;
+
+    //Размер записи соединения
+    static final int SLOT_SIZE = 64;
+
+    //Наибольшее число записей, помещающееся в один direct буфер
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / SLOT_SIZE;
+
+    private static final int STATE_OFFSET = 0;
+    private static final int MAPPING_OFFSET = 4;
+    private static final int OPENED_AT_OFFSET = 8;
+    private static final int LAST_ACTIVITY_OFFSET = 16;
+    private static final int RECEIVED_OFFSET = 24;
+    private static final int SENT_OFFSET = 32;
+    private static final int BUFFERS_OFFSET = 40;
+    private static final int GENERATION_OFFSET = 48;
+
+    //Буфер направления не выдан
+    private static final int NO_BUFFER = -1;
+
+    //Выдан буфер не из пула
+    private static final int UNPOOLED_BUFFER = -2;
+
+    //Сколько соединений показывать в списке простаивающих
+    private static final int IDLE_LIST_SIZE = 10;
+
+    private static final ConnectionState[] STATES = ConnectionState.values();
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    //Записи соединений
+    private final ByteBuffer slots;
+
+    private final IntFreeList freeSlots;
+
+    //Номер, больше которого номера еще не выдавались. Ограничивает обход реестра
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    private final BufferSlabPool bufferPool;
+
+    //Имена каналов маршрутизации по номеру и номера по имени
+    private final String[] mappingNames;
+    private final Map<String, Integer> mappingIndexes = new HashMap<String, Integer>();
+
+    private final AtomicLong untracked = new AtomicLong();
+
+    private final AtomicLong unpooledBuffers = new AtomicLong();
+
+    /**
+     * @param capacity наибольшее число учитываемых соединений, не больше {@link #MAX_CAPACITY}
+     * @param maxBuffers наибольшее число буферов передачи в пуле
+     * @param mappingNames имена каналов маршрутизации
+     */
+    public ConnectionRegistry(final int capacity, final int maxBuffers, final List<String> mappingNames) {
+
+        final int slotCount = Math.min(Math.max(1, capacity), MAX_CAPACITY);
+
+        this.slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        this.freeSlots = new IntFreeList(slotCount, true);
+        this.bufferPool = new BufferSlabPool(TRANSFER_BUFFER_SIZE, maxBuffers);
+
+        this.mappingNames = mappingNames.toArray(new String[mappingNames.size()]);
+        for (int i = 0; i < this.mappingNames.length; i++) {
+            this.mappingIndexes.put(this.mappingNames[i], i);
+        }
+    }
+
+    /**
+     * @param mappingName имя канала маршрутизации
+     * @return номер канала для {@link #open}
+     */
+    public int getMappingIndex(final String mappingName) {
+        return this.mappingIndexes.get(mappingName);
+    }
+
+    /**
+     * Регистрирует принятое соединение в состоянии {@link ConnectionState#QUEUED}
+     * @param mappingIndex номер канала маршрутизации
+     * @return номер соединения или {@link #UNTRACKED}, если реестр заполнен
+     */
+    public int open(final int mappingIndex) {
+
+        final int connectionId = this.freeSlots.pop();
+
+        if (connectionId == UNTRACKED) {
+            this.untracked.incrementAndGet();
+            return UNTRACKED;
+        }
+
+        final int slot = connectionId * SLOT_SIZE;
+        final long now = System.currentTimeMillis();
+
+        INT.setRelease(this.slots, slot + GENERATION_OFFSET, (int) INT.get(this.slots, slot + GENERATION_OFFSET) + 1);
+        INT.setRelease(this.slots, slot + MAPPING_OFFSET, mappingIndex);
+        LONG.setRelease(this.slots, slot + OPENED_AT_OFFSET, now);
+        LONG.setRelease(this.slots, slot + LAST_ACTIVITY_OFFSET, now);
+        LONG.setRelease(this.slots, slot + RECEIVED_OFFSET, 0L);
+        LONG.setRelease(this.slots, slot + SENT_OFFSET, 0L);
+        INT.setRelease(this.slots, slot + BUFFERS_OFFSET, NO_BUFFER);
+        INT.setRelease(this.slots, slot + BUFFERS_OFFSET + 4, NO_BUFFER);
+        INT.setRelease(this.slots, slot + STATE_OFFSET, ConnectionState.QUEUED.ordinal());
+
+        raiseHighWaterMark(connectionId + 1);
+        return connectionId;
+    }
+
+    /**
+     * Отмечает, что соединение начал обслуживать обработчик
+     * @param connectionId номер соединения
+     */
+    public void activate(final int connectionId) {
+        if (connectionId != UNTRACKED) {
+            INT.setRelease(this.slots, connectionId * SLOT_SIZE + STATE_OFFSET, ConnectionState.ACTIVE.ordinal());
+        }
+    }
+
+    /**
+     * Учитывает байты, полученные от клиента
+     * @param connectionId номер соединения
+     * @param bytes число байтов
+     */
+    public void recordReceived(final int connectionId, final long bytes) {
+        record(connectionId, RECEIVED_OFFSET, bytes);
+    }
+
+    /**
+     * Учитывает байты, отправленные клиенту
+     * @param connectionId номер соединения
+     * @param bytes число байтов
+     */
+    public void recordSent(final int connectionId, final long bytes) {
+        record(connectionId, SENT_OFFSET, bytes);
+    }
+
+    private void record(final int connectionId, final int counterOffset, final long bytes) {
+
+        if (connectionId == UNTRACKED) {
+            return;
+        }
+
+        final int slot = connectionId * SLOT_SIZE;
+
+        LONG.setRelease(this.slots, slot + counterOffset, (long) LONG.get(this.slots, slot + counterOffset) + bytes);
+        LONG.setRelease(this.slots, slot + LAST_ACTIVITY_OFFSET, System.currentTimeMillis());
+    }
+
+    /**
+     * Выдает соединению буфер передачи данных для одного направления. Если пул исчерпан или соединение
+     * не учитывается в реестре, выделяется отдельный буфер
+     * @param connectionId номер соединения
+     * @param direction {@link #LOCAL_TO_REMOTE} или {@link #REMOTE_TO_LOCAL}
+     * @return пустой буфер
+     */
+    public ByteBuffer acquireBuffer(final int connectionId, final int direction) {
+
+        final int handle = connectionId == UNTRACKED ? BufferSlabPool.EXHAUSTED : this.bufferPool.acquire();
+
+        if (handle == BufferSlabPool.EXHAUSTED) {
+            this.unpooledBuffers.incrementAndGet();
+            setBufferHandle(connectionId, direction, UNPOOLED_BUFFER);
+            return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+        }
+
+        setBufferHandle(connectionId, direction, handle);
+        return this.bufferPool.get(handle);
+    }
+
+    /**
+     * Возвращает буфер направления в пул. Буфер, выделенный не из пула, остается у соединения
+     * @param connectionId номер соединения
+     * @param direction {@link #LOCAL_TO_REMOTE} или {@link #REMOTE_TO_LOCAL}
+     * @return true - буфер возвращен и больше не должен использоваться, false - буфер можно использовать дальше
+     */
+    public boolean releaseBuffer(final int connectionId, final int direction) {
+
+        if (connectionId == UNTRACKED) {
+            return false;
+        }
+
+        final int handleOffset = connectionId * SLOT_SIZE + BUFFERS_OFFSET + direction * 4;
+        final int handle = (int) INT.get(this.slots, handleOffset);
+
+        if (handle < 0) {
+            return false;
+        }
+
+        INT.setRelease(this.slots, handleOffset, NO_BUFFER);
+        this.bufferPool.release(handle);
+        return true;
+    }
+
+    /**
+     * Освобождает номер закрытого соединения и возвращает в пул его буферы. Повторный вызов ничего не делает
+     * @param connectionId номер соединения
+     */
+    public void close(final int connectionId) {
+
+        if (connectionId == UNTRACKED) {
+            return;
+        }
+
+        //Повторное закрытие не должно положить номер в список свободных второй раз
+        if ((int) INT.get(this.slots, connectionId * SLOT_SIZE + STATE_OFFSET) == ConnectionState.FREE.ordinal()) {
+            return;
+        }
+
+        releaseBuffer(connectionId, LOCAL_TO_REMOTE);
+        releaseBuffer(connectionId, REMOTE_TO_LOCAL);
+
+        INT.setRelease(this.slots, connectionId * SLOT_SIZE + STATE_OFFSET, ConnectionState.FREE.ordinal());
+        this.freeSlots.push(connectionId);
+    }
+
+    /**
+     * Обходит открытые соединения без блокировок
+     * @param visitor получатель записей
+     */
+    public void forEach(final ConnectionVisitor visitor) {
+
+        final int limit = this.highWaterMark.get();
+
+        for (int connectionId = 0; connectionId < limit; connectionId++) {
+
+            final int slot = connectionId * SLOT_SIZE;
+            final int generation = (int) INT.getAcquire(this.slots, slot + GENERATION_OFFSET);
+            final int state = (int) INT.getAcquire(this.slots, slot + STATE_OFFSET);
+
+            if (state == ConnectionState.FREE.ordinal()) {
+                continue;
+            }
+
+            final int mappingIndex = (int) INT.getAcquire(this.slots, slot + MAPPING_OFFSET);
+            final long openedAt = (long) LONG.getAcquire(this.slots, slot + OPENED_AT_OFFSET);
+            final long lastActivity = (long) LONG.getAcquire(this.slots, slot + LAST_ACTIVITY_OFFSET);
+            final long received = (long) LONG.getAcquire(this.slots, slot + RECEIVED_OFFSET);
+            final long sent = (long) LONG.getAcquire(this.slots, slot + SENT_OFFSET);
+            final int buffers = countBuffer((int) INT.getAcquire(this.slots, slot + BUFFERS_OFFSET))
+                    + countBuffer((int) INT.getAcquire(this.slots, slot + BUFFERS_OFFSET + 4));
+
+            VarHandle.acquireFence();
+            if ((int) INT.getAcquire(this.slots, slot + GENERATION_OFFSET) != generation) {
+                continue;
+            }
+
+            visitor.visit(connectionId, STATES[state], this.mappingNames[mappingIndex], openedAt, lastActivity,
+                    received, sent, buffers);
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return this.freeSlots.capacity();
+    }
+
+    @Override
+    public int getQueuedConnections() {
+        return countConnections(ConnectionState.QUEUED);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return countConnections(ConnectionState.ACTIVE);
+    }
+
+    @Override
+    public long getUntrackedConnections() {
+        return this.untracked.get();
+    }
+
+    @Override
+    public long getRegistryBytes() {
+        return this.slots.capacity();
+    }
+
+    @Override
+    public int getBuffersInUse() {
+
+        final int[] buffers = new int[1];
+
+        forEach(new ConnectionVisitor() {
+            @Override
+            public void visit(final int connectionId, final ConnectionState state, final String mappingName,
+                              final long openedAtMillis, final long lastActivityMillis, final long bytesReceived,
+                              final long bytesSent, final int connectionBuffers) {
+                buffers[0] += connectionBuffers;
+            }
+        });
+        return buffers[0];
+    }
+
+    @Override
+    public long getBufferPoolBytes() {
+        return (long) this.bufferPool.getAllocatedBuffers() * this.bufferPool.getBufferSize();
+    }
+
+    @Override
+    public long getUnpooledBuffers() {
+        return this.unpooledBuffers.get();
+    }
+
+    @Override
+    public String[] getLongestIdleConnections() {
+
+        final long now = System.currentTimeMillis();
+        final String[] descriptions = new String[IDLE_LIST_SIZE];
+        final long[] idleMillis = new long[IDLE_LIST_SIZE];
+        final int[] size = new int[1];
+
+        forEach(new ConnectionVisitor() {
+            @Override
+            public void visit(final int connectionId, final ConnectionState state, final String mappingName,
+                              final long openedAtMillis, final long lastActivityMillis, final long bytesReceived,
+                              final long bytesSent, final int buffers) {
+
+                final long idle = now - lastActivityMillis;
+
+                //Вставка в упорядоченный по убыванию простоя список фиксированной длины
+                int position = size[0];
+                while (position > 0 && idleMillis[position - 1] < idle) {
+                    position--;
+                }
+                if (position == IDLE_LIST_SIZE) {
+                    return;
+                }
+
+                final int moved = Math.min(size[0], IDLE_LIST_SIZE - 1) - position;
+                System.arraycopy(idleMillis, position, idleMillis, position + 1, moved);
+                System.arraycopy(descriptions, position, descriptions, position + 1, moved);
+
+                idleMillis[position] = idle;
+                descriptions[position] = "#" + connectionId + " " + mappingName + " " + state
+                        + " idle " + idle / 1000L + " s, opened " + formatTime(openedAtMillis)
+                        + ", received " + bytesReceived + " B, sent " + bytesSent + " B";
+                size[0] = Math.min(size[0] + 1, IDLE_LIST_SIZE);
+            }
+        });
+
+        final String[] result = new String[size[0]];
+        System.arraycopy(descriptions, 0, result, 0, size[0]);
+        return result;
+    }
+
+    private int countConnections(final ConnectionState countedState) {
+
+        final int[] count = new int[1];
+
+        forEach(new ConnectionVisitor() {
+            @Override
+            public void visit(final int connectionId, final ConnectionState state, final String mappingName,
+                              final long openedAtMillis, final long lastActivityMillis, final long bytesReceived,
+                              final long bytesSent, final int buffers) {
+                if (state == countedState) {
+                    count[0]++;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    private void setBufferHandle(final int connectionId, final int direction, final int handle) {
+        if (connectionId != UNTRACKED) {
+            INT.setRelease(this.slots, connectionId * SLOT_SIZE + BUFFERS_OFFSET + direction * 4, handle);
+        }
+    }
+
+    private static int countBuffer(final int handle) {
+        return handle == NO_BUFFER ? 0 : 1;
+    }
+
+    private void raiseHighWaterMark(final int value) {
+
+        int current;
+        while ((current = this.highWaterMark.get()) < value) {
+            if (this.highWaterMark.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static String formatTime(final long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(millis);
+    }
+}
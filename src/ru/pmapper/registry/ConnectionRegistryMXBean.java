@@ -0,0 +1,28 @@
+package ru.pmapper.registry;
+
+/**
+ * Метрики реестра соединений, доступные через JMX
+ */
+public interface ConnectionRegistryMXBean {
+
+    int getCapacity();
+
+    int getQueuedConnections();
+
+    int getActiveConnections();
+
+    long getUntrackedConnections();
+
+    long getRegistryBytes();
+
+    int getBuffersInUse();
+
+    long getBufferPoolBytes();
+
+    long getUnpooledBuffers();
+
+    /**
+     * @return соединения, дольше всех не передававшие данных, в порядке убывания времени простоя
+     */
+    String[] getLongestIdleConnections();
+}
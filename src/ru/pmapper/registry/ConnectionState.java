@@ -0,0 +1,16 @@
+package ru.pmapper.registry;
+
+/**
+ * Состояние записи соединения в реестре
+ */
+public enum ConnectionState {
+
+    //Запись свободна
+    FREE,
+
+    //Соединение принято и ждет свободного потока обработчика
+    QUEUED,
+
+    //Соединение обслуживается
+    ACTIVE
+}
@@ -0,0 +1,21 @@
+package ru.pmapper.registry;
+
+/**
+ * Получает записи открытых соединений при обходе реестра. Значения читаются без блокировок, поэтому счетчики
+ * разных соединений сняты в немного разные моменты времени
+ */
+public interface ConnectionVisitor {
+
+    /**
+     * @param connectionId номер соединения
+     * @param state состояние соединения, кроме {@link ConnectionState#FREE}
+     * @param mappingName имя канала маршрутизации
+     * @param openedAtMillis время принятия соединения
+     * @param lastActivityMillis время последней передачи данных или принятия соединения
+     * @param bytesReceived байты, полученные от клиента
+     * @param bytesSent байты, отправленные клиенту
+     * @param buffers число буферов передачи, занятых соединением
+     */
+    void visit(int connectionId, ConnectionState state, String mappingName, long openedAtMillis,
+               long lastActivityMillis, long bytesReceived, long bytesSent, int buffers);
+}
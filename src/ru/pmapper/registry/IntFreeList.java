@@ -0,0 +1,86 @@
+package ru.pmapper.registry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Стек свободных номеров в диапазоне 0..capacity-1 без блокировок (стек Трайбера). Вершина стека хранится вместе
+ * со счетчиком изменений в одном long, поэтому номер, снятый и возвращенный другим потоком между чтением и CAS
+ * вершины (проблема ABA), не портит стек.
+ *
+ * Номер, снятый со стека, принадлежит вызвавшему потоку до его возврата.
+ */
+final class IntFreeList {
+
+    private static final int EMPTY = -1;
+
+    //Следующий номер стека для каждого номера, лежащего в стеке
+    private final int[] next;
+
+    //Счетчик изменений в старших 32 битах, номер вершины в младших
+    private final AtomicLong head = new AtomicLong(pack(0, EMPTY));
+
+    /**
+     * @param capacity число номеров
+     * @param filled положить в стек все номера так, чтобы первыми снимались меньшие
+     */
+    IntFreeList(final int capacity, final boolean filled) {
+
+        this.next = new int[capacity];
+
+        if (filled) {
+            for (int i = capacity - 1; i >= 0; i--) {
+                push(i);
+            }
+        }
+    }
+
+    /**
+     * @return свободный номер или -1, если стек пуст
+     */
+    int pop() {
+
+        while (true) {
+            final long current = this.head.get();
+            final int top = index(current);
+
+            if (top == EMPTY) {
+                return EMPTY;
+            }
+            if (this.head.compareAndSet(current, pack(tag(current) + 1, this.next[top]))) {
+                return top;
+            }
+        }
+    }
+
+    /**
+     * Возвращает номер в стек
+     * @param value номер, ранее полученный от {@link #pop} или еще не выданный
+     */
+    void push(final int value) {
+
+        while (true) {
+            final long current = this.head.get();
+            this.next[value] = index(current);
+
+            if (this.head.compareAndSet(current, pack(tag(current) + 1, value))) {
+                return;
+            }
+        }
+    }
+
+    int capacity() {
+        return this.next.length;
+    }
+
+    private static long pack(final int tag, final int index) {
+        return ((long) tag << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    private static int tag(final long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static int index(final long packed) {
+        return (int) packed;
+    }
+}
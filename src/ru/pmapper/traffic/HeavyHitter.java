@@ -0,0 +1,32 @@
+package ru.pmapper.traffic;
+
+/**
+ * Один из самых активных клиентов или каналов с оценкой его активности
+ */
+public final class HeavyHitter {
+
+    private final Object key;
+
+    private final long estimate;
+
+    HeavyHitter(final Object key, final long estimate) {
+        this.key = key;
+        this.estimate = estimate;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return оценка сверху числа байтов или подключений
+     */
+    public long getEstimate() {
+        return estimate;
+    }
+
+    @Override
+    public String toString() {
+        return this.key + " " + this.estimate;
+    }
+}
@@ -0,0 +1,117 @@
+package ru.pmapper.traffic;
+
+import java.util.Arrays;
+
+/**
+ * Поиск самых активных ключей в потоке событий за один интервал времени при постоянном объеме памяти.
+ * Частоты всех ключей оцениваются скетчем count-min, а кандидаты в самые активные хранятся в небольшой таблице:
+ * новый ключ, оценка которого больше наименьшей оценки в заполненной таблице, вытесняет этого кандидата, как
+ * в алгоритме space-saving.
+ *
+ * Объект не потокобезопасен.
+ */
+final class HeavyHitterSketch {
+
+    //Число строк скетча
+    private static final int DEPTH = 4;
+
+    //Затравки хэш-функций строк скетча
+    private static final long[] ROW_SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private final int widthMask;
+
+    //Счетчики скетча, строки подряд
+    private final long[] counters;
+
+    //Кандидаты в самые активные и их оценки
+    private final Object[] candidates;
+    private final long[] candidateEstimates;
+
+    private int candidateCount;
+
+    /**
+     * @param width число счетчиков в строке скетча, степень двойки
+     * @param capacity наибольшее число кандидатов
+     */
+    HeavyHitterSketch(final int width, final int capacity) {
+        this.widthMask = width - 1;
+        this.counters = new long[DEPTH * width];
+        this.candidates = new Object[capacity];
+        this.candidateEstimates = new long[capacity];
+    }
+
+    /**
+     * Учитывает событие
+     * @param key ключ (клиент или канал)
+     * @param weight вес события (число байтов или подключений)
+     */
+    void add(final Object key, final long weight) {
+
+        final int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = indexOf(hash, row);
+            this.counters[index] += weight;
+            estimate = Math.min(estimate, this.counters[index]);
+        }
+
+        int minimum = -1;
+        for (int i = 0; i < this.candidateCount; i++) {
+            if (this.candidates[i].equals(key)) {
+                this.candidateEstimates[i] = estimate;
+                return;
+            }
+            if (minimum < 0 || this.candidateEstimates[i] < this.candidateEstimates[minimum]) {
+                minimum = i;
+            }
+        }
+
+        if (this.candidateCount < this.candidates.length) {
+            this.candidates[this.candidateCount] = key;
+            this.candidateEstimates[this.candidateCount] = estimate;
+            this.candidateCount++;
+        } else if (estimate > this.candidateEstimates[minimum]) {
+            this.candidates[minimum] = key;
+            this.candidateEstimates[minimum] = estimate;
+        }
+    }
+
+    /**
+     * @param key ключ
+     * @return оценка суммарного веса событий ключа сверху
+     */
+    long estimate(final Object key) {
+
+        final int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, this.counters[indexOf(hash, row)]);
+        }
+        return estimate;
+    }
+
+    int getCandidateCount() {
+        return candidateCount;
+    }
+
+    Object getCandidate(final int index) {
+        return this.candidates[index];
+    }
+
+    void reset() {
+        Arrays.fill(this.counters, 0L);
+        Arrays.fill(this.candidates, null);
+        this.candidateCount = 0;
+    }
+
+    private int indexOf(final int hash, final int row) {
+
+        long h = (hash ^ ROW_SEEDS[row]) * 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 31;
+        return row * (this.widthMask + 1) + ((int) h & this.widthMask);
+    }
+}
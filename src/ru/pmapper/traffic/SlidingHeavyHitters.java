@@ -0,0 +1,108 @@
+package ru.pmapper.traffic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Самые активные ключи за скользящее окно времени. Окно состоит из кольца интервалов, у каждого интервала свой
+ * {@link HeavyHitterSketch}. Интервал, вышедший за пределы окна, очищается при первом событии нового интервала,
+ * поэтому объем памяти не зависит ни от числа ключей, ни от числа событий.
+ */
+final class SlidingHeavyHitters {
+
+    private final long intervalMillis;
+
+    private final HeavyHitterSketch[] sketches;
+
+    //Номер интервала (время / длительность интервала), данные которого хранятся в ячейке кольца
+    private final long[] intervalNumbers;
+
+    /**
+     * @param intervals число интервалов в окне
+     * @param intervalMillis длительность интервала
+     * @param width число счетчиков в строке скетча каждого интервала, степень двойки
+     * @param capacity наибольшее число кандидатов каждого интервала
+     */
+    SlidingHeavyHitters(final int intervals, final long intervalMillis, final int width, final int capacity) {
+
+        this.intervalMillis = intervalMillis;
+        this.sketches = new HeavyHitterSketch[intervals];
+        this.intervalNumbers = new long[intervals];
+
+        for (int i = 0; i < intervals; i++) {
+            this.sketches[i] = new HeavyHitterSketch(width, capacity);
+            this.intervalNumbers[i] = -1L;
+        }
+    }
+
+    /**
+     * Учитывает событие в текущем интервале
+     * @param key ключ
+     * @param weight вес события
+     * @param now текущее время
+     */
+    synchronized void add(final Object key, final long weight, final long now) {
+
+        final long intervalNumber = now / this.intervalMillis;
+        final int slot = (int) (intervalNumber % this.sketches.length);
+
+        if (this.intervalNumbers[slot] != intervalNumber) {
+            this.sketches[slot].reset();
+            this.intervalNumbers[slot] = intervalNumber;
+        }
+
+        this.sketches[slot].add(key, weight);
+    }
+
+    /**
+     * Возвращает самые активные ключи за окно. Оценка ключа - сумма его оценок во всех интервалах окна
+     * @param limit наибольшее число ключей
+     * @param now текущее время
+     * @return ключи в порядке убывания оценки
+     */
+    synchronized List<HeavyHitter> top(final int limit, final long now) {
+
+        final long oldestIntervalNumber = now / this.intervalMillis - this.sketches.length + 1;
+
+        final Set<Object> candidates = new HashSet<Object>();
+        for (int slot = 0; slot < this.sketches.length; slot++) {
+            if (this.intervalNumbers[slot] >= oldestIntervalNumber) {
+                for (int i = 0; i < this.sketches[slot].getCandidateCount(); i++) {
+                    candidates.add(this.sketches[slot].getCandidate(i));
+                }
+            }
+        }
+
+        final List<HeavyHitter> heavyHitters = new ArrayList<HeavyHitter>(candidates.size());
+        for (final Object candidate : candidates) {
+
+            long estimate = 0L;
+            for (int slot = 0; slot < this.sketches.length; slot++) {
+                if (this.intervalNumbers[slot] >= oldestIntervalNumber) {
+                    estimate += this.sketches[slot].estimate(candidate);
+                }
+            }
+            heavyHitters.add(new HeavyHitter(candidate, estimate));
+        }
+
+        Collections.sort(heavyHitters, new Comparator<HeavyHitter>() {
+            @Override
+            public int compare(final HeavyHitter first, final HeavyHitter second) {
+                return Long.compare(second.getEstimate(), first.getEstimate());
+            }
+        });
+
+        return heavyHitters.size() > limit ? heavyHitters.subList(0, limit) : heavyHitters;
+    }
+
+    /**
+     * @return длительность окна в миллисекундах
+     */
+    long getWindowMillis() {
+        return this.intervalMillis * this.sketches.length;
+    }
+}
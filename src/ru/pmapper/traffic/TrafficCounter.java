@@ -0,0 +1,81 @@
+package ru.pmapper.traffic;
+
+import ru.pmapper.registry.ConnectionRegistry;
+
+import java.net.InetAddress;
+
+/**
+ * Счетчик байтов одного соединения. Байты копятся в соединении и передаются в {@link TrafficMonitor} порциями,
+ * поэтому учет трафика не добавляет синхронизации в каждую операцию чтения или записи. Счетчики соединения
+ * в {@link ConnectionRegistry} обновляются сразу.
+ *
+ * Объект используется только потоком, обслуживающим соединение.
+ */
+public final class TrafficCounter {
+
+    //Сколько байтов копить перед передачей в монитор
+    private static final long REPORT_THRESHOLD_BYTES = 64 * 1024;
+
+    private final TrafficMonitor trafficMonitor;
+
+    //Адрес клиента, null - адрес неизвестен
+    private final InetAddress clientAddress;
+
+    //Имя канала маршрутизации
+    private final String mappingName;
+
+    private final ConnectionRegistry connectionRegistry;
+
+    //Номер соединения в реестре
+    private final int connectionId;
+
+    private long unreportedBytes;
+
+    TrafficCounter(final TrafficMonitor trafficMonitor, final InetAddress clientAddress, final String mappingName,
+                   final ConnectionRegistry connectionRegistry, final int connectionId) {
+        this.trafficMonitor = trafficMonitor;
+        this.clientAddress = clientAddress;
+        this.mappingName = mappingName;
+        this.connectionRegistry = connectionRegistry;
+        this.connectionId = connectionId;
+    }
+
+    /**
+     * Учитывает байты, полученные от клиента
+     * @param bytes число байтов
+     */
+    public void addReceived(final long bytes) {
+
+        this.connectionRegistry.recordReceived(this.connectionId, bytes);
+        add(bytes);
+    }
+
+    /**
+     * Учитывает байты, отправленные клиенту
+     * @param bytes число байтов
+     */
+    public void addSent(final long bytes) {
+
+        this.connectionRegistry.recordSent(this.connectionId, bytes);
+        add(bytes);
+    }
+
+    private void add(final long bytes) {
+
+        this.unreportedBytes += bytes;
+        if (this.unreportedBytes >= REPORT_THRESHOLD_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * Передает накопленные байты в монитор. Вызывается при закрытии соединения
+     */
+    public void flush() {
+
+        if (this.unreportedBytes > 0) {
+            this.trafficMonitor.recordBytes(this.clientAddress, this.mappingName, this.unreportedBytes);
+            this.unreportedBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package ru.pmapper.traffic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.registry.ConnectionRegistry;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск самых активных клиентов и каналов маршрутизации по объему трафика и по числу новых подключений
+ * за последнюю минуту. Подключения учитывает диспетчер событий, байты - обработчики соединений через
+ * {@link TrafficCounter}. Результаты доступны через JMX и периодически выводятся в журнал.
+ *
+ * Память ограничена: для каждой из четырех оценок хранится кольцо скетчей фиксированного размера.
+ */
+public class TrafficMonitor implements TrafficMonitorMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrafficMonitor.class);
+
+    //Число интервалов в окне и длительность интервала
+    private static final int WINDOW_INTERVALS = 6;
+    private static final long INTERVAL_MILLIS = 10000L;
+
+    //Число счетчиков в строке скетча
+    private static final int SKETCH_WIDTH = 1024;
+
+    //Число кандидатов в самые активные в каждом интервале
+    private static final int CANDIDATES = 32;
+
+    //Сколько самых активных показывать
+    private static final int TOP_SIZE = 10;
+
+    private final SlidingHeavyHitters clientBytes = newHeavyHitters();
+
+    private final SlidingHeavyHitters clientConnections = newHeavyHitters();
+
+    private final SlidingHeavyHitters mappingBytes = newHeavyHitters();
+
+    private final SlidingHeavyHitters mappingConnections = newHeavyHitters();
+
+    //Период вывода в журнал, 0 - не выводить
+    private final long dumpIntervalMillis;
+
+    private ScheduledExecutorService dumpScheduler;
+
+    /**
+     * @param dumpIntervalMillis период вывода самых активных клиентов и каналов в журнал, 0 - не выводить
+     */
+    public TrafficMonitor(final long dumpIntervalMillis) {
+        this.dumpIntervalMillis = dumpIntervalMillis;
+    }
+
+    private static SlidingHeavyHitters newHeavyHitters() {
+        return new SlidingHeavyHitters(WINDOW_INTERVALS, INTERVAL_MILLIS, SKETCH_WIDTH, CANDIDATES);
+    }
+
+    /**
+     * Запускает периодический вывод в журнал
+     */
+    public void start() {
+
+        if (this.dumpIntervalMillis <= 0) {
+            return;
+        }
+
+        this.dumpScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "traffic-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.dumpScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, this.dumpIntervalMillis, this.dumpIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if (this.dumpScheduler != null) {
+            this.dumpScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Учитывает новое подключение клиента к каналу
+     * @param clientAddress адрес клиента или null, если адрес неизвестен
+     * @param mappingName имя канала маршрутизации
+     */
+    public void recordConnection(final InetAddress clientAddress, final String mappingName) {
+
+        final long now = System.currentTimeMillis();
+
+        if (clientAddress != null) {
+            this.clientConnections.add(clientAddress, 1L, now);
+        }
+        this.mappingConnections.add(mappingName, 1L, now);
+    }
+
+    /**
+     * Учитывает байты, переданные через соединение клиента
+     * @param clientAddress адрес клиента или null, если адрес неизвестен
+     * @param mappingName имя канала маршрутизации
+     * @param bytes число байтов
+     */
+    public void recordBytes(final InetAddress clientAddress, final String mappingName, final long bytes) {
+
+        final long now = System.currentTimeMillis();
+
+        if (clientAddress != null) {
+            this.clientBytes.add(clientAddress, bytes, now);
+        }
+        this.mappingBytes.add(mappingName, bytes, now);
+    }
+
+    /**
+     * Создает счетчик байтов соединения
+     * @param clientAddress адрес клиента или null, если адрес неизвестен
+     * @param mappingName имя канала маршрутизации
+     * @param connectionRegistry реестр соединений
+     * @param connectionId номер соединения в реестре
+     * @return счетчик
+     */
+    public TrafficCounter newCounter(final InetAddress clientAddress, final String mappingName,
+                                     final ConnectionRegistry connectionRegistry, final int connectionId) {
+        return new TrafficCounter(this, clientAddress, mappingName, connectionRegistry, connectionId);
+    }
+
+    @Override
+    public long getWindowSeconds() {
+        return this.clientBytes.getWindowMillis() / 1000L;
+    }
+
+    @Override
+    public String[] getTopClientsByBytes() {
+        return format(this.clientBytes.top(TOP_SIZE, System.currentTimeMillis()));
+    }
+
+    @Override
+    public String[] getTopClientsByConnections() {
+        return format(this.clientConnections.top(TOP_SIZE, System.currentTimeMillis()));
+    }
+
+    @Override
+    public String[] getTopMappingsByBytes() {
+        return format(this.mappingBytes.top(TOP_SIZE, System.currentTimeMillis()));
+    }
+
+    @Override
+    public String[] getTopMappingsByConnections() {
+        return format(this.mappingConnections.top(TOP_SIZE, System.currentTimeMillis()));
+    }
+
+    /**
+     * Выводит самых активных клиентов и каналы в журнал, если за окно был хоть какой-то трафик
+     */
+    private void dump() {
+
+        final String[] topMappingsByConnections = getTopMappingsByConnections();
+        final String[] topMappingsByBytes = getTopMappingsByBytes();
+
+        if (topMappingsByConnections.length == 0 && topMappingsByBytes.length == 0) {
+            return;
+        }
+
+        final String window = " over the last " + getWindowSeconds() + " s: ";
+        LOGGER.info("Top clients by bytes" + window + join(getTopClientsByBytes()));
+        LOGGER.info("Top clients by connections" + window + join(getTopClientsByConnections()));
+        LOGGER.info("Top mappings by bytes" + window + join(topMappingsByBytes));
+        LOGGER.info("Top mappings by connections" + window + join(topMappingsByConnections));
+    }
+
+    private static String[] format(final List<HeavyHitter> heavyHitters) {
+
+        final String[] result = new String[heavyHitters.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            final HeavyHitter heavyHitter = heavyHitters.get(i);
+            final Object key = heavyHitter.getKey();
+
+            result[i] = (key instanceof InetAddress ? ((InetAddress) key).getHostAddress() : key)
+                    + " " + heavyHitter.getEstimate();
+        }
+        return result;
+    }
+
+    private static String join(final String[] values) {
+
+        final StringBuilder builder = new StringBuilder();
+        for (final String value : values) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package ru.pmapper.traffic;
+
+/**
+ * Самые активные клиенты и каналы маршрутизации за скользящее окно, доступные через JMX.
+ * Элемент списка - "адрес или имя канала" и оценка сверху, в порядке убывания
+ */
+public interface TrafficMonitorMXBean {
+
+    long getWindowSeconds();
+
+    String[] getTopClientsByBytes();
+
+    String[] getTopClientsByConnections();
+
+    String[] getTopMappingsByBytes();
+
+    String[] getTopMappingsByConnections();
+}
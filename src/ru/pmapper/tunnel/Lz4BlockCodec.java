@@ -0,0 +1,251 @@
+package ru.pmapper.tunnel;
+
+import java.util.Arrays;
+
+/**
+ * Сжатие блоков данных в формате LZ4 block. Сжатие жадное, с хэш-таблицей последних позиций 4-байтовых
+ * последовательностей: коэффициент сжатия ниже, чем у эталонной реализации, зато на сжатие уходит один проход
+ * по данным без выделения памяти.
+ *
+ * Объект хранит хэш-таблицу и не потокобезопасен.
+ */
+final class Lz4BlockCodec {
+
+    //Наименьшая длина совпадения в формате LZ4
+    private static final int MIN_MATCH = 4;
+
+    //Последние байты блока всегда передаются литералами
+    private static final int LAST_LITERALS = 5;
+
+    //Последнее совпадение должно начинаться не ближе этого числа байтов к концу блока
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    //Наибольшее смещение совпадения
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_LOG = 12;
+
+    //Позиции последовательностей относительно начала блока, увеличенные на 1. 0 - позиции нет
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    /**
+     * Сжимает блок данных
+     * @param src исходные данные
+     * @param srcOffset начало блока
+     * @param srcLength длина блока
+     * @param dst массив для сжатых данных
+     * @param dstOffset начало сжатых данных
+     * @param dstLength сколько байтов можно записать
+     * @return длина сжатых данных или -1, если они не помещаются в dstLength
+     */
+    int compress(final byte[] src, final int srcOffset, final int srcLength,
+                 final byte[] dst, final int dstOffset, final int dstLength) {
+
+        final int srcEnd = srcOffset + srcLength;
+        final int dstEnd = dstOffset + dstLength;
+
+        int ip = srcOffset;
+        int anchor = srcOffset;
+        int op = dstOffset;
+
+        if (srcLength > MATCH_FIND_LIMIT) {
+
+            Arrays.fill(this.hashTable, 0);
+
+            final int matchFindLimit = srcEnd - MATCH_FIND_LIMIT;
+            final int matchLimit = srcEnd - LAST_LITERALS;
+
+            while (ip < matchFindLimit) {
+
+                final int sequence = readInt(src, ip);
+                final int hash = hash(sequence);
+                int ref = this.hashTable[hash] - 1 + srcOffset;
+                this.hashTable[hash] = ip - srcOffset + 1;
+
+                if (ref < srcOffset || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+
+                //Расширяем совпадение назад, за счет еще не переданных литералов
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstEnd);
+                if (op < 0) {
+                    return -1;
+                }
+
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        op = writeLastLiterals(src, anchor, srcEnd - anchor, dst, op, dstEnd);
+        return op < 0 ? -1 : op - dstOffset;
+    }
+
+    /**
+     * Распаковывает блок данных
+     * @param src сжатые данные
+     * @param srcOffset начало сжатого блока
+     * @param srcLength длина сжатого блока
+     * @param dst массив для распакованных данных
+     * @param dstOffset начало распакованных данных
+     * @param dstLength наибольшая длина распакованных данных
+     * @return длина распакованных данных
+     * @throws TunnelProtocolException если блок поврежден или не помещается в dstLength
+     */
+    int decompress(final byte[] src, final int srcOffset, final int srcLength,
+                   final byte[] dst, final int dstOffset, final int dstLength) throws TunnelProtocolException {
+
+        final int srcEnd = srcOffset + srcLength;
+        final int dstEnd = dstOffset + dstLength;
+
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        while (true) {
+
+            if (ip >= srcEnd) {
+                throw new TunnelProtocolException("Compressed block is truncated");
+            }
+
+            final int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new TunnelProtocolException("Compressed block is truncated");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new TunnelProtocolException("Malformed literals in compressed block");
+            }
+
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            //Последняя последовательность состоит только из литералов
+            if (ip == srcEnd) {
+                return op - dstOffset;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new TunnelProtocolException("Compressed block is truncated");
+            }
+
+            final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+
+            if (offset == 0 || offset > op - dstOffset) {
+                throw new TunnelProtocolException("Malformed match offset in compressed block");
+            }
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new TunnelProtocolException("Compressed block is truncated");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            if (matchLength > dstEnd - op) {
+                throw new TunnelProtocolException("Malformed match length in compressed block");
+            }
+
+            //Совпадение может перекрываться с копируемыми байтами, поэтому копируем побайтово
+            int ref = op - offset;
+            for (int i = 0; i < matchLength; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+    }
+
+    private static int writeSequence(final byte[] src, final int literalOffset, final int literalLength,
+                                     final int offset, final int matchLength,
+                                     final byte[] dst, int op, final int dstEnd) {
+
+        if (op + 1 + literalLength + literalLength / 255 + 1 + 2 + matchLength / 255 + 1 > dstEnd) {
+            return -1;
+        }
+
+        final int token = op++;
+        op = writeLength(literalLength, 4, dst, token, op);
+
+        System.arraycopy(src, literalOffset, dst, op, literalLength);
+        op += literalLength;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        return writeLength(matchLength - MIN_MATCH, 0, dst, token, op);
+    }
+
+    private static int writeLastLiterals(final byte[] src, final int literalOffset, final int literalLength,
+                                         final byte[] dst, int op, final int dstEnd) {
+
+        if (op + 1 + literalLength + literalLength / 255 + 1 > dstEnd) {
+            return -1;
+        }
+
+        final int token = op++;
+        op = writeLength(literalLength, 4, dst, token, op);
+
+        System.arraycopy(src, literalOffset, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    /**
+     * Записывает длину в половину байта-маркера и, если она не помещается, в дополнительные байты
+     * @return позиция после дополнительных байтов
+     */
+    private static int writeLength(int length, final int tokenShift, final byte[] dst, final int token, int op) {
+
+        if (tokenShift != 0) {
+            dst[token] = 0;
+        }
+
+        if (length < 15) {
+            dst[token] |= (byte) (length << tokenShift);
+            return op;
+        }
+
+        dst[token] |= (byte) (15 << tokenShift);
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(final byte[] src, final int index) {
+        return (src[index] & 0xFF) | (src[index + 1] & 0xFF) << 8
+                | (src[index + 2] & 0xFF) << 16 | (src[index + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(final int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,194 @@
+package ru.pmapper.tunnel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Разрешает адреса удаленных серверов каналов для мультиплексора туннелей. Разрешение имени хоста блокирует поток,
+ * поэтому выполняется в отдельном потоке, а результат передается в поток мультиплексора и кэшируется.
+ * Устаревший адрес продолжает использоваться, пока в фоне разрешается новый.
+ *
+ * Все методы, кроме внутреннего разрешения имени, вызываются только из потока мультиплексора.
+ */
+final class RemoteAddressResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteAddressResolver.class);
+
+    //Время, в течение которого разрешенный адрес не разрешается заново (как networkaddress.cache.ttl по умолчанию)
+    private static final long ADDRESS_TTL_MILLIS = 30000L;
+
+    /**
+     * Получает результат разрешения адреса в потоке мультиплексора
+     */
+    interface Callback {
+
+        void onResolved(SocketAddress address);
+
+        void onFailed(IOException cause);
+    }
+
+    private final TunnelMultiplexer multiplexer;
+
+    private final ExecutorService resolverExecutor;
+
+    //Разрешенные адреса -- настройка канала --> адрес
+    private final Map<ProxyProperty, CachedAddress> addresses = new HashMap<ProxyProperty, CachedAddress>();
+
+    //Ожидающие разрешения -- настройка канала --> получатели результата
+    private final Map<ProxyProperty, List<Callback>> waiting = new HashMap<ProxyProperty, List<Callback>>();
+
+    RemoteAddressResolver(final TunnelMultiplexer multiplexer) {
+
+        this.multiplexer = multiplexer;
+        this.resolverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "tunnel-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Передает получателю адрес удаленного сервера канала. Если адрес уже известен, получатель вызывается сразу,
+     * иначе - после разрешения имени в потоке мультиплексора
+     * @param proxyProperty настройка канала маршрутизации
+     * @param callback получатель адреса
+     */
+    void resolve(final ProxyProperty proxyProperty, final Callback callback) {
+
+        if (proxyProperty.isRemoteUnixSocket()) {
+            callback.onResolved(UnixDomainSocketAddress.of(proxyProperty.getRemotePath()));
+            return;
+        }
+
+        final CachedAddress cached = this.addresses.get(proxyProperty);
+
+        if (cached != null) {
+            if (System.currentTimeMillis() >= cached.expiresAt) {
+                startLookup(proxyProperty);
+            }
+            callback.onResolved(cached.address);
+            return;
+        }
+
+        List<Callback> callbacks = this.waiting.get(proxyProperty);
+        if (callbacks == null) {
+            callbacks = new ArrayList<Callback>(2);
+            this.waiting.put(proxyProperty, callbacks);
+        }
+        callbacks.add(callback);
+
+        startLookup(proxyProperty);
+    }
+
+    /**
+     * Останавливает поток разрешения имен. Получатели, ожидающие адрес, больше не вызываются
+     */
+    void shutdown() {
+        this.resolverExecutor.shutdownNow();
+        this.waiting.clear();
+    }
+
+    private void startLookup(final ProxyProperty proxyProperty) {
+
+        final CachedAddress cached = this.addresses.get(proxyProperty);
+        if (cached != null) {
+            if (cached.refreshing) {
+                return;
+            }
+            cached.refreshing = true;
+        } else if (this.waiting.get(proxyProperty).size() > 1) {
+            //Имя уже разрешается для другого получателя
+            return;
+        }
+
+        this.resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                SocketAddress address = null;
+                IOException error = null;
+                try {
+                    final InetAddress resolved = InetAddress.getByName(proxyProperty.getRemoteHost());
+                    address = new InetSocketAddress(resolved, proxyProperty.getRemotePort());
+                } catch (UnknownHostException e) {
+                    error = new IOException("Cannot resolve " + proxyProperty.getRemoteHost(), e);
+                }
+
+                final SocketAddress resolvedAddress = address;
+                final IOException lookupError = error;
+                multiplexer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLookupFinished(proxyProperty, resolvedAddress, lookupError);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onLookupFinished(final ProxyProperty proxyProperty, final SocketAddress address,
+                                  final IOException error) {
+
+        if (address != null) {
+            this.addresses.put(proxyProperty, new CachedAddress(address));
+        } else {
+            final CachedAddress cached = this.addresses.get(proxyProperty);
+            if (cached != null) {
+                //Прежний адрес используется до следующей попытки
+                LOGGER.warn("Cannot refresh address of " + proxyProperty.getRemoteEndpoint()
+                        + ", keeping " + cached.address, error);
+                cached.refreshing = false;
+                cached.expiresAt = System.currentTimeMillis() + ADDRESS_TTL_MILLIS;
+            }
+        }
+
+        final List<Callback> callbacks = this.waiting.remove(proxyProperty);
+        if (callbacks == null) {
+            return;
+        }
+
+        for (final Callback callback : callbacks) {
+            if (address != null) {
+                callback.onResolved(address);
+            } else {
+                callback.onFailed(error);
+            }
+        }
+    }
+
+    /**
+     * Разрешенный адрес и время, до которого он считается актуальным
+     */
+    private static final class CachedAddress {
+
+        private final SocketAddress address;
+
+        private long expiresAt;
+
+        //Адрес разрешается заново
+        private boolean refreshing;
+
+        private CachedAddress(final SocketAddress address) {
+            this.address = address;
+            this.expiresAt = System.currentTimeMillis() + ADDRESS_TTL_MILLIS;
+        }
+    }
+}
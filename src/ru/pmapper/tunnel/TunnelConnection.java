@@ -0,0 +1,904 @@
+package ru.pmapper.tunnel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.traffic.TrafficCounter;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Одно постоянное TCP соединение между двумя маршрутизаторами, через которое передаются потоки многих клиентских
+ * соединений. Входная сторона туннеля принимает клиентов и открывает потоки, выходная соединяется для каждого
+ * потока с удаленным сервером канала.
+ *
+ * Для каждого потока действует окно: отправитель передает не больше {@link TunnelStream#INITIAL_WINDOW}
+ * неподтвержденных байтов, а получатель подтверждает байты после записи в локальный канал. Поэтому медленный
+ * клиент не задерживает остальные потоки, а память на поток ограничена. Если в туннельное соединение не удается
+ * записывать так же быстро, как читаются локальные каналы, чтение всех потоков приостанавливается.
+ *
+ * Все методы вызываются только из потока мультиплексора.
+ */
+final class TunnelConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TunnelConnection.class);
+
+    //Объем неотправленных кадров, при котором чтение локальных каналов приостанавливается
+    private static final long HIGH_WATERMARK = 1024 * 1024;
+
+    //Объем неотправленных кадров, при котором чтение локальных каналов возобновляется
+    private static final long LOW_WATERMARK = 256 * 1024;
+
+    //Наибольшее число кадров в одной записи
+    private static final int MAX_GATHERED_FRAMES = 64;
+
+    private final TunnelMultiplexer multiplexer;
+
+    //true - входная сторона туннеля, false - выходная
+    private final boolean entrance;
+
+    //Настройка канала маршрутизации
+    private final ProxyProperty proxyProperty;
+
+    //На входной стороне - состояние здоровья другого маршрутизатора, на выходной - удаленного сервера
+    private final BackendHealth backendHealth;
+
+    private final SocketChannel channel;
+
+    private final SelectionKey key;
+
+    //Потоки -- номер потока --> поток
+    private final Map<Integer, TunnelStream> streams = new HashMap<Integer, TunnelStream>();
+
+    private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+
+    private final ByteBuffer readBuffer
+            = ByteBuffer.allocate(4 * (TunnelFrame.HEADER_LENGTH + TunnelFrame.MAX_PAYLOAD_LENGTH));
+
+    private long outgoingBytes;
+
+    //Чтение локальных каналов приостановлено из-за накопившихся кадров
+    private boolean congested;
+
+    private boolean connected;
+
+    //Адрес другого маршрутизатора еще разрешается, соединение не начато
+    private boolean resolving;
+
+    private long connectDeadline;
+
+    //Новые потоки в этом соединении не открываются
+    private boolean goingAway;
+
+    private boolean closed;
+
+    //Номер следующего потока входной стороны
+    private int nextStreamId = 1;
+
+    private TunnelConnection(final TunnelMultiplexer multiplexer, final boolean entrance,
+                             final ProxyProperty proxyProperty, final BackendHealth backendHealth,
+                             final SocketChannel channel, final boolean connected) throws IOException {
+
+        this.multiplexer = multiplexer;
+        this.entrance = entrance;
+        this.proxyProperty = proxyProperty;
+        this.backendHealth = backendHealth;
+        this.channel = channel;
+        this.connected = connected;
+        this.connectDeadline = System.currentTimeMillis() + proxyProperty.getConnectTimeout();
+
+        this.key = channel.register(multiplexer.getSelector(), connected ? SelectionKey.OP_READ : 0, this);
+    }
+
+    /**
+     * Начинает установку туннельного соединения входной стороны с другим маршрутизатором. Адрес другого
+     * маршрутизатора разрешается вне потока мультиплексора, соединение начинается после разрешения.
+     * Если адрес уже известен и соединение сразу не удалось, возвращается закрытое соединение
+     * @param multiplexer мультиплексор, в потоке которого работает соединение
+     * @param proxyProperty настройка канала в режиме tunnel
+     * @param backendHealth состояние здоровья другого маршрутизатора
+     * @return туннельное соединение, в котором уже можно открывать потоки
+     * @throws IOException
+     */
+    static TunnelConnection connect(final TunnelMultiplexer multiplexer, final ProxyProperty proxyProperty,
+                                    final BackendHealth backendHealth) throws IOException {
+
+        final SocketChannel channel = SocketEndpoints.openRemoteChannel(proxyProperty);
+        final TunnelConnection tunnel;
+        try {
+            channel.configureBlocking(false);
+            SocketEndpoints.configureLongLived(channel);
+
+            tunnel = new TunnelConnection(multiplexer, true, proxyProperty, backendHealth, channel, false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        LOGGER.info("Opening tunnel connection to " + proxyProperty.getRemoteEndpoint()
+                + " for " + proxyProperty.getName());
+
+        tunnel.resolving = true;
+        multiplexer.getAddressResolver().resolve(proxyProperty, new RemoteAddressResolver.Callback() {
+            @Override
+            public void onResolved(final SocketAddress address) {
+                tunnel.startConnect(address);
+            }
+
+            @Override
+            public void onFailed(final IOException cause) {
+                tunnel.close("Cannot connect to " + proxyProperty.getRemoteEndpoint(), cause);
+            }
+        });
+        return tunnel;
+    }
+
+    /**
+     * Создает туннельное соединение выходной стороны из принятого подключения другого маршрутизатора
+     * @param multiplexer мультиплексор, в потоке которого работает соединение
+     * @param channel принятое подключение
+     * @param proxyProperty настройка канала в режиме tunnel-exit
+     * @param backendHealth состояние здоровья удаленного сервера
+     * @return туннельное соединение
+     * @throws IOException
+     */
+    static TunnelConnection accept(final TunnelMultiplexer multiplexer, final SocketChannel channel,
+                                   final ProxyProperty proxyProperty, final BackendHealth backendHealth)
+            throws IOException {
+
+        SocketEndpoints.configureLongLived(channel);
+
+        return new TunnelConnection(multiplexer, false, proxyProperty, backendHealth, channel, true);
+    }
+
+    /**
+     * Открывает поток для принятого клиентского соединения. Данные клиента начинают передаваться сразу,
+     * не дожидаясь установки туннельного соединения
+     * @param clientChannel канал сокета клиента
+     * @param trafficCounter счетчик байтов соединения клиента
+     * @param closeListener вызывается после закрытия соединения клиента, может быть null
+     * @throws IOException
+     */
+    void openStream(final SocketChannel clientChannel, final TrafficCounter trafficCounter,
+                    final Runnable closeListener) throws IOException {
+
+        final TunnelStream stream = new TunnelStream(this.nextStreamId, this);
+        this.nextStreamId += 2;
+
+        stream.channel = clientChannel;
+        stream.closeListener = closeListener;
+        stream.trafficCounter = trafficCounter;
+        stream.compressOutgoing = this.proxyProperty.isCompression();
+        stream.key = clientChannel.register(this.multiplexer.getSelector(), 0, stream);
+
+        this.streams.put(stream.id, stream);
+        this.multiplexer.onStreamOpened();
+
+        enqueue(TunnelFrame.control(TunnelFrame.OPEN,
+                stream.compressOutgoing ? TunnelFrame.FLAG_COMPRESSED : 0, stream.id));
+
+        if (this.connected) {
+            this.backendHealth.onConnected();
+        }
+        updateInterest(stream);
+    }
+
+    /**
+     * Обработка события туннельного соединения
+     * @param event событие
+     */
+    void onTunnelEvent(final SelectionKey event) {
+
+        try {
+            if (event.isConnectable()) {
+                finishConnect();
+                return;
+            }
+            if (event.isValid() && event.isWritable()) {
+                flushOutgoing();
+            }
+            if (event.isValid() && event.isReadable()) {
+                readFrames();
+            }
+        } catch (IOException e) {
+            close("Tunnel connection " + this.channel + " has failed", e);
+        }
+    }
+
+    /**
+     * Обработка события локального канала потока
+     * @param stream поток
+     * @param event событие
+     */
+    void onStreamEvent(final TunnelStream stream, final SelectionKey event) {
+
+        try {
+            if (event.isConnectable()) {
+                finishStreamConnect(stream);
+                return;
+            }
+            if (event.isValid() && event.isWritable()) {
+                writePending(stream);
+            }
+            if (event.isValid() && event.isReadable()) {
+                readLocal(stream);
+            }
+        } catch (IOException e) {
+            LOGGER.warn(SocketEndpoints.describe(stream.channel) + " has been closed forcibly", e);
+            resetStream(stream, true);
+        }
+    }
+
+    /**
+     * Проверка таймаутов установки соединений
+     * @param now текущее время
+     */
+    void checkTimeouts(final long now) {
+
+        if (!this.connected) {
+            if (now >= this.connectDeadline) {
+                close("Tunnel connection to " + this.proxyProperty.getRemoteEndpoint() + " has timed out",
+                        null);
+            }
+            return;
+        }
+
+        for (final TunnelStream stream : new ArrayList<TunnelStream>(this.streams.values())) {
+            if (stream.connecting && now >= stream.connectDeadline) {
+                LOGGER.warn("Connection to " + this.proxyProperty.getRemoteEndpoint()
+                        + " for tunnel stream " + stream.id + " has timed out");
+                this.backendHealth.onFailure();
+                resetStream(stream, true);
+            }
+        }
+    }
+
+    /**
+     * Сообщает другой стороне, что новые потоки открывать нельзя. Соединение закроется после завершения потоков
+     */
+    void goAway() {
+
+        if (!this.goingAway) {
+            this.goingAway = true;
+            enqueue(TunnelFrame.control(TunnelFrame.GO_AWAY, 0, 0));
+            closeIfUnused();
+        }
+    }
+
+    boolean isGoingAway() {
+        return goingAway;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getStreamCount() {
+        return this.streams.size();
+    }
+
+    ProxyProperty getProxyProperty() {
+        return proxyProperty;
+    }
+
+    /**
+     * Закрывает туннельное соединение вместе со всеми его потоками
+     * @param reason причина для журнала
+     * @param cause ошибка или null
+     */
+    void close(final String reason, final IOException cause) {
+
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        if (cause != null) {
+            LOGGER.warn(reason, cause);
+        } else {
+            LOGGER.info(reason);
+        }
+
+        if (this.entrance && !this.connected) {
+            this.backendHealth.onFailure();
+        }
+
+        for (final TunnelStream stream : this.streams.values()) {
+            closeLocalChannel(stream);
+            this.multiplexer.onStreamClosed();
+        }
+        this.streams.clear();
+        this.outgoing.clear();
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close tunnel connection", e);
+        }
+
+        this.multiplexer.onTunnelClosed(this);
+    }
+
+    /**
+     * Начинает соединение с разрешенным адресом другого маршрутизатора
+     */
+    private void startConnect(final SocketAddress address) {
+
+        if (this.closed) {
+            return;
+        }
+        this.resolving = false;
+
+        try {
+            if (this.channel.connect(address)) {
+                this.connected = true;
+                this.backendHealth.onConnected();
+
+                LOGGER.info("Tunnel connection " + this.channel + " has been established");
+            }
+            updateTunnelInterest();
+        } catch (IOException e) {
+            close("Cannot connect to " + this.proxyProperty.getRemoteEndpoint(), e);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+
+        if (this.channel.finishConnect()) {
+            this.connected = true;
+            this.backendHealth.onConnected();
+
+            LOGGER.info("Tunnel connection " + this.channel + " has been established");
+            updateTunnelInterest();
+        }
+    }
+
+    /**
+     * Начинает соединение потока с разрешенным адресом удаленного сервера
+     */
+    private void startStreamConnect(final TunnelStream stream, final SocketAddress address) {
+
+        //Поток мог быть сброшен, пока разрешался адрес
+        if (this.streams.get(stream.id) != stream) {
+            return;
+        }
+        stream.resolving = false;
+
+        try {
+            if (stream.channel.connect(address)) {
+                stream.connecting = false;
+                this.backendHealth.onConnected();
+
+                writePending(stream);
+            }
+            updateInterest(stream);
+        } catch (IOException e) {
+            failStreamConnect(stream, e);
+        }
+    }
+
+    private void finishStreamConnect(final TunnelStream stream) {
+
+        try {
+            if (stream.channel.finishConnect()) {
+                stream.connecting = false;
+                this.backendHealth.onConnected();
+
+                writePending(stream);
+                updateInterest(stream);
+            }
+        } catch (IOException e) {
+            failStreamConnect(stream, e);
+        }
+    }
+
+    private void failStreamConnect(final TunnelStream stream, final IOException cause) {
+
+        if (this.streams.get(stream.id) != stream) {
+            return;
+        }
+
+        LOGGER.warn("Cannot connect to " + this.proxyProperty.getRemoteEndpoint()
+                + " for tunnel stream " + stream.id, cause);
+        this.backendHealth.onFailure();
+        resetStream(stream, true);
+    }
+
+    private void readFrames() throws IOException {
+
+        final int bytesRead = this.channel.read(this.readBuffer);
+
+        if (bytesRead == -1) {
+            close("Tunnel connection " + this.channel + " has been closed by the peer", null);
+            return;
+        }
+
+        this.readBuffer.flip();
+
+        while (this.readBuffer.remaining() >= TunnelFrame.HEADER_LENGTH && !this.closed) {
+
+            final int start = this.readBuffer.position();
+            final byte type = TunnelFrame.type(this.readBuffer, start);
+            final int flags = TunnelFrame.flags(this.readBuffer, start);
+            final int streamId = TunnelFrame.streamId(this.readBuffer, start);
+            final int payloadLength = TunnelFrame.payloadLength(this.readBuffer, start);
+
+            if (this.readBuffer.remaining() < TunnelFrame.HEADER_LENGTH + payloadLength) {
+                break;
+            }
+
+            this.readBuffer.position(start + TunnelFrame.HEADER_LENGTH);
+            processFrame(type, flags, streamId, payloadLength);
+            this.readBuffer.position(start + TunnelFrame.HEADER_LENGTH + payloadLength);
+        }
+
+        this.readBuffer.compact();
+    }
+
+    /**
+     * Обработка кадра. Позиция буфера чтения стоит на начале данных кадра
+     */
+    private void processFrame(final byte type, final int flags, final int streamId, final int payloadLength)
+            throws IOException {
+
+        switch (type) {
+            case TunnelFrame.OPEN:
+                onOpen(streamId, flags);
+                break;
+
+            case TunnelFrame.DATA:
+                onData(streamId, flags, payloadLength);
+                break;
+
+            case TunnelFrame.WINDOW_UPDATE:
+                onWindowUpdate(streamId, payloadLength);
+                break;
+
+            case TunnelFrame.CLOSE:
+                onClose(streamId);
+                break;
+
+            case TunnelFrame.RESET:
+                final TunnelStream resetStream = this.streams.get(streamId);
+                if (resetStream != null) {
+                    resetStream(resetStream, false);
+                }
+                break;
+
+            case TunnelFrame.GO_AWAY:
+                this.goingAway = true;
+                this.multiplexer.onTunnelGoingAway(this);
+                closeIfUnused();
+                break;
+
+            default:
+                throw new TunnelProtocolException("Unknown tunnel frame type " + type);
+        }
+    }
+
+    /**
+     * Другая сторона открыла поток: соединяемся с удаленным сервером канала
+     */
+    private void onOpen(final int streamId, final int flags) throws IOException {
+
+        if (this.entrance || this.streams.containsKey(streamId)) {
+            throw new TunnelProtocolException("Unexpected OPEN of tunnel stream " + streamId);
+        }
+
+        final TunnelStream stream = new TunnelStream(streamId, this);
+        stream.compressOutgoing = (flags & TunnelFrame.FLAG_COMPRESSED) != 0;
+        this.streams.put(streamId, stream);
+        this.multiplexer.onStreamOpened();
+
+        if (this.goingAway) {
+            resetStream(stream, true);
+            return;
+        }
+
+        if (!this.backendHealth.tryAcquirePermission()) {
+            LOGGER.warn("Tunnel stream " + streamId + " has been refused: "
+                    + this.backendHealth.getBackendName() + " is unhealthy");
+            resetStream(stream, true);
+            return;
+        }
+
+        try {
+            stream.channel = SocketEndpoints.openRemoteChannel(this.proxyProperty);
+            stream.channel.configureBlocking(false);
+
+            //Данные другой стороны накапливаются в потоке, пока разрешается адрес и устанавливается соединение
+            stream.connecting = true;
+            stream.resolving = true;
+            stream.connectDeadline = System.currentTimeMillis() + this.proxyProperty.getConnectTimeout();
+            stream.key = stream.channel.register(this.multiplexer.getSelector(), 0, stream);
+
+        } catch (IOException e) {
+            failStreamConnect(stream, e);
+            return;
+        }
+
+        this.multiplexer.getAddressResolver().resolve(this.proxyProperty, new RemoteAddressResolver.Callback() {
+            @Override
+            public void onResolved(final SocketAddress address) {
+                startStreamConnect(stream, address);
+            }
+
+            @Override
+            public void onFailed(final IOException cause) {
+                failStreamConnect(stream, cause);
+            }
+        });
+    }
+
+    private void onData(final int streamId, final int flags, final int payloadLength) throws IOException {
+
+        final byte[] data;
+
+        if ((flags & TunnelFrame.FLAG_COMPRESSED) != 0) {
+
+            final int originalLength = this.readBuffer.getInt();
+            if (originalLength <= 0 || originalLength > TunnelFrame.MAX_PAYLOAD_LENGTH || payloadLength < 4) {
+                throw new TunnelProtocolException("Malformed compressed tunnel frame");
+            }
+
+            data = new byte[originalLength];
+            final int length = this.multiplexer.getCodec().decompress(this.readBuffer.array(),
+                    this.readBuffer.arrayOffset() + this.readBuffer.position(), payloadLength - 4,
+                    data, 0, originalLength);
+
+            if (length != originalLength) {
+                throw new TunnelProtocolException("Malformed compressed tunnel frame");
+            }
+        } else {
+            data = new byte[payloadLength];
+            this.readBuffer.get(data);
+        }
+
+        final TunnelStream stream = this.streams.get(streamId);
+
+        //Данные могли прийти уже после того, как поток был сброшен этой стороной
+        if (stream == null || stream.channel == null) {
+            return;
+        }
+
+        if (stream.remoteEof) {
+            throw new TunnelProtocolException("DATA after CLOSE of tunnel stream " + streamId);
+        }
+
+        stream.unacknowledged += data.length;
+        if (stream.unacknowledged > TunnelStream.INITIAL_WINDOW) {
+            throw new TunnelProtocolException("Flow control window of tunnel stream " + streamId + " is exceeded");
+        }
+
+        stream.pending.add(ByteBuffer.wrap(data));
+
+        if (!stream.connecting) {
+            try {
+                writePending(stream);
+            } catch (IOException e) {
+                LOGGER.warn(SocketEndpoints.describe(stream.channel) + " has been closed forcibly", e);
+                resetStream(stream, true);
+                return;
+            }
+        }
+        updateInterest(stream);
+    }
+
+    private void onWindowUpdate(final int streamId, final int payloadLength) throws IOException {
+
+        if (payloadLength != 4) {
+            throw new TunnelProtocolException("Malformed WINDOW_UPDATE of tunnel stream " + streamId);
+        }
+
+        final int increment = this.readBuffer.getInt();
+        if (increment <= 0) {
+            throw new TunnelProtocolException("Invalid WINDOW_UPDATE increment " + increment
+                    + " of tunnel stream " + streamId);
+        }
+
+        final TunnelStream stream = this.streams.get(streamId);
+
+        if (stream != null) {
+            if (stream.sendWindow > Integer.MAX_VALUE - increment) {
+                throw new TunnelProtocolException("Send window overflow of tunnel stream " + streamId);
+            }
+            stream.sendWindow += increment;
+            updateInterest(stream);
+        }
+    }
+
+    private void onClose(final int streamId) throws IOException {
+
+        final TunnelStream stream = this.streams.get(streamId);
+        if (stream == null || stream.channel == null) {
+            return;
+        }
+
+        stream.remoteEof = true;
+
+        if (!stream.connecting) {
+            try {
+                writePending(stream);
+            } catch (IOException e) {
+                LOGGER.warn(SocketEndpoints.describe(stream.channel) + " has been closed forcibly", e);
+                resetStream(stream, true);
+            }
+        }
+    }
+
+    /**
+     * Читает данные локального канала и отправляет их другой стороне в пределах окна потока
+     */
+    private void readLocal(final TunnelStream stream) throws IOException {
+
+        final ByteBuffer scratch = this.multiplexer.getScratchBuffer();
+        scratch.clear();
+        scratch.limit(Math.min(scratch.capacity(), stream.sendWindow));
+
+        final int bytesRead = stream.channel.read(scratch);
+
+        if (bytesRead == -1) {
+            LOGGER.debug(SocketEndpoints.describe(stream.channel) + " has been closed gracefully");
+
+            stream.localEof = true;
+            enqueue(TunnelFrame.control(TunnelFrame.CLOSE, 0, stream.id));
+            finishIfDone(stream);
+            return;
+        }
+
+        if (bytesRead > 0) {
+            countReceived(stream, bytesRead);
+            stream.sendWindow -= bytesRead;
+            enqueue(createDataFrame(stream, scratch.array(), bytesRead));
+            updateInterest(stream);
+        }
+    }
+
+    /**
+     * Создает кадр данных. Данные сжимаются, если это включено для потока и сжатый блок получается короче
+     */
+    private ByteBuffer createDataFrame(final TunnelStream stream, final byte[] data, final int length) {
+
+        if (stream.compressOutgoing) {
+            final byte[] compressed = this.multiplexer.getCompressBuffer();
+            final int compressedLength = this.multiplexer.getCodec().compress(data, 0, length, compressed, 0,
+                    Math.min(compressed.length, length - 5));
+
+            if (compressedLength > 0) {
+                final ByteBuffer frame = TunnelFrame.allocate(TunnelFrame.DATA, TunnelFrame.FLAG_COMPRESSED,
+                        stream.id, 4 + compressedLength);
+                frame.putInt(length);
+                frame.put(compressed, 0, compressedLength);
+                frame.flip();
+
+                this.multiplexer.onDataSent(length, frame.remaining());
+                return frame;
+            }
+        }
+
+        final ByteBuffer frame = TunnelFrame.allocate(TunnelFrame.DATA, 0, stream.id, length);
+        frame.put(data, 0, length);
+        frame.flip();
+
+        this.multiplexer.onDataSent(length, frame.remaining());
+        return frame;
+    }
+
+    /**
+     * Записывает в локальный канал данные, полученные от другой стороны, и подтверждает их
+     */
+    private void writePending(final TunnelStream stream) throws IOException {
+
+        while (!stream.pending.isEmpty()) {
+
+            final ByteBuffer data = stream.pending.peekFirst();
+            final int bytesWritten = stream.channel.write(data);
+            stream.consumed += bytesWritten;
+            countSent(stream, bytesWritten);
+
+            if (data.hasRemaining()) {
+                break;
+            }
+            stream.pending.removeFirst();
+        }
+
+        if (stream.consumed >= TunnelStream.WINDOW_UPDATE_THRESHOLD) {
+            enqueue(TunnelFrame.windowUpdate(stream.id, stream.consumed));
+            stream.unacknowledged -= stream.consumed;
+            stream.consumed = 0;
+        }
+
+        if (stream.pending.isEmpty() && stream.remoteEof && !stream.outputShutdown) {
+            stream.channel.shutdownOutput();
+            stream.outputShutdown = true;
+            finishIfDone(stream);
+            return;
+        }
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Закрывает поток, если обмен данными закончен в обе стороны
+     */
+    private void finishIfDone(final TunnelStream stream) {
+
+        if (!stream.isFinished()) {
+            updateInterest(stream);
+            return;
+        }
+
+        this.streams.remove(stream.id);
+        closeLocalChannel(stream);
+        this.multiplexer.onStreamClosed();
+
+        if (!this.entrance) {
+            this.backendHealth.onGracefulClose();
+        }
+        closeIfUnused();
+    }
+
+    /**
+     * Аварийно закрывает поток
+     * @param stream поток
+     * @param notifyPeer сообщить другой стороне
+     */
+    private void resetStream(final TunnelStream stream, final boolean notifyPeer) {
+
+        if (this.streams.remove(stream.id) == null) {
+            return;
+        }
+
+        closeLocalChannel(stream);
+        this.multiplexer.onStreamClosed();
+
+        if (notifyPeer) {
+            enqueue(TunnelFrame.control(TunnelFrame.RESET, 0, stream.id));
+        }
+        closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+        if (this.goingAway && this.streams.isEmpty() && this.outgoing.isEmpty()) {
+            close("Tunnel connection " + this.channel + " has been closed after GO_AWAY", null);
+        }
+    }
+
+    private static void closeLocalChannel(final TunnelStream stream) {
+
+        stream.pending.clear();
+        if (stream.channel != null) {
+            try {
+                stream.channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close channel of tunnel stream " + stream.id, e);
+            }
+        }
+        if (stream.trafficCounter != null) {
+            stream.trafficCounter.flush();
+        }
+
+        //Слушатель вызывается один раз, даже если поток закрывается повторно
+        final Runnable closeListener = stream.closeListener;
+        stream.closeListener = null;
+        if (closeListener != null) {
+            closeListener.run();
+        }
+    }
+
+    private static void countReceived(final TunnelStream stream, final int bytes) {
+        if (stream.trafficCounter != null) {
+            stream.trafficCounter.addReceived(bytes);
+        }
+    }
+
+    private static void countSent(final TunnelStream stream, final int bytes) {
+        if (stream.trafficCounter != null) {
+            stream.trafficCounter.addSent(bytes);
+        }
+    }
+
+    private void enqueue(final ByteBuffer frame) {
+
+        if (this.closed) {
+            return;
+        }
+
+        this.outgoing.add(frame);
+        this.outgoingBytes += frame.remaining();
+
+        if (!this.congested && this.outgoingBytes > HIGH_WATERMARK) {
+            this.congested = true;
+            updateAllStreams();
+        }
+
+        //Кадры отправляются, когда селектор сообщит о готовности к записи: так кадры, накопившиеся за один
+        //проход мультиплексора, уходят одной системной операцией
+        if (this.outgoing.size() == 1) {
+            updateTunnelInterest();
+        }
+    }
+
+    private void flushOutgoing() throws IOException {
+
+        final int count = Math.min(this.outgoing.size(), MAX_GATHERED_FRAMES);
+        final ByteBuffer[] frames = new ByteBuffer[count];
+
+        final Iterator<ByteBuffer> iterator = this.outgoing.iterator();
+        for (int i = 0; i < count; i++) {
+            frames[i] = iterator.next();
+        }
+
+        this.outgoingBytes -= this.channel.write(frames);
+
+        while (!this.outgoing.isEmpty() && !this.outgoing.peekFirst().hasRemaining()) {
+            this.outgoing.removeFirst();
+        }
+
+        if (this.congested && this.outgoingBytes < LOW_WATERMARK) {
+            this.congested = false;
+            updateAllStreams();
+        }
+
+        updateTunnelInterest();
+        closeIfUnused();
+    }
+
+    private void updateTunnelInterest() {
+
+        if (this.closed) {
+            return;
+        }
+
+        final int ops;
+        if (!this.connected) {
+            ops = this.resolving ? 0 : SelectionKey.OP_CONNECT;
+        } else {
+            ops = this.outgoing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        }
+        this.key.interestOps(ops);
+    }
+
+    private void updateAllStreams() {
+        for (final TunnelStream stream : this.streams.values()) {
+            updateInterest(stream);
+        }
+    }
+
+    /**
+     * Выставляет интересующие события локального канала потока по его состоянию
+     */
+    private void updateInterest(final TunnelStream stream) {
+
+        if (stream.key == null || !stream.key.isValid()) {
+            return;
+        }
+
+        int ops = 0;
+        if (stream.connecting) {
+            ops = stream.resolving ? 0 : SelectionKey.OP_CONNECT;
+        } else {
+            if (!stream.localEof && stream.sendWindow > 0 && !this.congested) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!stream.pending.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+
+        if (stream.key.interestOps() != ops) {
+            stream.key.interestOps(ops);
+        }
+    }
+}
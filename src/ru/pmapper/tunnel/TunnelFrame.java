@@ -0,0 +1,101 @@
+package ru.pmapper.tunnel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Формат кадров туннеля. Кадр состоит из заголовка [тип:1][флаги:1][номер потока:4][длина данных:4]
+ * и данных указанной длины. Все числа передаются в сетевом порядке байтов.
+ */
+final class TunnelFrame {
+
+    static final int HEADER_LENGTH = 10;
+
+    //Наибольшая длина данных кадра. Сжатые данные передаются, только если они короче исходных
+    static final int MAX_PAYLOAD_LENGTH = 16384;
+
+    //Открытие потока. Отправляет только входная сторона туннеля
+    static final byte OPEN = 1;
+
+    //Данные потока
+    static final byte DATA = 2;
+
+    //Разрешение отправить еще столько-то байтов данных потока. Данные - число байтов
+    static final byte WINDOW_UPDATE = 3;
+
+    //Отправитель больше не передаст данных потока (полузакрытие)
+    static final byte CLOSE = 4;
+
+    //Аварийное закрытие потока в обе стороны
+    static final byte RESET = 5;
+
+    //Отправитель останавливается: новые потоки в этом туннельном соединении не открывать
+    static final byte GO_AWAY = 6;
+
+    //OPEN: сжимать данные ответного направления. DATA: данные сжаты, перед блоком LZ4 - исходная длина
+    static final int FLAG_COMPRESSED = 1;
+
+    private TunnelFrame() {}
+
+    /**
+     * Создает кадр с местом под данные
+     * @return буфер, позиция которого стоит на начале данных
+     */
+    static ByteBuffer allocate(final byte type, final int flags, final int streamId, final int payloadLength) {
+
+        final ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        frame.put(type);
+        frame.put((byte) flags);
+        frame.putInt(streamId);
+        frame.putInt(payloadLength);
+        return frame;
+    }
+
+    /**
+     * Создает готовый к отправке кадр без данных
+     */
+    static ByteBuffer control(final byte type, final int flags, final int streamId) {
+
+        final ByteBuffer frame = allocate(type, flags, streamId, 0);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Создает готовый к отправке кадр WINDOW_UPDATE
+     */
+    static ByteBuffer windowUpdate(final int streamId, final int increment) {
+
+        final ByteBuffer frame = allocate(WINDOW_UPDATE, 0, streamId, 4);
+        frame.putInt(increment);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Поля заголовка кадра, начинающегося с позиции start буфера. Позиция буфера не меняется
+     */
+    static byte type(final ByteBuffer buffer, final int start) {
+        return buffer.get(start);
+    }
+
+    static int flags(final ByteBuffer buffer, final int start) {
+        return buffer.get(start + 1);
+    }
+
+    static int streamId(final ByteBuffer buffer, final int start) {
+        return buffer.getInt(start + 2);
+    }
+
+    /**
+     * @return длина данных кадра
+     * @throws TunnelProtocolException если длина вне допустимых пределов
+     */
+    static int payloadLength(final ByteBuffer buffer, final int start) throws TunnelProtocolException {
+
+        final int payloadLength = buffer.getInt(start + 6);
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new TunnelProtocolException("Tunnel frame is too long: " + payloadLength);
+        }
+        return payloadLength;
+    }
+}
@@ -0,0 +1,434 @@
+package ru.pmapper.tunnel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.traffic.TrafficCounter;
+import ru.pmapper.util.SocketEndpoints;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Обработчик всех туннельных соединений маршрутизатора и их потоков. В отличие от обработчиков TCP и HTTP
+ * каналов, которые обслуживают по одному клиенту в потоке пула, все туннели и клиенты каналов в режимах tunnel
+ * и tunnel-exit обслуживаются одним потоком с общим селектором: потоки клиентов делят между собой несколько
+ * постоянных соединений между маршрутизаторами.
+ *
+ * Входная сторона (режим tunnel) держит до {@link ProxyProperty#getTunnelConnections()} соединений с другим
+ * маршрутизатором на канал и открывает поток клиента в наименее загруженном из них. Выходная сторона
+ * (режим tunnel-exit) принимает туннельные соединения на локальный порт канала и для каждого потока соединяется
+ * с удаленным сервером канала.
+ */
+public class TunnelMultiplexer implements Runnable, TunnelMultiplexerMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TunnelMultiplexer.class);
+
+    //Период проверки таймаутов соединений
+    private static final long TIMER_INTERVAL_MILLIS = 1000L;
+
+    private final Selector selector;
+
+    //Задачи, переданные из потока диспетчера событий
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    //Туннельные соединения входной стороны, в которых можно открывать потоки -- настройка канала --> соединения
+    private final Map<ProxyProperty, List<TunnelConnection>> entranceTunnels
+            = new HashMap<ProxyProperty, List<TunnelConnection>>();
+
+    //Все открытые туннельные соединения
+    private final Set<TunnelConnection> tunnels = new HashSet<TunnelConnection>();
+
+    private final Lz4BlockCodec codec = new Lz4BlockCodec();
+
+    private final RemoteAddressResolver addressResolver = new RemoteAddressResolver(this);
+
+    //Буферы для чтения локальных каналов и сжатия, общие для всех потоков
+    private final ByteBuffer scratchBuffer = ByteBuffer.allocate(TunnelFrame.MAX_PAYLOAD_LENGTH);
+    private final byte[] compressBuffer = new byte[TunnelFrame.MAX_PAYLOAD_LENGTH];
+
+    private final Thread thread;
+
+    private final AtomicInteger tunnelCount = new AtomicInteger();
+
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    private final AtomicLong openedStreams = new AtomicLong();
+
+    private final AtomicLong payloadBytesSent = new AtomicLong();
+
+    private final AtomicLong wireBytesSent = new AtomicLong();
+
+    private volatile boolean shutdownRequested;
+
+    //Момент, после которого незавершенные потоки закрываются при остановке
+    private volatile long shutdownDeadline;
+
+    public TunnelMultiplexer() throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "tunnel-multiplexer");
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Передает клиента канала в режиме tunnel для открытия потока
+     * @param clientChannel канал сокета клиента в неблокирующем режиме
+     * @param proxyProperty настройка канала
+     * @param backendHealth состояние здоровья другого маршрутизатора
+     * @param trafficCounter счетчик байтов соединения клиента
+     * @param closeListener вызывается после закрытия соединения клиента, может быть null
+     */
+    public void openStream(final SocketChannel clientChannel, final ProxyProperty proxyProperty,
+                           final BackendHealth backendHealth, final TrafficCounter trafficCounter,
+                           final Runnable closeListener) {
+
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TunnelConnection tunnel = getEntranceTunnel(proxyProperty, backendHealth);
+                    if (tunnel.isClosed()) {
+                        //Соединение сразу не удалось, неудача уже учтена в состоянии здоровья
+                        closeQuietly(clientChannel, closeListener);
+                        return;
+                    }
+                    tunnel.openStream(clientChannel, trafficCounter, closeListener);
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot open tunnel stream for " + SocketEndpoints.describe(clientChannel), e);
+                    backendHealth.onFailure();
+                    closeQuietly(clientChannel, closeListener);
+                }
+            }
+        }, clientChannel, closeListener);
+    }
+
+    /**
+     * Передает туннельное соединение, принятое на порт канала в режиме tunnel-exit
+     * @param tunnelChannel канал сокета другого маршрутизатора в неблокирующем режиме
+     * @param proxyProperty настройка канала
+     * @param backendHealth состояние здоровья удаленного сервера
+     */
+    public void acceptTunnel(final SocketChannel tunnelChannel, final ProxyProperty proxyProperty,
+                             final BackendHealth backendHealth) {
+
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TunnelConnection tunnel
+                            = TunnelConnection.accept(TunnelMultiplexer.this, tunnelChannel, proxyProperty, backendHealth);
+                    addTunnel(tunnel);
+                    LOGGER.info("Tunnel connection from " + SocketEndpoints.describe(tunnelChannel)
+                            + " has been accepted");
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot accept tunnel connection from " + SocketEndpoints.describe(tunnelChannel), e);
+                    closeQuietly(tunnelChannel, null);
+                }
+            }
+        }, tunnelChannel, null);
+    }
+
+    /**
+     * Останавливает обработку: другим маршрутизаторам сообщается, что новые потоки открывать нельзя, а уже открытые
+     * потоки дорабатывают не дольше заданного времени. Метод возвращает управление после остановки потока
+     * мультиплексора
+     * @param drainTimeoutMillis сколько ждать завершения открытых потоков
+     * @throws InterruptedException
+     */
+    public void shutdown(final long drainTimeoutMillis) throws InterruptedException {
+
+        this.shutdownDeadline = System.currentTimeMillis() + drainTimeoutMillis;
+        this.shutdownRequested = true;
+        this.selector.wakeup();
+
+        this.thread.join();
+    }
+
+    @Override
+    public void run() {
+
+        long nextTimerAt = System.currentTimeMillis() + TIMER_INTERVAL_MILLIS;
+        boolean goAwaySent = false;
+
+        try {
+            while (true) {
+
+                runTasks();
+
+                if (this.shutdownRequested) {
+                    if (!goAwaySent) {
+                        goAwayAll();
+                        goAwaySent = true;
+                    }
+                    if (this.activeStreams.get() == 0 || System.currentTimeMillis() >= this.shutdownDeadline) {
+                        break;
+                    }
+                }
+
+                this.selector.select(TIMER_INTERVAL_MILLIS);
+
+                final Iterator<SelectionKey> events = this.selector.selectedKeys().iterator();
+
+                while (events.hasNext()) {
+
+                    final SelectionKey event = events.next();
+                    events.remove();
+
+                    processEvent(event);
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now >= nextTimerAt) {
+                    for (final TunnelConnection tunnel : new ArrayList<TunnelConnection>(this.tunnels)) {
+                        tunnel.checkTimeouts(now);
+                    }
+                    nextTimerAt = now + TIMER_INTERVAL_MILLIS;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error during tunnel processing", e);
+        } finally {
+            shutdownProcessing();
+        }
+    }
+
+    private void processEvent(final SelectionKey event) {
+
+        if (!event.isValid()) {
+            return;
+        }
+
+        final Object attachment = event.attachment();
+
+        if (attachment instanceof TunnelConnection) {
+            ((TunnelConnection) attachment).onTunnelEvent(event);
+        } else if (attachment instanceof TunnelStream) {
+            final TunnelStream stream = (TunnelStream) attachment;
+            stream.connection.onStreamEvent(stream, event);
+        }
+    }
+
+    private void shutdownProcessing() {
+
+        //Задачи, не успевшие выполниться, держат принятые соединения
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            if (task instanceof ChannelTask) {
+                closeQuietly(((ChannelTask) task).channel, ((ChannelTask) task).closeListener);
+            }
+        }
+
+        this.addressResolver.shutdown();
+
+        for (final TunnelConnection tunnel : new ArrayList<TunnelConnection>(this.tunnels)) {
+            tunnel.close("Tunnel connection has been closed on shutdown", null);
+        }
+
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            LOGGER.error("Unexpected error during shutdown of tunnel processing", e);
+        }
+    }
+
+    private void submit(final Runnable task, final SocketChannel channel, final Runnable closeListener) {
+        this.tasks.add(new ChannelTask(task, channel, closeListener));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Выполняет задачу в потоке мультиплексора
+     * @param task задача без канала, который нужно закрыть при остановке
+     */
+    void execute(final Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void goAwayAll() {
+        for (final TunnelConnection tunnel : new ArrayList<TunnelConnection>(this.tunnels)) {
+            tunnel.goAway();
+        }
+    }
+
+    /**
+     * Выбирает туннельное соединение входной стороны для нового потока. Пока соединений меньше заданного числа,
+     * для потока открывается новое соединение, иначе выбирается соединение с наименьшим числом потоков
+     */
+    private TunnelConnection getEntranceTunnel(final ProxyProperty proxyProperty,
+                                               final BackendHealth backendHealth) throws IOException {
+
+        List<TunnelConnection> connections = this.entranceTunnels.get(proxyProperty);
+        if (connections == null) {
+            connections = new ArrayList<TunnelConnection>(proxyProperty.getTunnelConnections());
+            this.entranceTunnels.put(proxyProperty, connections);
+        }
+
+        TunnelConnection leastLoaded = null;
+        for (final TunnelConnection connection : connections) {
+            if (leastLoaded == null || connection.getStreamCount() < leastLoaded.getStreamCount()) {
+                leastLoaded = connection;
+            }
+        }
+
+        if (leastLoaded == null
+                || (leastLoaded.getStreamCount() > 0 && connections.size() < proxyProperty.getTunnelConnections())) {
+
+            leastLoaded = TunnelConnection.connect(this, proxyProperty, backendHealth);
+            if (!leastLoaded.isClosed()) {
+                connections.add(leastLoaded);
+                addTunnel(leastLoaded);
+            }
+        }
+        return leastLoaded;
+    }
+
+    private void addTunnel(final TunnelConnection tunnel) {
+        this.tunnels.add(tunnel);
+        this.tunnelCount.set(this.tunnels.size());
+    }
+
+    /**
+     * Туннельное соединение закрыто
+     */
+    void onTunnelClosed(final TunnelConnection tunnel) {
+
+        onTunnelGoingAway(tunnel);
+        this.tunnels.remove(tunnel);
+        this.tunnelCount.set(this.tunnels.size());
+    }
+
+    /**
+     * В туннельном соединении больше нельзя открывать потоки
+     */
+    void onTunnelGoingAway(final TunnelConnection tunnel) {
+
+        final List<TunnelConnection> connections = this.entranceTunnels.get(tunnel.getProxyProperty());
+        if (connections != null) {
+            connections.remove(tunnel);
+        }
+    }
+
+    void onStreamOpened() {
+        this.openedStreams.incrementAndGet();
+        this.activeStreams.incrementAndGet();
+    }
+
+    void onStreamClosed() {
+        this.activeStreams.decrementAndGet();
+    }
+
+    void onDataSent(final int payloadBytes, final int wireBytes) {
+        this.payloadBytesSent.addAndGet(payloadBytes);
+        this.wireBytesSent.addAndGet(wireBytes);
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    RemoteAddressResolver getAddressResolver() {
+        return addressResolver;
+    }
+
+    Lz4BlockCodec getCodec() {
+        return codec;
+    }
+
+    ByteBuffer getScratchBuffer() {
+        return scratchBuffer;
+    }
+
+    byte[] getCompressBuffer() {
+        return compressBuffer;
+    }
+
+    @Override
+    public int getTunnelConnections() {
+        return this.tunnelCount.get();
+    }
+
+    @Override
+    public int getActiveStreams() {
+        return this.activeStreams.get();
+    }
+
+    @Override
+    public long getOpenedStreams() {
+        return this.openedStreams.get();
+    }
+
+    @Override
+    public long getPayloadBytesSent() {
+        return this.payloadBytesSent.get();
+    }
+
+    @Override
+    public long getWireBytesSent() {
+        return this.wireBytesSent.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        final long wireBytes = this.wireBytesSent.get();
+        return wireBytes == 0 ? 1.0 : (double) this.payloadBytesSent.get() / wireBytes;
+    }
+
+    private static void closeQuietly(final SocketChannel channel, final Runnable closeListener) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close " + channel, e);
+        }
+        if (closeListener != null) {
+            closeListener.run();
+        }
+    }
+
+    /**
+     * Задача вместе с каналом, который нужно закрыть, если задача не будет выполнена, и слушателем его закрытия
+     */
+    private static final class ChannelTask implements Runnable {
+
+        private final Runnable task;
+
+        private final SocketChannel channel;
+
+        private final Runnable closeListener;
+
+        private ChannelTask(final Runnable task, final SocketChannel channel, final Runnable closeListener) {
+            this.task = task;
+            this.channel = channel;
+            this.closeListener = closeListener;
+        }
+
+        @Override
+        public void run() {
+            this.task.run();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ru.pmapper.tunnel;
+
+/**
+ * Метрики туннельных соединений маршрутизатора, доступные через JMX
+ */
+public interface TunnelMultiplexerMXBean {
+
+    int getTunnelConnections();
+
+    int getActiveStreams();
+
+    long getOpenedStreams();
+
+    //Число байтов данных потоков, отправленных другой стороне, до сжатия
+    long getPayloadBytesSent();
+
+    //Число байтов кадров данных, отправленных другой стороне, вместе с заголовками
+    long getWireBytesSent();
+
+    double getCompressionRatio();
+}
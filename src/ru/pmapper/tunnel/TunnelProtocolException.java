@@ -0,0 +1,15 @@
+package ru.pmapper.tunnel;
+
+import java.io.IOException;
+
+/**
+ * Нарушение протокола туннеля другим маршрутизатором. Туннельное соединение с такими данными закрывается
+ */
+public class TunnelProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TunnelProtocolException(final String message) {
+        super(message);
+    }
+}
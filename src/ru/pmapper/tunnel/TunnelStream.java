@@ -0,0 +1,81 @@
+package ru.pmapper.tunnel;
+
+import ru.pmapper.traffic.TrafficCounter;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Поток туннеля: одно клиентское соединение, передаваемое через туннельное соединение. На входной стороне
+ * туннеля локальный канал - соединение с клиентом, на выходной - соединение с удаленным сервером.
+ *
+ * Состоянием потока управляет только его туннельное соединение в потоке мультиплексора.
+ */
+final class TunnelStream {
+
+    //Начальное окно потока: сколько байтов можно отправить без подтверждения
+    static final int INITIAL_WINDOW = 256 * 1024;
+
+    //Подтверждение отправляется, когда в локальный канал записано столько байтов
+    static final int WINDOW_UPDATE_THRESHOLD = INITIAL_WINDOW / 2;
+
+    final int id;
+
+    final TunnelConnection connection;
+
+    SocketChannel channel;
+
+    SelectionKey key;
+
+    //Сжимать данные, отправляемые другой стороне
+    boolean compressOutgoing;
+
+    //Сколько байтов еще можно отправить другой стороне
+    int sendWindow = INITIAL_WINDOW;
+
+    //Сколько полученных байтов еще не подтверждено другой стороне
+    int unacknowledged;
+
+    //Сколько байтов записано в локальный канал с момента последнего подтверждения
+    int consumed;
+
+    //Полученные от другой стороны данные, ожидающие записи в локальный канал
+    final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+
+    //Соединение с удаленным сервером еще устанавливается
+    boolean connecting;
+
+    //Адрес удаленного сервера еще разрешается, соединение не начато
+    boolean resolving;
+
+    long connectDeadline;
+
+    //Локальный канал закрыт на чтение, другой стороне отправлен CLOSE
+    boolean localEof;
+
+    //Другая сторона прислала CLOSE
+    boolean remoteEof;
+
+    //Локальный канал закрыт на запись
+    boolean outputShutdown;
+
+    //Вызывается после закрытия локального канала, может быть null
+    Runnable closeListener;
+
+    //Счетчик байтов клиента, null - трафик потока не учитывается (выходная сторона туннеля)
+    TrafficCounter trafficCounter;
+
+    TunnelStream(final int id, final TunnelConnection connection) {
+        this.id = id;
+        this.connection = connection;
+    }
+
+    /**
+     * @return true, если обмен данными закончен в обе стороны
+     */
+    boolean isFinished() {
+        return this.localEof && this.outputShutdown;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.pmapper.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Регистрация объектов с метриками маршрутизатора в JMX, чтобы их можно было смотреть во время работы
+ * (jconsole, VisualVM и т.п.)
+ */
+public final class JmxSupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmxSupport.class);
+
+    //Домен имен JMX объектов маршрутизатора
+    private static final String DOMAIN = "ru.pmapper";
+
+    private JmxSupport() {}
+
+    /**
+     * Регистрирует объект в платформенном MBean сервере. Ошибка регистрации не мешает работе маршрутизатора
+     * @param mbean объект, реализующий MBean или MXBean интерфейс
+     * @param type тип объекта (часть имени JMX объекта)
+     * @param name имя объекта, например имя канала маршрутизации
+     */
+    public static void register(final Object mbean, final String type, final String name) {
+
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register " + type + " " + name + " in JMX", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.pmapper.util;
+
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Адреса и каналы сокетов, которые могут быть как TCP, так и Unix domain. Для каналов Unix domain сокетов
+ * не поддерживаются socket() и опции TCP, поэтому код, работающий с любыми каналами, обращается к ним через этот класс
+ */
+public final class SocketEndpoints {
+
+    private SocketEndpoints() {}
+
+    /**
+     * Возвращает адрес удаленного сервера канала. Разрешение имени хоста блокирует поток, но JVM кэширует результаты
+     * @param proxyProperty настройка канала маршрутизации
+     * @return путь к Unix domain сокету или разрешенный адрес хоста и порт
+     * @throws IOException если имя хоста не разрешается
+     */
+    public static SocketAddress getRemoteAddress(final ProxyProperty proxyProperty) throws IOException {
+
+        if (proxyProperty.isRemoteUnixSocket()) {
+            return UnixDomainSocketAddress.of(proxyProperty.getRemotePath());
+        }
+
+        final InetSocketAddress address
+                = new InetSocketAddress(proxyProperty.getRemoteHost(), proxyProperty.getRemotePort());
+        if (address.isUnresolved()) {
+            throw new IOException("Cannot resolve " + proxyProperty.getRemoteHost());
+        }
+        return address;
+    }
+
+    /**
+     * Открывает канал сокета для соединения с адресом
+     * @param address адрес, с которым будет устанавливаться соединение
+     * @return канал сокета семейства, подходящего адресу
+     * @throws IOException
+     */
+    public static SocketChannel openChannel(final SocketAddress address) throws IOException {
+        return address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+    }
+
+    /**
+     * Открывает канал сокета для соединения с удаленным сервером канала, не разрешая имя хоста
+     * @param proxyProperty настройка канала маршрутизации
+     * @return канал сокета семейства, подходящего адресу удаленного сервера
+     * @throws IOException
+     */
+    public static SocketChannel openRemoteChannel(final ProxyProperty proxyProperty) throws IOException {
+        return proxyProperty.isRemoteUnixSocket()
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+    }
+
+    /**
+     * Открывает канал серверного сокета для адреса, который будет слушать канал маршрутизации
+     * @param proxyProperty настройка канала маршрутизации
+     * @return еще не привязанный канал серверного сокета
+     * @throws IOException
+     */
+    public static ServerSocketChannel openServerChannel(final ProxyProperty proxyProperty) throws IOException {
+        return proxyProperty.isLocalUnixSocket()
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+    }
+
+    /**
+     * @return true, если канал - Unix domain сокет
+     */
+    public static boolean isUnixDomain(final SocketChannel channel) {
+        return !channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY);
+    }
+
+    /**
+     * Включает TCP_NODELAY и SO_KEEPALIVE для TCP канала. Для Unix domain сокетов эти опции не нужны
+     * @param channel канал сокета
+     * @throws IOException
+     */
+    public static void configureLongLived(final SocketChannel channel) throws IOException {
+        if (!isUnixDomain(channel)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        }
+    }
+
+    /**
+     * Описание соединения для журнала
+     * @param channel канал сокета
+     * @return для TCP - описание сокета в привычном виде, для Unix domain сокета - описание канала
+     */
+    public static String describe(final SocketChannel channel) {
+        return isUnixDomain(channel) ? channel.toString() : channel.socket().toString();
+    }
+}
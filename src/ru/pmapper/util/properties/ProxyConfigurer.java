@@ -25,9 +25,18 @@ public class ProxyConfigurer {
     //Набольший номер порта
     private static final int HI_PORT_NUMBER = 65535;
 
+    //Наибольший таймаут соединения, мс
+    private static final int HI_CONNECT_TIMEOUT = 600000;
+
+    //Наибольшее число туннельных соединений канала
+    private static final int HI_TUNNEL_CONNECTIONS = 64;
+
+    //Наибольшая длина пути к Unix domain сокету (sun_path в Linux без завершающего нуля)
+    private static final int HI_SOCKET_PATH_LENGTH = 107;
+
     //Общий паттерн для строки а файле настроек
     private static final Pattern PROPERTY_REGEX_PATTERN
-            = Pattern.compile("^\\s*([a-zA-z]+)\\.(localPort|remotePort|remoteHost)\\s*=\\s*([0-9a-zA-Z\\.-]*)\\s*$");
+            = Pattern.compile("^\\s*([a-zA-z]+)\\.(localPort|remotePort|remoteHost|localPath|remotePath|connectTimeout|mode|cacheSize|compression|tunnelConnections)\\s*=\\s*([0-9a-zA-Z\\./_-]*)\\s*$");
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProxyConfigurer.class);
 
@@ -125,7 +134,9 @@ public class ProxyConfigurer {
         if (proxyProperties.containsKey(groupKey)) {
             return proxyProperties.get(groupKey);
         } else {
-            return new ProxyProperty();
+            final ProxyProperty proxyProperty = new ProxyProperty();
+            proxyProperty.setName(groupKey);
+            return proxyProperty;
         }
     }
 
@@ -140,7 +151,8 @@ public class ProxyConfigurer {
 
     /**
      * Заполняет объект класса PropxyProperty информацией полученной после обработки строки файла настроек
-     * @param propertyKey наименование настройки (localPort, remotePort, remoteHost)
+     * @param propertyKey наименование настройки (localPort, remotePort, remoteHost, localPath, remotePath,
+     *                    connectTimeout, mode, cacheSize, compression, tunnelConnections)
      * @param value значение настройки
      * @param proxyProperty объект, в который нужно записать значение настройки
      */
@@ -153,6 +165,20 @@ public class ProxyConfigurer {
             processRemotePort(value, proxyProperty);
         } else if (propertyKey.equals("remoteHost")) {
             processRemoteHost(value, proxyProperty);
+        } else if (propertyKey.equals("localPath")) {
+            processLocalPath(value, proxyProperty);
+        } else if (propertyKey.equals("remotePath")) {
+            processRemotePath(value, proxyProperty);
+        } else if (propertyKey.equals("connectTimeout")) {
+            processConnectTimeout(value, proxyProperty);
+        } else if (propertyKey.equals("mode")) {
+            processMode(value, proxyProperty);
+        } else if (propertyKey.equals("cacheSize")) {
+            processCacheSize(value, proxyProperty);
+        } else if (propertyKey.equals("compression")) {
+            processCompression(value, proxyProperty);
+        } else if (propertyKey.equals("tunnelConnections")) {
+            processTunnelConnections(value, proxyProperty);
         }
     }
 
@@ -199,6 +225,109 @@ public class ProxyConfigurer {
         }
     }
 
+    /**
+     * Заполняет поле пути к локальному Unix domain сокету в объекте класса PropxyProperty
+     * @param value значение настройки
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processLocalPath(final String value, final ProxyProperty proxyProperty) {
+
+        if (isValidSocketPath(value)) {
+            proxyProperty.setLocalPath(value);
+        } else {
+            throw new IllegalArgumentException("Socket path is invalid or longer than " + HI_SOCKET_PATH_LENGTH);
+        }
+    }
+
+    /**
+     * Заполняет поле пути к Unix domain сокету удаленного сервера в объекте класса PropxyProperty
+     * @param value значение настройки
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processRemotePath(final String value, final ProxyProperty proxyProperty) {
+
+        if (isValidSocketPath(value)) {
+            proxyProperty.setRemotePath(value);
+        } else {
+            throw new IllegalArgumentException("Socket path is invalid or longer than " + HI_SOCKET_PATH_LENGTH);
+        }
+    }
+
+    /**
+     * Заполняет поле таймаута соединения с удаленным сервером в объекте класса PropxyProperty
+     * @param value значение настройки в миллисекундах
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processConnectTimeout(final String value, final ProxyProperty proxyProperty) {
+
+        if (isValidConnectTimeout(value)) {
+            proxyProperty.setConnectTimeout(Integer.parseInt(value));
+        } else {
+            throw new IllegalArgumentException("Connect timeout must be a positive integer in range <= "
+                    + HI_CONNECT_TIMEOUT + " milliseconds");
+        }
+    }
+
+    /**
+     * Заполняет поле режима работы канала в объекте класса PropxyProperty
+     * @param value значение настройки (tcp, http, tunnel, tunnel-exit)
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processMode(final String value, final ProxyProperty proxyProperty) {
+
+        try {
+            proxyProperty.setMode(ProxyMode.fromPropertyValue(value));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Mode must be one of: tcp, http, tunnel, tunnel-exit");
+        }
+    }
+
+    /**
+     * Заполняет поле размера кэша HTTP ответов в объекте класса PropxyProperty
+     * @param value значение настройки в байтах
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processCacheSize(final String value, final ProxyProperty proxyProperty) {
+
+        if (value.matches("^\\d{1,15}$")) {
+            proxyProperty.setCacheSize(Long.parseLong(value));
+        } else {
+            throw new IllegalArgumentException("Cache size must be a non-negative number of bytes");
+        }
+    }
+
+    /**
+     * Заполняет поле сжатия данных туннеля в объекте класса PropxyProperty
+     * @param value значение настройки (lz4, none)
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processCompression(final String value, final ProxyProperty proxyProperty) {
+
+        if (value.equalsIgnoreCase("lz4")) {
+            proxyProperty.setCompression(true);
+        } else if (value.equalsIgnoreCase("none")) {
+            proxyProperty.setCompression(false);
+        } else {
+            throw new IllegalArgumentException("Compression must be one of: lz4, none");
+        }
+    }
+
+    /**
+     * Заполняет поле числа туннельных соединений в объекте класса PropxyProperty
+     * @param value значение настройки
+     * @param proxyProperty объект, в который нужно записать значение настройки
+     */
+    private void processTunnelConnections(final String value, final ProxyProperty proxyProperty) {
+
+        if (value.matches("^\\d{1,2}$") && Integer.parseInt(value) > 0
+                && Integer.parseInt(value) <= HI_TUNNEL_CONNECTIONS) {
+            proxyProperty.setTunnelConnections(Integer.parseInt(value));
+        } else {
+            throw new IllegalArgumentException("Number of tunnel connections must be an integer in range 1.."
+                    + HI_TUNNEL_CONNECTIONS);
+        }
+    }
+
     /**
      * Проверка на валидность значения порта
      * @param value строковое значение порта
@@ -213,6 +342,29 @@ public class ProxyConfigurer {
         return false;
     }
 
+    /**
+     * Проверка на валидность значения таймаута соединения
+     * @param value строковое значение таймаута в миллисекундах
+     * @return true - валидация пройдена, false - валидация не пройдена
+     */
+    private static boolean isValidConnectTimeout(final String value) {
+
+        if (value.matches("^\\d{1,6}$")) {
+            final int intValue = Integer.parseInt(value);
+            return intValue > 0 && intValue <= HI_CONNECT_TIMEOUT;
+        }
+        return false;
+    }
+
+    /**
+     * Проверка на валидность пути к Unix domain сокету. Путь может быть абсолютным или относительным
+     * @param value значение пути
+     * @return true - валидация пройдена, false - валидация не пройдена
+     */
+    private static boolean isValidSocketPath(final String value) {
+        return value.length() <= HI_SOCKET_PATH_LENGTH && value.matches("^/?[0-9a-zA-Z\\._-]+(/[0-9a-zA-Z\\._-]+)*$");
+    }
+
     /**
      * Проверка на валидность значения хост. Хост может быть как IP адресом, так и валидным доменным именем
      * @param value значение хоста
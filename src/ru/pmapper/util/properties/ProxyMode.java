@@ -0,0 +1,31 @@
+package ru.pmapper.util.properties;
+
+/**
+ * Режим работы канала маршрутизации
+ */
+public enum ProxyMode {
+
+    //Прозрачная передача байтов TCP соединения
+    TCP,
+
+    //Передача HTTP/1.1 с разбором границ сообщений и повторным использованием соединений с удаленным сервером
+    HTTP,
+
+    //Входная сторона туннеля: клиенты передаются потоками через постоянные соединения с другим маршрутизатором,
+    //адрес которого задан как удаленный сервер канала
+    TUNNEL,
+
+    //Выходная сторона туннеля: локальный порт принимает туннельные соединения другого маршрутизатора,
+    //потоки передаются удаленному серверу канала
+    TUNNEL_EXIT;
+
+    /**
+     * Возвращает режим по его имени из файла настроек (tcp, http, tunnel, tunnel-exit)
+     * @param value имя режима без учета регистра
+     * @return режим
+     * @throws IllegalArgumentException если режима с таким именем нет
+     */
+    public static ProxyMode fromPropertyValue(final String value) {
+        return valueOf(value.toUpperCase().replace('-', '_'));
+    }
+}
@@ -2,18 +2,47 @@ package ru.pmapper.util.properties;
 
 /**
  * Настройка для прокси канала в которой содержится локальный порт, который будет слушать серверный канал,
- * а также адрес с которым будет проходить обмен данными
+ * а также адрес с которым будет проходить обмен данными. Вместо локального порта и вместо адреса удаленного
+ * сервера можно задать путь к Unix domain сокету
  * User: johngray
  * Date: 22.08.2012
  */
 public class ProxyProperty {
 
+    //Таймаут соединения с удаленным сервером по-умолчанию
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    //Число туннельных соединений с другим маршрутизатором по-умолчанию
+    public static final int DEFAULT_TUNNEL_CONNECTIONS = 2;
+
+    //Имя группы настроек канала (напр. web)
+    private String name;
+
     private int localPort;
 
     private int remotePort;
 
     private String remoteHost;
 
+    //Путь к Unix domain сокету, который будет слушать серверный канал, null - слушать localPort
+    private String localPath;
+
+    //Путь к Unix domain сокету удаленного сервера, null - соединяться с remoteHost:remotePort
+    private String remotePath;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    private ProxyMode mode = ProxyMode.TCP;
+
+    //Наибольший размер кэша HTTP ответов в байтах, 0 - кэширование выключено
+    private long cacheSize;
+
+    //Сжимать данные, передаваемые через туннель
+    private boolean compression;
+
+    //Наибольшее число туннельных соединений канала в режиме tunnel
+    private int tunnelConnections = DEFAULT_TUNNEL_CONNECTIONS;
+
     public ProxyProperty() {
     }
 
@@ -23,6 +52,14 @@ public class ProxyProperty {
         this.remoteHost = remoteHost;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
     public int getLocalPort() {
         return localPort;
     }
@@ -47,12 +84,104 @@ public class ProxyProperty {
         this.remoteHost = remoteHost;
     }
 
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public void setLocalPath(String localPath) {
+        this.localPath = localPath;
+    }
+
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    public void setRemotePath(String remotePath) {
+        this.remotePath = remotePath;
+    }
+
+    /**
+     * @return true, если серверный канал слушает Unix domain сокет
+     */
+    public boolean isLocalUnixSocket() {
+        return localPath != null;
+    }
+
+    /**
+     * @return true, если удаленный сервер доступен через Unix domain сокет
+     */
+    public boolean isRemoteUnixSocket() {
+        return remotePath != null;
+    }
+
+    /**
+     * @return адрес, который слушает серверный канал, для журнала: порт или путь к сокету
+     */
+    public String getLocalEndpoint() {
+        return isLocalUnixSocket() ? localPath : String.valueOf(localPort);
+    }
+
+    /**
+     * @return адрес удаленного сервера для журнала: хост:порт или путь к сокету
+     */
+    public String getRemoteEndpoint() {
+        return isRemoteUnixSocket() ? remotePath : remoteHost + ":" + remotePort;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public ProxyMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ProxyMode mode) {
+        this.mode = mode;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getTunnelConnections() {
+        return tunnelConnections;
+    }
+
+    public void setTunnelConnections(int tunnelConnections) {
+        this.tunnelConnections = tunnelConnections;
+    }
+
     @Override
     public String toString() {
         return "ProxyProperty{" +
-                "localPort=" + localPort +
+                "name='" + name + '\'' +
+                ", localPort=" + localPort +
                 ", remotePort=" + remotePort +
                 ", remoteHost='" + remoteHost + '\'' +
+                ", localPath='" + localPath + '\'' +
+                ", remotePath='" + remotePath + '\'' +
+                ", connectTimeout=" + connectTimeout +
+                ", mode=" + mode +
+                ", cacheSize=" + cacheSize +
+                ", compression=" + compression +
+                ", tunnelConnections=" + tunnelConnections +
                 '}';
     }
 }
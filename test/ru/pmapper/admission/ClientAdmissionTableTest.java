@@ -0,0 +1,244 @@
+package ru.pmapper.admission;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ограничения числа соединений и частоты подключений клиента, ключи адресов IPv4 и IPv6 и поведение
+ * таблицы, когда окно ячеек клиента заполнено
+ */
+public class ClientAdmissionTableTest {
+
+    private static final long NOW = 1000000L;
+
+    @Test
+    public void connectionCountGoesUpAndDown() throws Exception {
+
+        final ClientAdmissionTable table = new ClientAdmissionTable(64, 2, 0);
+        final InetAddress client = InetAddress.getByName("192.0.2.1");
+
+        final int slot = table.tryAdmit(client);
+        assertTrue(slot >= 0);
+        assertEquals(slot, table.tryAdmit(client));
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(client));
+        assertEquals(1L, table.getRejectedByConnections());
+
+        table.release(slot);
+        assertEquals(slot, table.tryAdmit(client));
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(client));
+
+        table.release(slot);
+        table.release(slot);
+        assertEquals(slot, table.tryAdmit(client));
+        assertEquals(slot, table.tryAdmit(client));
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(client));
+
+        //Отклоненные и неучтенные подключения не занимают ячейку
+        table.release(ClientAdmissionTable.REJECTED);
+        table.release(ClientAdmissionTable.NOT_TRACKED);
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(client));
+
+        assertEquals(5L, table.getAdmitted());
+        assertEquals(1, table.getTrackedClients());
+    }
+
+    @Test
+    public void tokensRefillInThousandthsOfToken() {
+
+        //5 подключений в секунду: одна тысячная токена за 200 микросекунд, целый токен за 200 мс
+        final ClientAdmissionTable table = new ClientAdmissionTable(64, 0, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(table.tryAdmit(0L, 1L, NOW) >= 0);
+        }
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW));
+
+        //Пополнение за 199 мс дает 995 тысячных токена и сохраняется, хотя подключение отклонено
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW + 199L));
+        assertTrue(table.tryAdmit(0L, 1L, NOW + 200L) >= 0);
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW + 200L));
+
+        //Доли токена накапливаются между отклоненными попытками
+        for (long millis = NOW + 210L; millis < NOW + 400L; millis += 10L) {
+            assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, millis));
+        }
+        assertTrue(table.tryAdmit(0L, 1L, NOW + 400L) >= 0);
+
+        //После долгого простоя запас ограничен секундой подключений
+        for (int i = 0; i < 5; i++) {
+            assertTrue(table.tryAdmit(0L, 1L, NOW + 60000L) >= 0);
+        }
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW + 60000L));
+
+        //Время, отступившее назад, не пополняет запас
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW));
+        assertEquals(0L, table.getRejectedByConnections());
+        assertEquals(24L, table.getRejectedByRate());
+    }
+
+    @Test
+    public void rateLimitIsPerClient() {
+
+        final ClientAdmissionTable table = new ClientAdmissionTable(64, 0, 1);
+
+        assertTrue(table.tryAdmit(0L, 1L, NOW) >= 0);
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 1L, NOW));
+        assertTrue(table.tryAdmit(0L, 2L, NOW) >= 0);
+        assertTrue(table.tryAdmit(1L, 1L, NOW) >= 0);
+    }
+
+    @Test
+    public void ipv4AndIpv6AddressesAreDistinctClients() throws Exception {
+
+        //Каждый адрес может держать одно соединение: совпадение ключей двух адресов привело бы к отказу
+        final ClientAdmissionTable table = new ClientAdmissionTable(64, 1, 0);
+
+        final String[] addresses = {
+            "192.0.2.1",
+            "192.0.2.2",
+            "2.1.0.192",
+            //IPv4-compatible IPv6 адрес отличается от IPv4 адреса с теми же младшими байтами
+            "::192.0.2.1",
+            "2001:db8::1",
+            "2001:db8::2",
+            //Те же половины адреса в обратном порядке
+            "0:0:0:1:2001:db8::",
+            "::1",
+        };
+
+        for (final String address : addresses) {
+            assertTrue(address, table.tryAdmit(InetAddress.getByName(address)) >= 0);
+        }
+        assertEquals(addresses.length, table.getTrackedClients());
+
+        for (final String address : addresses) {
+            assertEquals(address, ClientAdmissionTable.REJECTED, table.tryAdmit(InetAddress.getByName(address)));
+        }
+    }
+
+    @Test
+    public void ipv4MappedIpv6AddressIsSameClientAsIpv4() throws Exception {
+
+        final ClientAdmissionTable table = new ClientAdmissionTable(64, 1, 0);
+
+        final int slot = table.tryAdmit(InetAddress.getByName("192.0.2.1"));
+        assertTrue(slot >= 0);
+
+        final byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        mapped[12] = (byte) 192;
+        mapped[14] = 2;
+        mapped[15] = 1;
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(InetAddress.getByAddress(mapped)));
+
+        //Тот же ключ, что строит таблица для IPv4 адреса
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(0L, 0x0000FFFFC0000201L, NOW));
+        assertEquals(1, table.getTrackedClients());
+    }
+
+    @Test
+    public void newClientBypassesLimitsWhenWindowHoldsOpenConnections() {
+
+        final ClientAdmissionTable table = new ClientAdmissionTable(16, 1, 1);
+        final long[] keys = fill(table);
+        final long bypasses = table.getWindowFullBypasses();
+
+        //В любом окне все клиенты держат соединения: новый клиент пропускается без обоих ограничений
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ClientAdmissionTable.NOT_TRACKED, table.tryAdmit(2L, 0L, NOW));
+        }
+        assertEquals(bypasses + 3L, table.getWindowFullBypasses());
+        assertEquals(table.getCapacity(), table.getTrackedClients());
+        assertEquals(0L, table.getEvictions());
+
+        //Известные клиенты по-прежнему ограничены
+        assertEquals(ClientAdmissionTable.REJECTED, table.tryAdmit(1L, keys[0], NOW));
+    }
+
+    @Test
+    public void clientWithoutConnectionsIsEvictedFromWindow() {
+
+        final ClientAdmissionTable table = new ClientAdmissionTable(16, 0, 0);
+        final long[] keys = fill(table);
+        final long bypasses = table.getWindowFullBypasses();
+
+        //Соединение закрывает один клиент: новый клиент может занять только его ячейку и только если она в его окне
+        final int released = 3;
+        table.release(released);
+
+        long key = 0L;
+        int slot;
+        while ((slot = table.tryAdmit(2L, key, NOW + 1L)) == ClientAdmissionTable.NOT_TRACKED) {
+            key++;
+        }
+        assertEquals(released, slot);
+        assertEquals(1L, table.getEvictions());
+        assertEquals(bypasses + key, table.getWindowFullBypasses());
+        assertEquals(table.getCapacity(), table.getTrackedClients());
+
+        //Вытесненный клиент снова новый, а места для него нет
+        assertEquals(ClientAdmissionTable.NOT_TRACKED, table.tryAdmit(1L, keys[released], NOW + 2L));
+    }
+
+    @Test
+    public void leastRecentlySeenClientIsEvicted() {
+
+        final int oldest = 5;
+        int oldestEvicted = 0;
+
+        //Окно нового клиента зависит от случайной затравки хэша, поэтому опыт повторяется на разных таблицах
+        for (int round = 0; round < 32; round++) {
+
+            final ClientAdmissionTable table = new ClientAdmissionTable(16, 0, 0);
+            final int capacity = table.getCapacity();
+            final long[] keys = fill(table);
+
+            //Все клиенты закрыли соединения, дольше всех не подключался клиент ячейки oldest
+            for (int slot = 0; slot < capacity; slot++) {
+                table.release(slot);
+                if (slot != oldest) {
+                    assertEquals(slot, table.tryAdmit(1L, keys[slot], NOW + 10L));
+                    table.release(slot);
+                }
+            }
+
+            //Остальные клиенты подключались одновременно, из них вытесняется первый в окне. Поэтому если
+            //вытеснен не oldest, ячейка oldest не входит в окно, начинающееся с вытесненной
+            final int evicted = table.tryAdmit(2L, 0L, NOW + 20L);
+            assertTrue(evicted >= 0);
+            if (evicted == oldest) {
+                oldestEvicted++;
+            } else {
+                assertTrue("evicted " + evicted, ((oldest - evicted) & (capacity - 1)) >= 8);
+            }
+            assertEquals(1L, table.getEvictions());
+        }
+        assertTrue(oldestEvicted > 0);
+    }
+
+    /**
+     * Заполняет всю таблицу клиентами (1, key) с одним открытым соединением у каждого
+     * @return младшая половина адреса клиента по номеру ячейки
+     */
+    private static long[] fill(final ClientAdmissionTable table) {
+
+        final long[] keys = new long[table.getCapacity()];
+        long key = 0L;
+
+        //Клиенты, окна которых уже заполнены, пропускаются без учета, поэтому адресов нужно больше, чем ячеек
+        while (table.getTrackedClients() < keys.length) {
+            final int slot = table.tryAdmit(1L, key, NOW);
+            if (slot >= 0) {
+                keys[slot] = key;
+            }
+            key++;
+            assertTrue("Table cannot be filled", key < 100000L);
+        }
+        return keys;
+    }
+}
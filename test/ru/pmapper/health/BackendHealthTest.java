@@ -0,0 +1,227 @@
+package ru.pmapper.health;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Переходы автоматического выключателя и выдача пробного соединения в полуоткрытом состоянии
+ */
+public class BackendHealthTest {
+
+    private static final long OPEN_MILLIS = 100L;
+
+    //Время ожидания, за которое разомкнутое состояние гарантированно истекает
+    private static final long EXPIRE_MILLIS = OPEN_MILLIS + 50L;
+
+    private static final int FAILURE_THRESHOLD = 5;
+
+    @Test
+    public void closedBreakerPermitsEveryConnection() {
+
+        final BackendHealth health = new BackendHealth("backend", OPEN_MILLIS);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(health.tryAcquirePermission());
+        }
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+        assertTrue(health.isHealthy());
+    }
+
+    @Test
+    public void failuresOpenBreaker() {
+
+        final BackendHealth health = new BackendHealth("backend", OPEN_MILLIS);
+
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            health.onFailure();
+        }
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+
+        health.onFailure();
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertFalse(health.tryAcquirePermission());
+    }
+
+    @Test
+    public void gracefulCloseResetsFailureCount() {
+
+        final BackendHealth health = new BackendHealth("backend", OPEN_MILLIS);
+
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            health.onFailure();
+        }
+        health.onGracefulClose();
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            health.onFailure();
+        }
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+    }
+
+    @Test
+    public void probeSuccessDoesNotResetFailureCountWhileClosed() {
+
+        final BackendHealth health = new BackendHealth("backend", OPEN_MILLIS);
+
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            health.onFailure();
+            health.onProbeSuccess();
+        }
+        health.onFailure();
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void openBreakerPermitsOneTrialAfterOpenPeriod() throws Exception {
+
+        final BackendHealth health = openBreaker();
+
+        Thread.sleep(EXPIRE_MILLIS);
+
+        assertTrue(health.tryAcquirePermission());
+        assertEquals(BackendHealth.State.HALF_OPEN, health.getState());
+        assertFalse(health.tryAcquirePermission());
+        assertFalse(health.tryAcquirePermission());
+    }
+
+    @Test
+    public void successfulTrialClosesBreaker() throws Exception {
+
+        final BackendHealth health = openBreaker();
+        Thread.sleep(EXPIRE_MILLIS);
+        assertTrue(health.tryAcquirePermission());
+
+        health.onConnected();
+
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+        assertTrue(health.tryAcquirePermission());
+        assertTrue(health.tryAcquirePermission());
+
+        //После восстановления для размыкания снова нужен полный порог неудач
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            health.onFailure();
+        }
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+    }
+
+    @Test
+    public void failedTrialReopensBreaker() throws Exception {
+
+        final BackendHealth health = openBreaker();
+        Thread.sleep(EXPIRE_MILLIS);
+        assertTrue(health.tryAcquirePermission());
+
+        health.onFailure();
+
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertFalse(health.tryAcquirePermission());
+
+        //Новое разомкнутое состояние снова длится полный срок
+        Thread.sleep(EXPIRE_MILLIS);
+        assertTrue(health.tryAcquirePermission());
+        assertFalse(health.tryAcquirePermission());
+    }
+
+    @Test
+    public void probeSuccessPermitsTrialWithoutWaiting() {
+
+        final BackendHealth health = openBreaker();
+        assertFalse(health.tryAcquirePermission());
+
+        health.onProbeSuccess();
+
+        assertEquals(BackendHealth.State.HALF_OPEN, health.getState());
+        assertTrue(health.tryAcquirePermission());
+        assertFalse(health.tryAcquirePermission());
+    }
+
+    @Test
+    public void probeFailureInHalfOpenReopensBreaker() {
+
+        final BackendHealth health = openBreaker();
+        health.onProbeSuccess();
+
+        health.onProbeFailure();
+
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertFalse(health.tryAcquirePermission());
+    }
+
+    @Test
+    public void unansweredTrialIsReissuedOnce() throws Exception {
+
+        final BackendHealth health = openBreaker();
+        health.onProbeSuccess();
+        assertTrue(health.tryAcquirePermission());
+
+        Thread.sleep(EXPIRE_MILLIS);
+
+        assertTrue(health.tryAcquirePermission());
+        assertFalse(health.tryAcquirePermission());
+        assertEquals(BackendHealth.State.HALF_OPEN, health.getState());
+    }
+
+    @Test
+    public void concurrentCallersGetSingleTrial() throws Exception {
+
+        for (int round = 0; round < 20; round++) {
+
+            //Срок размыкания больше времени гонки, поэтому повторная выдача пробного соединения невозможна
+            final BackendHealth health = new BackendHealth("backend", 2000L);
+            for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+                health.onFailure();
+            }
+            assertEquals(BackendHealth.State.OPEN, health.getState());
+
+            final AtomicInteger permits = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Thread> threads = new ArrayList<Thread>();
+
+            for (int t = 0; t < 8; t++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < 1000; i++) {
+                            if (health.tryAcquirePermission()) {
+                                permits.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (final Thread thread : threads) {
+                thread.start();
+            }
+
+            health.onProbeSuccess();
+            start.countDown();
+
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, permits.get());
+        }
+    }
+
+    private static BackendHealth openBreaker() {
+
+        final BackendHealth health = new BackendHealth("backend", OPEN_MILLIS);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            health.onFailure();
+        }
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        return health;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.pmapper.http;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Выбор запросов, которые можно обслужить из кэша, и срок свежести ответов
+ */
+public class HttpCachePolicyTest {
+
+    @Test
+    public void plainGetIsCacheable() throws Exception {
+        assertEquals("example.org /a", HttpCachePolicy.getCacheKey(request("GET /a HTTP/1.1\r\nHost: Example.org\r\n")));
+    }
+
+    @Test
+    public void requestsThatMustReachServerAreNotCacheable() throws Exception {
+        assertNull(HttpCachePolicy.getCacheKey(request("POST /a HTTP/1.1\r\nHost: x\r\n")));
+        assertNull(HttpCachePolicy.getCacheKey(request("GET /a HTTP/1.1\r\nHost: x\r\nAuthorization: t\r\n")));
+        assertNull(HttpCachePolicy.getCacheKey(request("GET /a HTTP/1.1\r\nHost: x\r\nCache-Control: no-cache\r\n")));
+        assertNull(HttpCachePolicy.getCacheKey(request("GET /a HTTP/1.1\r\nHost: x\r\nPragma: no-cache\r\n")));
+    }
+
+    @Test
+    public void requestMaxAgeZeroIsRevalidated() throws Exception {
+        assertNull(HttpCachePolicy.getCacheKey(request("GET /a HTTP/1.1\r\nHost: x\r\nCache-Control: max-age=0\r\n")));
+        assertNull(HttpCachePolicy.getCacheKey(
+                request("GET /a HTTP/1.1\r\nHost: x\r\nCache-Control: no-transform, MAX-AGE=0\r\n")));
+        assertEquals("x /a", HttpCachePolicy.getCacheKey(
+                request("GET /a HTTP/1.1\r\nHost: x\r\nCache-Control: max-age=60\r\n")));
+    }
+
+    @Test
+    public void freshnessLifetimeAccountsForAge() throws Exception {
+        assertEquals(60000L, HttpCachePolicy.getFreshnessLifetimeMillis(
+                response("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n")));
+        assertEquals(50000L, HttpCachePolicy.getFreshnessLifetimeMillis(
+                response("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 10\r\n")));
+        assertEquals(0L, HttpCachePolicy.getFreshnessLifetimeMillis(
+                response("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 60\r\n")));
+        assertEquals(0L, HttpCachePolicy.getFreshnessLifetimeMillis(
+                response("HTTP/1.1 200 OK\r\nCache-Control: private, max-age=60\r\n")));
+    }
+
+    private static HttpMessageFramer request(final String headers) throws HttpFramingException {
+        return parse(new HttpMessageFramer(true, true), headers);
+    }
+
+    private static HttpMessageFramer response(final String headers) throws HttpFramingException {
+
+        final HttpMessageFramer framer = new HttpMessageFramer(false, true);
+        framer.setRequestMethod("GET");
+        return parse(framer, headers + "Content-Length: 0");
+    }
+
+    private static HttpMessageFramer parse(final HttpMessageFramer framer, final String headers)
+            throws HttpFramingException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap((headers + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        framer.advance(buffer, 0, buffer.limit());
+        return framer;
+    }
+}
@@ -0,0 +1,245 @@
+package ru.pmapper.http;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Границы HTTP сообщений и правила, по которым отвергаются запросы с неоднозначной длиной тела
+ */
+public class HttpMessageFramerTest {
+
+    @Test
+    public void requestWithContentLength() throws Exception {
+
+        final String message = "POST /a HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello";
+        final HttpMessageFramer framer = new HttpMessageFramer(true);
+
+        //Следующий запрос в том же буфере не разбирается
+        assertEquals(message.length(), parse(framer, message + "GET / HTTP/1.1\r\n", Integer.MAX_VALUE));
+        assertTrue(framer.isMessageComplete());
+        assertEquals("POST", framer.getMethod());
+        assertEquals("/a", framer.getRequestTarget());
+        assertTrue(framer.isKeepAlive());
+    }
+
+    @Test
+    public void chunkedRequestSplitAcrossBuffers() throws Exception {
+
+        final String message = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\nA\r\n0123456789\r\n0\r\nTrailer: t\r\n\r\n";
+
+        //Каждый байт приходит отдельно: состояние разбора, в том числе CR перед LF, сохраняется между вызовами
+        for (final int step : new int[] {1, 2, 3, 7, Integer.MAX_VALUE}) {
+            final HttpMessageFramer framer = new HttpMessageFramer(true);
+            assertEquals(message.length(), parse(framer, message, step));
+            assertTrue("step " + step, framer.isMessageComplete());
+        }
+    }
+
+    @Test
+    public void messageIncompleteUntilLastByte() throws Exception {
+
+        final String message = "POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\nab";
+        final HttpMessageFramer framer = new HttpMessageFramer(true);
+
+        assertEquals(message.length(), parse(framer, message, 1));
+        assertFalse(framer.isMessageComplete());
+        assertTrue(framer.isHeadersComplete());
+    }
+
+    @Test
+    public void sameContentLengthRepeatedIsAccepted() throws Exception {
+        assertAccepted("POST / HTTP/1.1\r\nContent-Length: 2\r\nContent-Length: 2\r\n\r\nab");
+        assertAccepted("POST / HTTP/1.1\r\nContent-Length: 2, 2\r\n\r\nab");
+    }
+
+    @Test
+    public void differingContentLengthIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\nabc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 2, 3\r\n\r\nabc");
+    }
+
+    @Test
+    public void malformedContentLengthIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: +3\r\n\r\nabc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 0x3\r\n\r\nabc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: \r\n\r\n");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 1234567890123456789\r\n\r\n");
+    }
+
+    @Test
+    public void transferEncodingWithContentLengthIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n0\r\n\r\n");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void transferEncodingNotEndingInChunkedIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\nabc");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n0\r\n\r\n");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n0\r\n\r\n");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void transferCodingListEndingInChunkedIsAccepted() throws Exception {
+        assertAccepted("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n0\r\n\r\n");
+        assertAccepted("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void whitespaceBeforeColonIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nContent-Length : 3\r\n\r\nabc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length\t: 3\r\n\r\nabc");
+        //Продолжение заголовка на следующей строке (obs-fold)
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 3\r\n 4\r\n\r\nabc");
+    }
+
+    @Test
+    public void badChunkSizeIsRejected() {
+        assertRejected(chunked("+5\r\nhello\r\n0\r\n\r\n"));
+        assertRejected(chunked("0x5\r\nhello\r\n0\r\n\r\n"));
+        assertRejected(chunked("5g\r\nhello\r\n0\r\n\r\n"));
+        assertRejected(chunked("\r\n"));
+        assertRejected(chunked("1000000000000000\r\n"));
+        //После данных блока должен идти CRLF
+        assertRejected(chunked("5\r\nhelloX\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void overLongLineIsRejected() {
+
+        final char[] value = new char[16384];
+        Arrays.fill(value, 'a');
+
+        assertRejected("GET / HTTP/1.1\r\nX: " + new String(value) + "\r\n\r\n");
+        assertRejected(chunked("5;" + new String(value) + "\r\nhello\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void bareCarriageReturnIsRejected() {
+        assertRejected("POST / HTTP/1.1\r\nX: a\rContent-Length: 10\r\n\r\n0123456789");
+        assertRejected("GET / HTTP/1.1\rHost: x\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nHost: x\r\n\r\r\n");
+        assertRejected(chunked("5\rX\r\nhello\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void bareLineFeedIsRejected() {
+        assertRejected("GET / HTTP/1.1\nHost: x\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nHost: x\n\r\n");
+    }
+
+    @Test
+    public void connectionOptionsAreMatchedAsWholeTokens() throws Exception {
+
+        HttpMessageFramer framer = new HttpMessageFramer(true);
+        parse(framer, "GET / HTTP/1.1\r\nConnection: not-close, upgraded\r\n\r\n", Integer.MAX_VALUE);
+        assertTrue(framer.isKeepAlive());
+        assertFalse(framer.isProtocolSwitch());
+
+        framer = new HttpMessageFramer(true);
+        parse(framer, "GET / HTTP/1.1\r\nConnection: Keep-Alive , CLOSE\r\n\r\n", Integer.MAX_VALUE);
+        assertFalse(framer.isKeepAlive());
+
+        framer = new HttpMessageFramer(true);
+        parse(framer, "GET / HTTP/1.0\r\nConnection: keep-alives\r\n\r\n", Integer.MAX_VALUE);
+        assertFalse(framer.isKeepAlive());
+
+        framer = new HttpMessageFramer(true);
+        parse(framer, "GET / HTTP/1.1\r\nConnection: keep-alive,Upgrade\r\nUpgrade: websocket\r\n\r\n",
+                Integer.MAX_VALUE);
+        assertTrue(framer.isProtocolSwitch());
+    }
+
+    @Test
+    public void responseWithoutLengthIsReadUntilClose() throws Exception {
+
+        final HttpMessageFramer framer = new HttpMessageFramer(false);
+        framer.setRequestMethod("GET");
+
+        parse(framer, "HTTP/1.1 200 OK\r\n\r\nbody", Integer.MAX_VALUE);
+        assertTrue(framer.isReadUntilClose());
+        assertFalse(framer.isKeepAlive());
+    }
+
+    @Test
+    public void responseToHeadHasNoBody() throws Exception {
+
+        final HttpMessageFramer framer = new HttpMessageFramer(false);
+        framer.setRequestMethod("HEAD");
+
+        final String message = "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n";
+        assertEquals(message.length(), parse(framer, message, Integer.MAX_VALUE));
+        assertTrue(framer.isMessageComplete());
+    }
+
+    @Test
+    public void resetPreparesNextMessage() throws Exception {
+
+        final String first = "GET /1 HTTP/1.1\r\n\r\n";
+        final String second = "GET /2 HTTP/1.1\r\n\r\n";
+        final HttpMessageFramer framer = new HttpMessageFramer(true);
+
+        final ByteBuffer buffer = bytes(first + second);
+        final int index = framer.advance(buffer, 0, buffer.limit());
+        assertEquals(first.length(), index);
+
+        framer.reset();
+        assertTrue(framer.isAtMessageStart());
+        assertEquals(buffer.limit(), framer.advance(buffer, index, buffer.limit()));
+        assertEquals("/2", framer.getRequestTarget());
+    }
+
+    /**
+     * Разбирает сообщение, передавая разборщику по step байтов за раз
+     * @return индекс первого неразобранного байта
+     */
+    private static int parse(final HttpMessageFramer framer, final String message, final int step)
+            throws HttpFramingException {
+
+        final ByteBuffer buffer = bytes(message);
+        int index = 0;
+
+        while (index < buffer.limit() && !framer.isMessageComplete()) {
+            index = framer.advance(buffer, index, (int) Math.min(buffer.limit(), (long) index + step));
+        }
+        return index;
+    }
+
+    private static void assertAccepted(final String message) throws HttpFramingException {
+
+        final HttpMessageFramer framer = new HttpMessageFramer(true);
+        assertEquals(message.length(), parse(framer, message, Integer.MAX_VALUE));
+        assertTrue(framer.isMessageComplete());
+    }
+
+    private static void assertRejected(final String message) {
+
+        //Ошибка должна обнаруживаться независимо от того, как сообщение разбито на части
+        for (final int step : new int[] {1, Integer.MAX_VALUE}) {
+            try {
+                parse(new HttpMessageFramer(true), message, step);
+                fail("Request has been accepted: " + message.substring(0, Math.min(80, message.length())));
+            } catch (HttpFramingException expected) {
+                //Запрос отвергнут
+            }
+        }
+    }
+
+    private static String chunked(final String body) {
+        return "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + body;
+    }
+
+    private static ByteBuffer bytes(final String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
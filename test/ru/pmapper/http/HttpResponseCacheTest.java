@@ -0,0 +1,204 @@
+package ru.pmapper.http;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Поиск, устаревание и вытеснение ответов кэша, в том числе при одновременном обращении из нескольких потоков
+ */
+public class HttpResponseCacheTest {
+
+    private static final int ENTRY_SIZE = 1000;
+
+    //Длина строки Age, которую получает клиент ответа, пробывшего в кэше меньше 10 секунд
+    private static final int AGE_LINE_SIZE = "Age: 0\r\n".length();
+
+    @Test
+    public void storedResponseIsFound() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+        cache.put("/a", response(ENTRY_SIZE), freshUntil(), "\"v1\"");
+
+        final HttpResponseCache.CachedResponse cached = cache.get("/a");
+
+        assertNotNull(cached);
+        assertEquals("\"v1\"", cached.getEtag());
+        assertEquals(ENTRY_SIZE + AGE_LINE_SIZE, read(cached, System.currentTimeMillis()).length());
+        assertNull(cache.get("/b"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(ENTRY_SIZE, cache.getStoredBytes());
+    }
+
+    @Test
+    public void expiredResponseIsRemoved() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+        cache.put("/a", response(ENTRY_SIZE), System.currentTimeMillis() - 1, null);
+
+        assertNull(cache.get("/a"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getStoredBytes());
+    }
+
+    @Test
+    public void replacedResponseIsCountedOnce() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+        cache.put("/a", response(ENTRY_SIZE), freshUntil(), "\"v1\"");
+        cache.put("/a", response(ENTRY_SIZE / 2), freshUntil(), "\"v2\"");
+
+        assertEquals("\"v2\"", cache.get("/a").getEtag());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(ENTRY_SIZE / 2, cache.getStoredBytes());
+    }
+
+    @Test
+    public void popularResponseSurvivesScan() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+
+        cache.put("/hot", response(ENTRY_SIZE), freshUntil(), null);
+        for (int i = 0; i < 50; i++) {
+            assertNotNull(cache.get("/hot"));
+        }
+
+        //Разовые обращения к множеству других ответов не должны вытеснить популярный ответ
+        for (int i = 0; i < 1000; i++) {
+            cache.put("/cold" + i, response(ENTRY_SIZE), freshUntil(), null);
+        }
+
+        assertNotNull(cache.get("/hot"));
+        assertTrue(cache.getEvictions() + cache.getRejectedAdmissions() > 0);
+        assertTrue(cache.getStoredBytes() <= cache.getMaximumBytes());
+    }
+
+    @Test
+    public void concurrentAccessKeepsAccountingConsistent() throws Exception {
+
+        final HttpResponseCache cache = new HttpResponseCache(64 * ENTRY_SIZE);
+        final long deadline = System.currentTimeMillis() + 1000L;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Random random = new Random(seed);
+                        while (System.currentTimeMillis() < deadline) {
+                            //Небольшая часть ключей популярна, остальные встречаются редко
+                            final String key = "/" + (random.nextInt(4) == 0
+                                    ? random.nextInt(1000) : random.nextInt(16));
+                            final HttpResponseCache.CachedResponse cached = cache.get(key);
+
+                            if (cached == null) {
+                                cache.put(key, response(ENTRY_SIZE), freshUntil(), null);
+                            } else if (read(cached, System.currentTimeMillis()).length()
+                                    != ENTRY_SIZE + AGE_LINE_SIZE) {
+                                throw new AssertionError("Broken response for " + key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getStoredBytes() <= cache.getMaximumBytes());
+        assertEquals((long) cache.getEntryCount() * ENTRY_SIZE, cache.getStoredBytes());
+    }
+
+    @Test
+    public void ageIncludesTimeSpentInCache() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+        final String body = "hello";
+        cache.put("/a", ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nAge: 5\r\nContent-Length: 5\r\nAGE: 7\r\n"
+                + "Cache-Control: max-age=60\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1)),
+                freshUntil(), null);
+
+        final HttpResponseCache.CachedResponse cached = cache.get("/a");
+        final long now = System.currentTimeMillis();
+
+        //Заголовки Age сервера заменяются одним актуальным, остальные байты ответа не меняются
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nCache-Control: max-age=60\r\nAge: 7\r\n\r\n" + body,
+                read(cached, now));
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nCache-Control: max-age=60\r\nAge: 10\r\n\r\n" + body,
+                read(cached, now + 3500L));
+        assertEquals(cached.getSize(), cache.getStoredBytes());
+    }
+
+    @Test
+    public void responseWithoutAgeGetsAgeHeader() {
+
+        final HttpResponseCache cache = new HttpResponseCache(100 * ENTRY_SIZE);
+        cache.put("/a", response(ENTRY_SIZE), freshUntil(), null);
+
+        final HttpResponseCache.CachedResponse cached = cache.get("/a");
+        final String served = read(cached, System.currentTimeMillis() + 61000L);
+
+        assertTrue(served, served.startsWith("HTTP/1.1 200 OK\r\nContent-Length: "));
+        assertTrue(served, served.contains("\r\nAge: 61\r\n\r\n"));
+        assertEquals(ENTRY_SIZE + "Age: 61\r\n".length(), served.length());
+    }
+
+    /**
+     * @return ответ сервера длиной size байтов
+     */
+    private static ByteBuffer response(final int size) {
+
+        final String head = "HTTP/1.1 200 OK\r\nContent-Length: ";
+
+        //Длина тела зависит от числа цифр в ее собственной записи
+        int bodyLength = size - head.length() - 4;
+        while (bodyLength + String.valueOf(bodyLength).length() > size - head.length() - 4) {
+            bodyLength--;
+        }
+
+        final StringBuilder message = new StringBuilder(head).append(bodyLength).append("\r\n\r\n");
+        for (int i = 0; i < bodyLength; i++) {
+            message.append('x');
+        }
+        assertEquals(size, message.length());
+        return ByteBuffer.wrap(message.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String read(final HttpResponseCache.CachedResponse cached, final long now) {
+
+        final StringBuilder served = new StringBuilder();
+        for (final ByteBuffer buffer : cached.newReader(now)) {
+            served.append(StandardCharsets.ISO_8859_1.decode(buffer));
+        }
+        return served.toString();
+    }
+
+    private static long freshUntil() {
+        return System.currentTimeMillis() + 60000L;
+    }
+}
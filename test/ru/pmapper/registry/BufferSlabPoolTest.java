@@ -0,0 +1,184 @@
+package ru.pmapper.registry;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Выделение блоков пула буферов по мере надобности, предел пула и одновременная выдача буферов потокам
+ */
+public class BufferSlabPoolTest {
+
+    private static final int BUFFER_SIZE = 32;
+
+    @Test
+    public void slabsAreAllocatedOnDemand() {
+
+        final BufferSlabPool pool = new BufferSlabPool(BUFFER_SIZE, 3 * BufferSlabPool.BUFFERS_PER_SLAB);
+        assertEquals(0, pool.getAllocatedBuffers());
+
+        final Set<Integer> handles = new HashSet<Integer>();
+        for (int i = 0; i < BufferSlabPool.BUFFERS_PER_SLAB; i++) {
+            handles.add(pool.acquire());
+            assertEquals(BufferSlabPool.BUFFERS_PER_SLAB, pool.getAllocatedBuffers());
+        }
+
+        handles.add(pool.acquire());
+        assertEquals(2 * BufferSlabPool.BUFFERS_PER_SLAB, pool.getAllocatedBuffers());
+        assertEquals(BufferSlabPool.BUFFERS_PER_SLAB + 1, handles.size());
+
+        //Возвращенные буферы выдаются снова, новый блок не нужен
+        for (final int handle : handles) {
+            pool.release(handle);
+        }
+        for (int i = 0; i < handles.size(); i++) {
+            pool.acquire();
+        }
+        assertEquals(2 * BufferSlabPool.BUFFERS_PER_SLAB, pool.getAllocatedBuffers());
+    }
+
+    @Test
+    public void poolStopsGrowingAtMaxBuffers() {
+
+        //Предел округляется вверх до целого числа блоков
+        final BufferSlabPool pool = new BufferSlabPool(BUFFER_SIZE, BufferSlabPool.BUFFERS_PER_SLAB + 1);
+        assertEquals(2 * BufferSlabPool.BUFFERS_PER_SLAB, pool.getCapacity());
+
+        final Set<Integer> handles = new HashSet<Integer>();
+        for (int i = 0; i < pool.getCapacity(); i++) {
+            final int handle = pool.acquire();
+            assertTrue(handle >= 0);
+            handles.add(handle);
+        }
+        assertEquals(pool.getCapacity(), handles.size());
+        assertEquals(BufferSlabPool.EXHAUSTED, pool.acquire());
+        assertEquals(pool.getCapacity(), pool.getAllocatedBuffers());
+
+        final int handle = handles.iterator().next();
+        pool.get(handle).putInt(42);
+        pool.release(handle);
+
+        assertEquals(handle, pool.acquire());
+        assertEquals(0, pool.get(handle).position());
+        assertEquals(BufferSlabPool.EXHAUSTED, pool.acquire());
+    }
+
+    @Test
+    public void buffersDoNotOverlap() {
+
+        final BufferSlabPool pool = new BufferSlabPool(BUFFER_SIZE, 2 * BufferSlabPool.BUFFERS_PER_SLAB);
+
+        final List<Integer> handles = new ArrayList<Integer>();
+        for (int i = 0; i < pool.getCapacity(); i++) {
+            final int handle = pool.acquire();
+            fill(pool.get(handle), handle);
+            handles.add(handle);
+        }
+        for (final int handle : handles) {
+            final ByteBuffer buffer = pool.get(handle);
+            assertEquals(BUFFER_SIZE, buffer.capacity());
+            assertTrue(contains(buffer, handle));
+        }
+    }
+
+    @Test
+    public void concurrentAcquireAndReleaseHandOutEachBufferOnce() throws Exception {
+
+        final int threadCount = 8;
+
+        //Буферов меньше, чем потоки могут запросить одновременно: часть запросов получает отказ
+        final BufferSlabPool pool = new BufferSlabPool(BUFFER_SIZE, 2 * BufferSlabPool.BUFFERS_PER_SLAB);
+        final AtomicIntegerArray owners = new AtomicIntegerArray(pool.getCapacity());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 1; t <= threadCount; t++) {
+            final int owner = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final int[] held = new int[2 * BufferSlabPool.BUFFERS_PER_SLAB / threadCount + 8];
+
+                        for (int round = 0; round < 5000; round++) {
+
+                            int count = 0;
+                            for (int i = 0; i < held.length; i++) {
+                                final int handle = pool.acquire();
+                                if (handle == BufferSlabPool.EXHAUSTED) {
+                                    break;
+                                }
+                                if (!owners.compareAndSet(handle, 0, owner)) {
+                                    throw new AssertionError("Buffer " + handle + " is already owned by thread "
+                                            + owners.get(handle));
+                                }
+                                fill(pool.get(handle), owner);
+                                held[count++] = handle;
+                            }
+
+                            for (int i = 0; i < count; i++) {
+                                final ByteBuffer buffer = pool.get(held[i]);
+                                if (!contains(buffer, owner)) {
+                                    throw new AssertionError("Buffer " + held[i] + " has been overwritten");
+                                }
+                                owners.set(held[i], 0);
+                                pool.release(held[i]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(pool.getCapacity(), pool.getAllocatedBuffers());
+
+        //Все буферы вернулись в пул
+        final Set<Integer> handles = new HashSet<Integer>();
+        int handle;
+        while ((handle = pool.acquire()) != BufferSlabPool.EXHAUSTED) {
+            assertTrue(handles.add(handle));
+        }
+        assertEquals(pool.getCapacity(), handles.size());
+    }
+
+    private static void fill(final ByteBuffer buffer, final int value) {
+
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.putInt(value);
+        }
+    }
+
+    private static boolean contains(final ByteBuffer buffer, final int value) {
+
+        for (int i = 0; i < buffer.capacity(); i += 4) {
+            if (buffer.getInt(i) != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
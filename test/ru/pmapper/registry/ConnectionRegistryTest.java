@@ -0,0 +1,226 @@
+package ru.pmapper.registry;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Учет соединений в реестре, выдача буферов передачи и обход записей без блокировок
+ */
+public class ConnectionRegistryTest {
+
+    private static final List<String> MAPPINGS = Arrays.asList("web", "db");
+
+    @Test
+    public void openedConnectionIsVisitedUntilClosed() {
+
+        final ConnectionRegistry registry = new ConnectionRegistry(4, 64, MAPPINGS);
+
+        final int connectionId = registry.open(registry.getMappingIndex("db"));
+        assertEquals(1, registry.getQueuedConnections());
+
+        registry.activate(connectionId);
+        registry.recordReceived(connectionId, 100L);
+        registry.recordReceived(connectionId, 20L);
+        registry.recordSent(connectionId, 7L);
+
+        final List<String> visited = visit(registry);
+        assertEquals(Arrays.asList("#" + connectionId + " db ACTIVE 120/7 0"), visited);
+        assertEquals(0, registry.getQueuedConnections());
+        assertEquals(1, registry.getActiveConnections());
+
+        registry.close(connectionId);
+        assertTrue(visit(registry).isEmpty());
+        assertEquals(0, registry.getActiveConnections());
+    }
+
+    @Test
+    public void fullRegistryFallsBackToUntracked() {
+
+        final ConnectionRegistry registry = new ConnectionRegistry(2, 64, MAPPINGS);
+
+        final int first = registry.open(0);
+        registry.open(0);
+        assertEquals(ConnectionRegistry.UNTRACKED, registry.open(0));
+        assertEquals(1L, registry.getUntrackedConnections());
+
+        //Неучтенное соединение обслуживается как обычно, но в реестр не попадает
+        registry.activate(ConnectionRegistry.UNTRACKED);
+        registry.recordReceived(ConnectionRegistry.UNTRACKED, 10L);
+        final ByteBuffer buffer = registry.acquireBuffer(ConnectionRegistry.UNTRACKED,
+                ConnectionRegistry.LOCAL_TO_REMOTE);
+        assertEquals(ConnectionRegistry.TRANSFER_BUFFER_SIZE, buffer.capacity());
+        assertFalse(registry.releaseBuffer(ConnectionRegistry.UNTRACKED, ConnectionRegistry.LOCAL_TO_REMOTE));
+        registry.close(ConnectionRegistry.UNTRACKED);
+        assertEquals(2, visit(registry).size());
+
+        registry.close(first);
+        assertEquals(first, registry.open(1));
+    }
+
+    @Test
+    public void closingTwiceFreesNumberOnce() {
+
+        final ConnectionRegistry registry = new ConnectionRegistry(2, 64, MAPPINGS);
+
+        final int first = registry.open(0);
+        final int second = registry.open(0);
+
+        registry.close(first);
+        registry.close(first);
+
+        assertEquals(first, registry.open(0));
+        assertEquals(ConnectionRegistry.UNTRACKED, registry.open(0));
+        assertEquals(2, visit(registry).size());
+
+        registry.close(second);
+        assertEquals(second, registry.open(0));
+    }
+
+    @Test
+    public void bufferIsReturnedToPoolOnce() {
+
+        final ConnectionRegistry registry = new ConnectionRegistry(4, 64, MAPPINGS);
+
+        final int connectionId = registry.open(0);
+        final ByteBuffer buffer = registry.acquireBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE);
+        assertEquals(1, registry.getBuffersInUse());
+
+        assertTrue(registry.releaseBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE));
+        assertFalse(registry.releaseBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE));
+        registry.close(connectionId);
+        assertEquals(0, registry.getBuffersInUse());
+
+        //Буфер, возвращенный повторно, достался бы обоим соединениям
+        final ByteBuffer first = registry.acquireBuffer(registry.open(0), ConnectionRegistry.LOCAL_TO_REMOTE);
+        final ByteBuffer second = registry.acquireBuffer(registry.open(0), ConnectionRegistry.LOCAL_TO_REMOTE);
+        assertSame(buffer, first);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void exhaustedPoolFallsBackToUnpooledBuffers() {
+
+        final int poolBuffers = BufferSlabPool.BUFFERS_PER_SLAB;
+        final ConnectionRegistry registry = new ConnectionRegistry(poolBuffers, poolBuffers, MAPPINGS);
+
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < poolBuffers / 2; i++) {
+            final int connectionId = registry.open(0);
+            buffers.add(registry.acquireBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE));
+            buffers.add(registry.acquireBuffer(connectionId, ConnectionRegistry.REMOTE_TO_LOCAL));
+        }
+        assertEquals(0L, registry.getUnpooledBuffers());
+        assertEquals((long) poolBuffers * ConnectionRegistry.TRANSFER_BUFFER_SIZE, registry.getBufferPoolBytes());
+
+        final int connectionId = registry.open(0);
+        final ByteBuffer unpooled = registry.acquireBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE);
+
+        assertEquals(1L, registry.getUnpooledBuffers());
+        assertEquals(ConnectionRegistry.TRANSFER_BUFFER_SIZE, unpooled.capacity());
+        for (final ByteBuffer buffer : buffers) {
+            assertNotSame(buffer, unpooled);
+        }
+        assertEquals(poolBuffers + 1, registry.getBuffersInUse());
+
+        //Отдельный буфер остается у соединения до закрытия, пул не растет
+        assertFalse(registry.releaseBuffer(connectionId, ConnectionRegistry.LOCAL_TO_REMOTE));
+        registry.close(connectionId);
+        assertEquals(poolBuffers, registry.getBuffersInUse());
+        assertEquals((long) poolBuffers * ConnectionRegistry.TRANSFER_BUFFER_SIZE, registry.getBufferPoolBytes());
+    }
+
+    @Test
+    public void forEachSkipsRecordsReusedDuringRead() throws Exception {
+
+        final int capacity = 4;
+        final ConnectionRegistry registry = new ConnectionRegistry(capacity, 64, MAPPINGS);
+        final long deadline = System.currentTimeMillis() + 1000L;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicLong visits = new AtomicLong();
+
+        //Соединения каналов отличаются числом полученных байтов. Запись, прочитанная наполовину до повторной
+        //выдачи номера и наполовину после, соединила бы канал одного соединения со счетчиком другого
+        final List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < capacity; t++) {
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int mappingIndex = 0;
+                    while (running.get()) {
+                        final int connectionId = registry.open(mappingIndex);
+                        if (connectionId != ConnectionRegistry.UNTRACKED) {
+                            registry.activate(connectionId);
+                            registry.recordReceived(connectionId, received(mappingIndex));
+                            registry.close(connectionId);
+                        }
+                        mappingIndex = 1 - mappingIndex;
+                    }
+                }
+            }));
+        }
+        for (final Thread writer : writers) {
+            writer.start();
+        }
+
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                registry.forEach(new ConnectionVisitor() {
+                    @Override
+                    public void visit(final int connectionId, final ConnectionState state, final String mappingName,
+                                      final long openedAtMillis, final long lastActivityMillis,
+                                      final long bytesReceived, final long bytesSent, final int buffers) {
+
+                        visits.incrementAndGet();
+                        if (bytesReceived != 0L && bytesReceived != received(MAPPINGS.indexOf(mappingName))) {
+                            failure.compareAndSet(null, new AssertionError("Torn record #" + connectionId + ": "
+                                    + mappingName + " received " + bytesReceived));
+                        }
+                    }
+                });
+            }
+        } finally {
+            running.set(false);
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertTrue(visits.get() > 0);
+        assertTrue(visit(registry).isEmpty());
+    }
+
+    private static long received(final int mappingIndex) {
+        return (mappingIndex + 1) * 1000L;
+    }
+
+    private static List<String> visit(final ConnectionRegistry registry) {
+
+        final List<String> visited = new ArrayList<String>();
+        registry.forEach(new ConnectionVisitor() {
+            @Override
+            public void visit(final int connectionId, final ConnectionState state, final String mappingName,
+                              final long openedAtMillis, final long lastActivityMillis, final long bytesReceived,
+                              final long bytesSent, final int buffers) {
+                visited.add("#" + connectionId + " " + mappingName + " " + state + " " + bytesReceived + "/"
+                        + bytesSent + " " + buffers);
+            }
+        });
+        return visited;
+    }
+}
@@ -0,0 +1,160 @@
+package ru.pmapper.registry;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Выдача и возврат номеров стеком свободных номеров, в том числе при гонке потоков за вершину стека
+ */
+public class IntFreeListTest {
+
+    @Test
+    public void filledListHandsOutSmallerNumbersFirst() {
+
+        final IntFreeList list = new IntFreeList(3, true);
+
+        assertEquals(3, list.capacity());
+        assertEquals(0, list.pop());
+        assertEquals(1, list.pop());
+        assertEquals(2, list.pop());
+        assertEquals(-1, list.pop());
+    }
+
+    @Test
+    public void emptyListHandsOutPushedNumbersLastInFirstOut() {
+
+        final IntFreeList list = new IntFreeList(4, false);
+        assertEquals(-1, list.pop());
+
+        list.push(2);
+        list.push(0);
+        list.push(3);
+
+        assertEquals(3, list.pop());
+        assertEquals(0, list.pop());
+        assertEquals(2, list.pop());
+        assertEquals(-1, list.pop());
+    }
+
+    @Test
+    public void staleHeadIsRejectedAfterNumberReturns() throws Exception {
+
+        final IntFreeList list = new IntFreeList(3, true);
+        final AtomicLong head = field(list, "head", AtomicLong.class);
+        final int[] next = field(list, "next", int[].class);
+
+        //Поток снятия прочитал вершину 0 со следующим номером 1 и остановился перед CAS
+        final long stale = head.get();
+        assertEquals(0, (int) stale);
+        assertEquals(1, next[(int) stale]);
+
+        //Другой поток снял 0 и 1 и вернул 0: вершина снова 0, но за ней уже 2, а 1 занят (ABA)
+        assertEquals(0, list.pop());
+        assertEquals(1, list.pop());
+        list.push(0);
+        assertEquals(0, (int) head.get());
+
+        //Счетчик изменений отличает вершину от прочитанной, поэтому CAS остановившегося потока не сделает
+        //вершиной занятый номер 1
+        assertNotEquals(stale, head.get());
+
+        assertEquals(0, list.pop());
+        assertEquals(2, list.pop());
+        assertEquals(-1, list.pop());
+    }
+
+    @Test
+    public void concurrentPopAndPushNeverHandOutNumberTwice() throws Exception {
+
+        //Каждый поток держит не больше двух номеров, поэтому номеров хватает всем
+        final int capacity = 16;
+        final IntFreeList list = new IntFreeList(capacity, true);
+
+        //Владелец каждого номера: 0 - номер в стеке, иначе номер потока, снявшего его
+        final AtomicIntegerArray owners = new AtomicIntegerArray(capacity);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 1; t <= 8; t++) {
+            final int owner = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 200000; i++) {
+
+                            //Номера возвращаются не в том порядке, в котором сняты
+                            final int first = take(list, owners, owner);
+                            final int second = take(list, owners, owner);
+
+                            give(list, owners, owner, first);
+                            give(list, owners, owner, second);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+
+        //Все номера вернулись в стек ровно по одному разу
+        final boolean[] seen = new boolean[capacity];
+        for (int i = 0; i < capacity; i++) {
+            final int value = list.pop();
+            assertFalse("Number " + value + " is lost or duplicated", value < 0 || seen[value]);
+            seen[value] = true;
+        }
+        assertEquals(-1, list.pop());
+    }
+
+    private static int take(final IntFreeList list, final AtomicIntegerArray owners, final int owner) {
+
+        final int value = list.pop();
+        if (value < 0) {
+            throw new AssertionError("Free list is empty");
+        }
+        if (!owners.compareAndSet(value, 0, owner)) {
+            throw new AssertionError("Number " + value + " is already owned by thread " + owners.get(value));
+        }
+        return value;
+    }
+
+    private static void give(final IntFreeList list, final AtomicIntegerArray owners, final int owner,
+                             final int value) {
+
+        if (!owners.compareAndSet(value, owner, 0)) {
+            throw new AssertionError("Number " + value + " has been taken over by thread " + owners.get(value));
+        }
+        list.push(value);
+    }
+
+    private static <T> T field(final IntFreeList list, final String name, final Class<T> type) throws Exception {
+
+        final Field field = IntFreeList.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return type.cast(field.get(list));
+    }
+}
@@ -0,0 +1,162 @@
+package ru.pmapper.tunnel;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Сжатие и распаковка блоков LZ4, в том числе несжимаемых и поврежденных
+ */
+public class Lz4BlockCodecTest {
+
+    private final Lz4BlockCodec codec = new Lz4BlockCodec();
+
+    @Test
+    public void compressibleBlockRoundTrip() throws Exception {
+
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < TunnelFrame.MAX_PAYLOAD_LENGTH) {
+            text.append("GET /index.html HTTP/1.1\r\nHost: example.org\r\nAccept: */*\r\n\r\n");
+        }
+        final byte[] data = Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII),
+                TunnelFrame.MAX_PAYLOAD_LENGTH);
+
+        final byte[] compressed = new byte[data.length];
+        final int compressedLength = this.codec.compress(data, 0, data.length, compressed, 0, data.length - 5);
+
+        assertTrue("Repetitive data must compress", compressedLength > 0 && compressedLength < data.length / 4);
+        assertArrayEquals(data, decompress(compressed, 0, compressedLength, data.length));
+    }
+
+    @Test
+    public void blockWithOffsetsRoundTrip() throws Exception {
+
+        final byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+
+        final byte[] source = new byte[data.length + 3];
+        System.arraycopy(data, 0, source, 3, data.length);
+
+        final byte[] compressed = new byte[data.length + 11];
+        final int compressedLength = this.codec.compress(source, 3, data.length, compressed, 11, data.length);
+        assertTrue(compressedLength > 0);
+
+        final byte[] restored = new byte[data.length + 2];
+        assertEquals(data.length,
+                this.codec.decompress(compressed, 11, compressedLength, restored, 2, data.length));
+        assertArrayEquals(data, Arrays.copyOfRange(restored, 2, restored.length));
+    }
+
+    @Test
+    public void shortBlockIsStoredAsLiterals() throws Exception {
+
+        final byte[] data = "tiny".getBytes(StandardCharsets.US_ASCII);
+
+        final byte[] compressed = new byte[16];
+        final int compressedLength = this.codec.compress(data, 0, data.length, compressed, 0, compressed.length);
+
+        assertEquals(1 + data.length, compressedLength);
+        assertArrayEquals(data, decompress(compressed, 0, compressedLength, data.length));
+    }
+
+    @Test
+    public void incompressibleBlockDoesNotFitShorterOutput() throws Exception {
+
+        final byte[] data = new byte[TunnelFrame.MAX_PAYLOAD_LENGTH];
+        new Random(42).nextBytes(data);
+
+        final byte[] compressed = new byte[data.length * 2];
+        assertEquals(-1, this.codec.compress(data, 0, data.length, compressed, 0, data.length - 5));
+
+        //Без ограничения длины несжимаемый блок все равно распаковывается в исходные данные
+        final int compressedLength = this.codec.compress(data, 0, data.length, compressed, 0, compressed.length);
+        assertTrue(compressedLength >= data.length);
+        assertArrayEquals(data, decompress(compressed, 0, compressedLength, data.length));
+    }
+
+    @Test
+    public void truncatedBlockIsNeverDecodedAsOriginal() throws Exception {
+
+        final byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 3 + i / 1000);
+        }
+
+        final byte[] compressed = new byte[data.length];
+        final int compressedLength = this.codec.compress(data, 0, data.length, compressed, 0, data.length);
+
+        //Обрезанный на границе последовательности блок остается корректным, но короче исходного: такие кадры
+        //отклоняет туннельное соединение, сравнивая длину с переданной в кадре
+        final byte[] restored = new byte[data.length];
+        for (int length = 0; length < compressedLength; length++) {
+            try {
+                final int restoredLength = this.codec.decompress(compressed, 0, length, restored, 0, data.length);
+                assertTrue("Truncated block has been decoded completely", restoredLength < data.length);
+            } catch (TunnelProtocolException expected) {
+                //Поврежденный блок отклонен
+            }
+        }
+    }
+
+    @Test
+    public void blockTruncatedInsideSequenceIsRejected() throws Exception {
+        //Совпадение без второго байта смещения
+        assertMalformed(new byte[] {0x10, 'x', 0x01}, 64);
+        //Продолжение длины литералов отсутствует
+        assertMalformed(new byte[] {(byte) 0xF0}, 64);
+    }
+
+    @Test
+    public void matchBeforeBlockStartIsRejected() throws Exception {
+        //Один литерал и совпадение со смещением 2, которое указывает перед началом блока
+        assertMalformed(new byte[] {0x10, 'x', 0x02, 0x00, 0x00}, 64);
+    }
+
+    @Test
+    public void zeroMatchOffsetIsRejected() throws Exception {
+        assertMalformed(new byte[] {0x10, 'x', 0x00, 0x00, 0x00}, 64);
+    }
+
+    @Test
+    public void literalsBeyondBlockAreRejected() throws Exception {
+        //Заявлено 15 + 200 литералов, передано 3
+        assertMalformed(new byte[] {(byte) 0xF0, (byte) 200, 'a', 'b', 'c'}, 1024);
+    }
+
+    @Test
+    public void outputLongerThanLimitIsRejected() throws Exception {
+
+        final byte[] data = new byte[2048];
+        final byte[] compressed = new byte[data.length];
+        final int compressedLength = this.codec.compress(data, 0, data.length, compressed, 0, data.length);
+
+        assertMalformed(Arrays.copyOf(compressed, compressedLength), data.length - 1);
+    }
+
+    private byte[] decompress(final byte[] compressed, final int offset, final int length, final int originalLength)
+            throws TunnelProtocolException {
+
+        final byte[] restored = new byte[originalLength];
+        assertEquals(originalLength,
+                this.codec.decompress(compressed, offset, length, restored, 0, originalLength));
+        return restored;
+    }
+
+    private void assertMalformed(final byte[] compressed, final int maxLength) {
+        try {
+            this.codec.decompress(compressed, 0, compressed.length, new byte[maxLength], 0, maxLength);
+            fail("Malformed block of " + compressed.length + " bytes has been accepted");
+        } catch (TunnelProtocolException expected) {
+            //Поврежденный блок отклонен
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ru.pmapper.tunnel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Кодирование и разбор заголовков кадров туннеля
+ */
+public class TunnelFrameTest {
+
+    @Test
+    public void controlFrameHeader() throws Exception {
+
+        final ByteBuffer frame = TunnelFrame.control(TunnelFrame.OPEN, TunnelFrame.FLAG_COMPRESSED, 7);
+
+        assertEquals(TunnelFrame.HEADER_LENGTH, frame.remaining());
+        assertEquals(TunnelFrame.OPEN, TunnelFrame.type(frame, 0));
+        assertEquals(TunnelFrame.FLAG_COMPRESSED, TunnelFrame.flags(frame, 0));
+        assertEquals(7, TunnelFrame.streamId(frame, 0));
+        assertEquals(0, TunnelFrame.payloadLength(frame, 0));
+    }
+
+    @Test
+    public void dataFrameWithPayload() throws Exception {
+
+        final byte[] payload = {1, 2, 3, 4, 5};
+        final ByteBuffer frame = TunnelFrame.allocate(TunnelFrame.DATA, 0, Integer.MAX_VALUE, payload.length);
+        frame.put(payload);
+        frame.flip();
+
+        //Кадр разбирается с любой позиции буфера, как при чтении нескольких кадров подряд
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + frame.remaining());
+        buffer.position(3);
+        buffer.put(frame);
+
+        assertEquals(TunnelFrame.DATA, TunnelFrame.type(buffer, 3));
+        assertEquals(0, TunnelFrame.flags(buffer, 3));
+        assertEquals(Integer.MAX_VALUE, TunnelFrame.streamId(buffer, 3));
+        assertEquals(payload.length, TunnelFrame.payloadLength(buffer, 3));
+
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i], buffer.get(3 + TunnelFrame.HEADER_LENGTH + i));
+        }
+    }
+
+    @Test
+    public void windowUpdateFrame() throws Exception {
+
+        final ByteBuffer frame = TunnelFrame.windowUpdate(12, TunnelStream.WINDOW_UPDATE_THRESHOLD);
+
+        assertEquals(TunnelFrame.HEADER_LENGTH + 4, frame.remaining());
+        assertEquals(TunnelFrame.WINDOW_UPDATE, TunnelFrame.type(frame, 0));
+        assertEquals(12, TunnelFrame.streamId(frame, 0));
+        assertEquals(4, TunnelFrame.payloadLength(frame, 0));
+        assertEquals(TunnelStream.WINDOW_UPDATE_THRESHOLD, frame.getInt(TunnelFrame.HEADER_LENGTH));
+    }
+
+    @Test
+    public void headerIsInNetworkByteOrder() {
+
+        final ByteBuffer frame = TunnelFrame.control(TunnelFrame.RESET, 0, 0x01020304);
+
+        assertEquals(TunnelFrame.RESET, frame.get(0));
+        assertEquals(1, frame.get(2));
+        assertEquals(2, frame.get(3));
+        assertEquals(3, frame.get(4));
+        assertEquals(4, frame.get(5));
+    }
+
+    @Test
+    public void tooLongPayloadIsRejected() {
+        assertRejected(TunnelFrame.MAX_PAYLOAD_LENGTH + 1);
+        assertRejected(-1);
+    }
+
+    private static void assertRejected(final int payloadLength) {
+
+        final ByteBuffer header = ByteBuffer.allocate(TunnelFrame.HEADER_LENGTH);
+        header.put(TunnelFrame.DATA).put((byte) 0).putInt(1).putInt(payloadLength);
+
+        try {
+            TunnelFrame.payloadLength(header, 0);
+            fail("Payload length " + payloadLength + " has been accepted");
+        } catch (TunnelProtocolException expected) {
+            //Длина вне допустимых пределов
+        }
+    }
+}
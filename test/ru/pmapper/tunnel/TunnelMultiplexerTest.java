@@ -0,0 +1,556 @@
+package ru.pmapper.tunnel;
+
+import org.junit.After;
+import org.junit.Test;
+import ru.pmapper.health.BackendHealth;
+import ru.pmapper.util.properties.ProxyMode;
+import ru.pmapper.util.properties.ProxyProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Передача потоков через туннель на петлевом интерфейсе: между двумя мультиплексорами, а также между
+ * мультиплексором и тестом, который сам разбирает кадры и проверяет соблюдение окон потоков
+ */
+public class TunnelMultiplexerTest {
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    //Время без кадров, после которого отправитель считается остановленным окном
+    private static final int QUIET_MILLIS = 500;
+
+    private final List<TunnelMultiplexer> multiplexers = new ArrayList<TunnelMultiplexer>();
+
+    //Закрываются в конце теста, в том числе сокеты, принятые серверами в своих потоках
+    private final List<AutoCloseable> resources = Collections.synchronizedList(new ArrayList<AutoCloseable>());
+
+    @After
+    public void tearDown() throws Exception {
+        for (final TunnelMultiplexer multiplexer : this.multiplexers) {
+            multiplexer.shutdown(0);
+        }
+        synchronized (this.resources) {
+            for (final AutoCloseable resource : this.resources) {
+                resource.close();
+            }
+        }
+    }
+
+    @Test
+    public void streamsAreRelayedBetweenTwoMultiplexers() throws Exception {
+
+        final ServerSocket backend = listen();
+        startEchoServer(backend);
+
+        final TunnelMultiplexer exit = startMultiplexer();
+        final ServerSocketChannel exitListener = listenChannel();
+        acceptTunnels(exitListener, exit, tunnelProperty(ProxyMode.TUNNEL_EXIT, backend.getLocalPort(), false));
+
+        final TunnelMultiplexer entrance = startMultiplexer();
+        final ProxyProperty entranceProperty
+                = tunnelProperty(ProxyMode.TUNNEL, exitListener.socket().getLocalPort(), true);
+
+        final ServerSocketChannel front = listenChannel();
+
+        //Данные каждого потока больше окна, поэтому они доходят, только если получатели подтверждают байты
+        final int streamCount = 3;
+        final Socket[] clients = new Socket[streamCount];
+        final byte[][] sent = new byte[streamCount][];
+
+        for (int i = 0; i < streamCount; i++) {
+            clients[i] = openStream(front, entrance, entranceProperty);
+            sent[i] = payload(4 * TunnelStream.INITIAL_WINDOW, i);
+            writeInBackground(clients[i], sent[i]);
+        }
+
+        for (int i = 0; i < streamCount; i++) {
+            assertArrayEquals("Stream " + i + " has been corrupted", sent[i], readFully(clients[i].getInputStream()));
+            clients[i].close();
+        }
+
+        assertEquals(streamCount, entrance.getOpenedStreams());
+        assertEquals(streamCount, exit.getOpenedStreams());
+        assertTrue("Compressible half of the data must be compressed", entrance.getCompressionRatio() > 1.0);
+
+        waitUntilNoActiveStreams(entrance);
+        waitUntilNoActiveStreams(exit);
+    }
+
+    @Test
+    public void entranceStopsAtSendWindowUntilAcknowledged() throws Exception {
+
+        final ServerSocket peer = listen();
+
+        final TunnelMultiplexer entrance = startMultiplexer();
+        final ProxyProperty property = tunnelProperty(ProxyMode.TUNNEL, peer.getLocalPort(), false);
+
+        final Socket client = openStream(listenChannel(), entrance, property);
+        writeInBackground(client, payload(4 * TunnelStream.INITIAL_WINDOW, 0));
+
+        final Socket tunnel = accept(peer);
+        final DataInputStream in = new DataInputStream(tunnel.getInputStream());
+        final DataOutputStream out = new DataOutputStream(tunnel.getOutputStream());
+
+        final FrameHeader open = readFrame(tunnel, in, TIMEOUT_MILLIS);
+        assertEquals(TunnelFrame.OPEN, open.type);
+        assertEquals(0, open.flags);
+
+        //Без подтверждений входная сторона отправляет ровно одно окно
+        assertEquals(TunnelStream.INITIAL_WINDOW, readDataUntilQuiet(tunnel, in, open.streamId));
+
+        final int increment = 1000;
+        out.write(toArray(TunnelFrame.windowUpdate(open.streamId, increment)));
+        out.flush();
+
+        assertEquals(increment, readDataUntilQuiet(tunnel, in, open.streamId));
+    }
+
+    @Test
+    public void exitAcknowledgesBytesWrittenToServer() throws Exception {
+
+        final ServerSocket backend = listen();
+        final AtomicLong backendReceived = new AtomicLong();
+        startCountingServer(backend, backendReceived);
+
+        final TunnelMultiplexer exit = startMultiplexer();
+        final ServerSocketChannel exitListener = listenChannel();
+        acceptTunnels(exitListener, exit, tunnelProperty(ProxyMode.TUNNEL_EXIT, backend.getLocalPort(), false));
+
+        final Socket tunnel = connect(exitListener.socket().getLocalPort());
+        final DataInputStream in = new DataInputStream(tunnel.getInputStream());
+        final DataOutputStream out = new DataOutputStream(tunnel.getOutputStream());
+
+        final int streamId = 1;
+        out.write(toArray(TunnelFrame.control(TunnelFrame.OPEN, 0, streamId)));
+
+        //Отправляем втрое больше окна, каждый раз дожидаясь подтверждения, если окно исчерпано
+        final int total = 3 * TunnelStream.INITIAL_WINDOW;
+        final byte[] chunk = payload(TunnelFrame.MAX_PAYLOAD_LENGTH, 1);
+        long window = TunnelStream.INITIAL_WINDOW;
+        int sent = 0;
+
+        while (sent < total) {
+            while (window < chunk.length) {
+                final FrameHeader frame = readFrame(tunnel, in, TIMEOUT_MILLIS);
+                assertEquals(TunnelFrame.WINDOW_UPDATE, frame.type);
+                assertEquals(streamId, frame.streamId);
+                window += in.readInt();
+            }
+            final ByteBuffer data = TunnelFrame.allocate(TunnelFrame.DATA, 0, streamId, chunk.length);
+            data.put(chunk);
+            data.flip();
+            out.write(toArray(data));
+            window -= chunk.length;
+            sent += chunk.length;
+        }
+        out.write(toArray(TunnelFrame.control(TunnelFrame.CLOSE, 0, streamId)));
+        out.flush();
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (backendReceived.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, backendReceived.get());
+    }
+
+    @Test
+    public void exitClosesTunnelWhenSendWindowIsExceeded() throws Exception {
+
+        //Сервер принимает соединение, но не читает его, поэтому данные потока копятся на выходной стороне
+        final ServerSocket backend = new ServerSocket();
+        backend.setReceiveBufferSize(4096);
+        backend.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.resources.add(backend);
+        startSilentServer(backend);
+
+        final TunnelMultiplexer exit = startMultiplexer();
+        final ServerSocketChannel exitListener = listenChannel();
+        acceptTunnels(exitListener, exit, tunnelProperty(ProxyMode.TUNNEL_EXIT, backend.getLocalPort(), false));
+
+        final Socket tunnel = connect(exitListener.socket().getLocalPort());
+        final OutputStream out = tunnel.getOutputStream();
+
+        out.write(toArray(TunnelFrame.control(TunnelFrame.OPEN, 0, 1)));
+
+        final byte[] chunk = payload(TunnelFrame.MAX_PAYLOAD_LENGTH, 2);
+        final ByteBuffer data = TunnelFrame.allocate(TunnelFrame.DATA, 0, 1, chunk.length);
+        data.put(chunk);
+        data.flip();
+        final byte[] frame = toArray(data);
+
+        //Больше, чем поместится в буферы сокетов выходной стороны и сервера вместе с окном потока
+        try {
+            for (int i = 0; i < 1024; i++) {
+                out.write(frame);
+            }
+        } catch (IOException e) {
+            //Выходная сторона уже закрыла туннельное соединение
+        }
+
+        tunnel.setSoTimeout(TIMEOUT_MILLIS);
+        try {
+            final InputStream in = tunnel.getInputStream();
+            while (in.read(new byte[4096]) != -1) {
+                //Подтверждения, отправленные до переполнения окна
+            }
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("Tunnel connection has not been closed after window overflow");
+        } catch (IOException e) {
+            //Соединение сброшено
+        }
+
+        waitUntilNoActiveStreams(exit);
+        assertEquals(0, exit.getTunnelConnections());
+    }
+
+    @Test
+    public void invalidWindowUpdateClosesTunnel() throws Exception {
+
+        final ServerSocket backend = listen();
+        startEchoServer(backend);
+
+        final TunnelMultiplexer exit = startMultiplexer();
+        final ServerSocketChannel exitListener = listenChannel();
+        acceptTunnels(exitListener, exit, tunnelProperty(ProxyMode.TUNNEL_EXIT, backend.getLocalPort(), false));
+
+        //Нулевое, отрицательное и переполняющее окно приращения; после каждого мультиплексор продолжает работу
+        for (final int increment : new int[] {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+
+            final Socket tunnel = connect(exitListener.socket().getLocalPort());
+            final OutputStream out = tunnel.getOutputStream();
+
+            out.write(toArray(TunnelFrame.control(TunnelFrame.OPEN, 0, 1)));
+            out.write(toArray(TunnelFrame.windowUpdate(1, increment)));
+
+            tunnel.setSoTimeout(TIMEOUT_MILLIS);
+            try {
+                final InputStream in = tunnel.getInputStream();
+                while (in.read(new byte[4096]) != -1) {
+                    //Кадры, отправленные до ошибки
+                }
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("Tunnel connection has not been closed after WINDOW_UPDATE " + increment);
+            } catch (IOException e) {
+                //Соединение сброшено
+            }
+            closeQuietly(tunnel);
+
+            waitUntilNoActiveStreams(exit);
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (exit.getTunnelConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, exit.getTunnelConnections());
+        }
+    }
+
+    private TunnelMultiplexer startMultiplexer() throws IOException {
+        final TunnelMultiplexer multiplexer = new TunnelMultiplexer();
+        this.multiplexers.add(multiplexer);
+        multiplexer.start();
+        return multiplexer;
+    }
+
+    private static ProxyProperty tunnelProperty(final ProxyMode mode, final int remotePort, final boolean compression) {
+        final ProxyProperty property = new ProxyProperty(0, remotePort, "localhost");
+        property.setName(mode.name().toLowerCase());
+        property.setMode(mode);
+        property.setCompression(compression);
+        return property;
+    }
+
+    /**
+     * Принимает клиента на локальном порту и передает его мультиплексору как поток канала в режиме tunnel
+     * @return сокет клиента
+     */
+    private Socket openStream(final ServerSocketChannel front, final TunnelMultiplexer entrance,
+                              final ProxyProperty property) throws IOException {
+
+        final Socket client = connect(front.socket().getLocalPort());
+
+        final SocketChannel accepted = front.accept();
+        accepted.configureBlocking(false);
+        entrance.openStream(accepted, property, new BackendHealth(property.getRemoteEndpoint()), null, null);
+        return client;
+    }
+
+    private void acceptTunnels(final ServerSocketChannel listener, final TunnelMultiplexer exit,
+                               final ProxyProperty property) {
+
+        final BackendHealth health = new BackendHealth(property.getRemoteEndpoint());
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SocketChannel channel = listener.accept();
+                        channel.configureBlocking(false);
+                        exit.acceptTunnel(channel, property, health);
+                    }
+                } catch (IOException e) {
+                    //Слушающий канал закрыт в конце теста
+                }
+            }
+        });
+    }
+
+    private ServerSocket listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.resources.add(serverSocket);
+        return serverSocket;
+    }
+
+    private ServerSocketChannel listenChannel() throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.resources.add(channel);
+        return channel;
+    }
+
+    private Socket connect(final int port) throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.resources.add(socket);
+        return socket;
+    }
+
+    private Socket accept(final ServerSocket serverSocket) throws IOException {
+        serverSocket.setSoTimeout(TIMEOUT_MILLIS);
+        final Socket socket = serverSocket.accept();
+        this.resources.add(socket);
+        return socket;
+    }
+
+    private void startEchoServer(final ServerSocket serverSocket) {
+        startServer(serverSocket, new Handler() {
+            @Override
+            public void handle(final Socket socket) throws IOException {
+                final byte[] buffer = new byte[8192];
+                final InputStream in = socket.getInputStream();
+                final OutputStream out = socket.getOutputStream();
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+                socket.shutdownOutput();
+            }
+        });
+    }
+
+    private void startCountingServer(final ServerSocket serverSocket, final AtomicLong received) {
+        startServer(serverSocket, new Handler() {
+            @Override
+            public void handle(final Socket socket) throws IOException {
+                final byte[] buffer = new byte[8192];
+                final InputStream in = socket.getInputStream();
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    received.addAndGet(length);
+                }
+            }
+        });
+    }
+
+    private void startSilentServer(final ServerSocket serverSocket) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        //Соединение держится открытым до конца теста
+                        resources.add(serverSocket.accept());
+                    }
+                } catch (IOException e) {
+                    //Слушающий сокет закрыт в конце теста
+                }
+            }
+        });
+    }
+
+    private void startServer(final ServerSocket serverSocket, final Handler handler) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        startDaemon(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handler.handle(socket);
+                                } catch (IOException e) {
+                                    //Соединение закрыто другой стороной
+                                } finally {
+                                    closeQuietly(socket);
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    //Слушающий сокет закрыт в конце теста
+                }
+            }
+        });
+    }
+
+    private static void writeInBackground(final Socket socket, final byte[] data) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.getOutputStream().write(data);
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    //Проверяет читающая сторона
+                }
+            }
+        });
+    }
+
+    /**
+     * Читает DATA кадры потока, пока они приходят
+     * @return сколько байтов данных получено
+     */
+    private static int readDataUntilQuiet(final Socket socket, final DataInputStream in, final int streamId)
+            throws IOException {
+
+        int received = 0;
+        while (true) {
+            final FrameHeader frame = readFrame(socket, in, QUIET_MILLIS);
+            if (frame == null) {
+                return received;
+            }
+            assertEquals(TunnelFrame.DATA, frame.type);
+            assertEquals(streamId, frame.streamId);
+
+            in.skipBytes(frame.payloadLength);
+            received += frame.payloadLength;
+        }
+    }
+
+    /**
+     * Читает заголовок кадра
+     * @param timeoutMillis сколько ждать начала кадра
+     * @return заголовок или null, если за это время кадр не начался
+     */
+    private static FrameHeader readFrame(final Socket socket, final DataInputStream in, final int timeoutMillis)
+            throws IOException {
+
+        final byte[] header = new byte[TunnelFrame.HEADER_LENGTH];
+
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            final int first = in.read();
+            assertTrue("Tunnel connection has been closed", first != -1);
+            header[0] = (byte) first;
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+
+        //Остаток кадра уже в пути, ждем его дольше
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        in.readFully(header, 1, header.length - 1);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(header);
+        return new FrameHeader(TunnelFrame.type(buffer, 0), TunnelFrame.flags(buffer, 0),
+                TunnelFrame.streamId(buffer, 0), TunnelFrame.payloadLength(buffer, 0));
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+
+        final byte[] buffer = new byte[8192];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Данные потока: первая половина хорошо сжимается, вторая - нет
+     */
+    private static byte[] payload(final int length, final int seed) {
+
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length / 2; i++) {
+            data[i] = (byte) ('a' + (i + seed) % 16);
+        }
+        final byte[] random = new byte[length - length / 2];
+        new Random(seed).nextBytes(random);
+        System.arraycopy(random, 0, data, length / 2, random.length);
+        return data;
+    }
+
+    private static byte[] toArray(final ByteBuffer frame) {
+        return Arrays.copyOfRange(frame.array(), frame.position(), frame.limit());
+    }
+
+    private static void waitUntilNoActiveStreams(final TunnelMultiplexer multiplexer) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (multiplexer.getActiveStreams() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, multiplexer.getActiveStreams());
+    }
+
+    private static void startDaemon(final Runnable task) {
+        final Thread thread = new Thread(task, "tunnel-test");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Сокет уже закрыт
+        }
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+
+    private static final class FrameHeader {
+
+        private final byte type;
+
+        private final int flags;
+
+        private final int streamId;
+
+        private final int payloadLength;
+
+        private FrameHeader(final byte type, final int flags, final int streamId, final int payloadLength) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payloadLength = payloadLength;
+        }
+    }
+}